@@ -5,6 +5,10 @@ import java.sql.Driver;
 
 import ca.uhn.fhir.jpa.model.entity.ModelConfig;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.opencds.cqf.common.evaluation.MeasureCheckpointStore;
+import org.opencds.cqf.common.evaluation.MeasureJobExecutor;
+import org.opencds.cqf.common.evaluation.MeasureJobStore;
+import org.opencds.cqf.common.evaluation.MeasureResultStore;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -96,6 +100,39 @@ public class FhirServerConfig {
     }
 
 
+    /**
+     * Stores per-patient measure results for incremental measure evaluation
+     */
+    @Bean()
+    public MeasureResultStore measureResultStore() {
+        return new MeasureResultStore();
+    }
+
+    /**
+     * Stores the checkpoints of resumable population evaluations
+     */
+    @Bean()
+    public MeasureCheckpointStore measureCheckpointStore() {
+        return new MeasureCheckpointStore();
+    }
+
+    /**
+     * Stores the state of asynchronous measure jobs
+     */
+    @Bean()
+    public MeasureJobStore measureJobStore() {
+        return new MeasureJobStore();
+    }
+
+    /**
+     * Runs asynchronous measure jobs on a pool bounded separately from request evaluation
+     */
+    @Bean(destroyMethod = "shutdown")
+    public MeasureJobExecutor measureJobExecutor() {
+        return new MeasureJobExecutor(measureJobStore(), HapiProperties.getEvaluationJobsMaxRunning(),
+                HapiProperties.getEvaluationJobsMaxQueued());
+    }
+
     /**
      * Do some fancy logging to create a nice access log that has details about each incoming request.
      */
@@ -8,6 +8,8 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class HapiProperties {
@@ -47,6 +49,22 @@ public class HapiProperties {
     static final String ALLOW_CONTAINS_SEARCHES = "allow_contains_searches";
     static final String ALLOW_OVERRIDE_DEFAULT_SEARCH_PARAMS = "allow_override_default_search_params";
     static final String EMAIL_FROM = "email.from";
+    static final String EVALUATION_PARALLELISM = "evaluation.parallelism";
+    static final String EVALUATION_JOBS_MAX_RUNNING = "evaluation.jobs.max_running";
+    static final String EVALUATION_JOBS_MAX_QUEUED = "evaluation.jobs.max_queued";
+    static final String EVALUATION_CHECKPOINT_PATIENTS = "evaluation.checkpoint.patients";
+    static final String EVALUATION_CHECKPOINT_SECONDS = "evaluation.checkpoint.seconds";
+    static final String EVALUATION_SHARD_WORKERS = "evaluation.shard.workers";
+    static final String EVALUATION_SHARD_COUNT = "evaluation.shard.count";
+    static final String EVALUATION_SHARD_RETRIES = "evaluation.shard.retries";
+    static final String EVALUATION_SHARD_TIMEOUT_SECONDS = "evaluation.shard.timeout_seconds";
+    static final String EVALUATION_TIMEOUT_SECONDS = "evaluation.timeout_seconds";
+    static final String EVALUATION_MAX_PATIENTS = "evaluation.max_patients";
+    static final String SUBMIT_DATA_CHUNK_SIZE = "submit_data.chunk_size";
+    static final String SUBMIT_DATA_PARALLELISM = "submit_data.parallelism";
+    static final String LIBRARY_CACHE_SIZE = "library_cache.size";
+    static final String LIBRARY_STORE_DIRECTORY = "library_store.directory";
+    static final String LIBRARY_STORE_PRELOAD = "library_store.preload";
 
     private static Properties properties;
 
@@ -340,4 +358,74 @@ public class HapiProperties {
         String value = HapiProperties.getProperty(REUSE_CACHED_SEARCH_RESULTS_MILLIS, "-1");
         return Long.valueOf(value);
     }
+
+    public static Integer getEvaluationParallelism() {
+        return HapiProperties.getIntegerProperty(EVALUATION_PARALLELISM, 1);
+    }
+
+    public static Integer getEvaluationJobsMaxRunning() {
+        return HapiProperties.getIntegerProperty(EVALUATION_JOBS_MAX_RUNNING, 1);
+    }
+
+    public static Integer getEvaluationJobsMaxQueued() {
+        return HapiProperties.getIntegerProperty(EVALUATION_JOBS_MAX_QUEUED, 20);
+    }
+
+    public static Integer getEvaluationCheckpointPatients() {
+        return HapiProperties.getIntegerProperty(EVALUATION_CHECKPOINT_PATIENTS, 10000);
+    }
+
+    public static Integer getEvaluationCheckpointSeconds() {
+        return HapiProperties.getIntegerProperty(EVALUATION_CHECKPOINT_SECONDS, 300);
+    }
+
+    public static List<String> getEvaluationShardWorkers() {
+        List<String> workers = new ArrayList<>();
+        for (String worker : HapiProperties.getProperty(EVALUATION_SHARD_WORKERS, "").split(",")) {
+            if (!worker.trim().isEmpty()) {
+                workers.add(worker.trim());
+            }
+        }
+        return workers;
+    }
+
+    public static Integer getEvaluationShardCount() {
+        return HapiProperties.getIntegerProperty(EVALUATION_SHARD_COUNT, 0);
+    }
+
+    public static Integer getEvaluationShardRetries() {
+        return HapiProperties.getIntegerProperty(EVALUATION_SHARD_RETRIES, 2);
+    }
+
+    public static Integer getEvaluationShardTimeoutSeconds() {
+        return HapiProperties.getIntegerProperty(EVALUATION_SHARD_TIMEOUT_SECONDS, 3600);
+    }
+
+    public static Integer getEvaluationTimeoutSeconds() {
+        return HapiProperties.getIntegerProperty(EVALUATION_TIMEOUT_SECONDS, 0);
+    }
+
+    public static Integer getEvaluationMaxPatients() {
+        return HapiProperties.getIntegerProperty(EVALUATION_MAX_PATIENTS, 0);
+    }
+
+    public static Integer getSubmitDataChunkSize() {
+        return HapiProperties.getIntegerProperty(SUBMIT_DATA_CHUNK_SIZE, 500);
+    }
+
+    public static Integer getSubmitDataParallelism() {
+        return HapiProperties.getIntegerProperty(SUBMIT_DATA_PARALLELISM, 1);
+    }
+
+    public static Integer getLibraryCacheSize() {
+        return HapiProperties.getIntegerProperty(LIBRARY_CACHE_SIZE, 200);
+    }
+
+    public static String getLibraryStoreDirectory() {
+        return HapiProperties.getProperty(LIBRARY_STORE_DIRECTORY, "");
+    }
+
+    public static Boolean getLibraryStorePreload() {
+        return HapiProperties.getBooleanProperty(LIBRARY_STORE_PRELOAD, false);
+    }
 }
@@ -0,0 +1,94 @@
+package org.opencds.cqf.common.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The saved progress of a long-running population evaluation: how many patients have been
+ * evaluated, the last of them, and the encoded populations accumulated so far.
+ */
+@Entity
+@Table(name = "CQF_MEASURE_CHECKPOINT")
+public class MeasureCheckpointEntity implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_ID_LENGTH = 100;
+
+    @Id
+    @Column(name = "CHECKPOINT_ID", length = MAX_ID_LENGTH)
+    private String id;
+
+    @Column(name = "RUN_KEY", length = MeasureResultEntity.MAX_KEY_LENGTH, nullable = false)
+    private String runKey;
+
+    @Column(name = "POSITION", nullable = false)
+    private int position;
+
+    @Column(name = "LAST_PATIENT_ID", length = 100)
+    private String lastPatientId;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "UPDATED", nullable = false)
+    private Date updated;
+
+    @Lob
+    @Column(name = "STATE_DATA")
+    private String state;
+
+    public String getId() {
+        return this.id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRunKey() {
+        return this.runKey;
+    }
+
+    public void setRunKey(String runKey) {
+        this.runKey = runKey;
+    }
+
+    public int getPosition() {
+        return this.position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    public String getLastPatientId() {
+        return this.lastPatientId;
+    }
+
+    public void setLastPatientId(String lastPatientId) {
+        this.lastPatientId = lastPatientId;
+    }
+
+    public Date getUpdated() {
+        return this.updated;
+    }
+
+    public void setUpdated(Date updated) {
+        this.updated = updated;
+    }
+
+    public String getState() {
+        return this.state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+}
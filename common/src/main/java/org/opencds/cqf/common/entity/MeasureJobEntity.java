@@ -0,0 +1,172 @@
+package org.opencds.cqf.common.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * An asynchronous measure operation. The job row outlives the request that created it so that
+ * clients can poll for its status and collect the encoded result once it has finished. The server
+ * running the job is recorded with the time it last reported the job alive, so that servers
+ * sharing the database can tell a job running elsewhere from one that was lost.
+ */
+@Entity
+@Table(name = "CQF_MEASURE_JOB")
+public class MeasureJobEntity implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_ERROR_LENGTH = 4000;
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETE, FAILED
+    }
+
+    @Id
+    @Column(name = "JOB_ID", length = 36)
+    private String id;
+
+    @Column(name = "OPERATION", length = 100, nullable = false)
+    private String operation;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "STATUS", length = 20, nullable = false)
+    private Status status;
+
+    @Column(name = "PROCESSED")
+    private Integer processed;
+
+    @Column(name = "TOTAL")
+    private Integer total;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED", nullable = false)
+    private Date created;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "STARTED")
+    private Date started;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "FINISHED")
+    private Date finished;
+
+    @Column(name = "NODE_ID", length = 100)
+    private String nodeId;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "HEARTBEAT")
+    private Date heartbeat;
+
+    @Column(name = "ERROR", length = MAX_ERROR_LENGTH)
+    private String error;
+
+    @Lob
+    @Column(name = "RESULT_DATA")
+    private String result;
+
+    public String getId() {
+        return this.id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOperation() {
+        return this.operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Integer getProcessed() {
+        return this.processed;
+    }
+
+    public void setProcessed(Integer processed) {
+        this.processed = processed;
+    }
+
+    public Integer getTotal() {
+        return this.total;
+    }
+
+    public void setTotal(Integer total) {
+        this.total = total;
+    }
+
+    public Date getCreated() {
+        return this.created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+    public Date getStarted() {
+        return this.started;
+    }
+
+    public void setStarted(Date started) {
+        this.started = started;
+    }
+
+    public Date getFinished() {
+        return this.finished;
+    }
+
+    public void setFinished(Date finished) {
+        this.finished = finished;
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public Date getHeartbeat() {
+        return this.heartbeat;
+    }
+
+    public void setHeartbeat(Date heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public String getError() {
+        return this.error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getResult() {
+        return this.result;
+    }
+
+    public void setResult(String result) {
+        this.result = result;
+    }
+}
@@ -0,0 +1,92 @@
+package org.opencds.cqf.common.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * The stored result of evaluating a measure for a single patient. Results are keyed by the
+ * evaluation run (measure and library version, library source, evaluated resource mode,
+ * measurement period and product line) so that later runs can reuse them for patients whose data
+ * has not changed.
+ */
+@Entity
+@Table(name = "CQF_MEASURE_RESULT", uniqueConstraints = {
+        @UniqueConstraint(name = "IDX_CQF_MEASURE_RESULT_PAT", columnNames = { "RUN_KEY", "PATIENT_ID" })
+}, indexes = {
+        @Index(name = "IDX_CQF_MEASURE_RESULT_RUN", columnList = "RUN_KEY")
+})
+public class MeasureResultEntity implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_KEY_LENGTH = 500;
+
+    @Id
+    @SequenceGenerator(name = "SEQ_CQF_MEASURE_RESULT_ID", sequenceName = "SEQ_CQF_MEASURE_RESULT_ID")
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "SEQ_CQF_MEASURE_RESULT_ID")
+    @Column(name = "PID")
+    private Long id;
+
+    @Column(name = "RUN_KEY", length = MAX_KEY_LENGTH, nullable = false)
+    private String runKey;
+
+    @Column(name = "PATIENT_ID", length = 100, nullable = false)
+    private String patientId;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "EVALUATED", nullable = false)
+    private Date evaluated;
+
+    @Lob
+    @Column(name = "RESULT_DATA")
+    private String result;
+
+    public Long getId() {
+        return this.id;
+    }
+
+    public String getRunKey() {
+        return this.runKey;
+    }
+
+    public void setRunKey(String runKey) {
+        this.runKey = runKey;
+    }
+
+    public String getPatientId() {
+        return this.patientId;
+    }
+
+    public void setPatientId(String patientId) {
+        this.patientId = patientId;
+    }
+
+    public Date getEvaluated() {
+        return this.evaluated;
+    }
+
+    public void setEvaluated(Date evaluated) {
+        this.evaluated = evaluated;
+    }
+
+    public String getResult() {
+        return this.result;
+    }
+
+    public void setResult(String result) {
+        this.result = result;
+    }
+}
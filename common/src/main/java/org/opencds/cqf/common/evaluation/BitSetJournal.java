@@ -0,0 +1,59 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Records the bits changed while a patient is evaluated, so that the changes can be undone when
+ * the evaluation of the patient is abandoned part way, such as when the evaluation runs out of
+ * its budget. Not thread-safe, each accumulator has its own journal.
+ */
+public class BitSetJournal {
+
+    private List<BitSet> sets = new ArrayList<>();
+    private List<Integer> bits = new ArrayList<>();
+    private BitSet previous = new BitSet();
+    private List<Runnable> undoActions = new ArrayList<>();
+
+    public void set(BitSet set, int bit) {
+        record(set, bit);
+        set.set(bit);
+    }
+
+    public void clear(BitSet set, int bit) {
+        record(set, bit);
+        set.clear(bit);
+    }
+
+    // Runs the action when the changes are rolled back, for state that is not held in bit sets
+    public void onRollback(Runnable action) {
+        this.undoActions.add(action);
+    }
+
+    // Keeps the changes recorded so far
+    public void commit() {
+        this.sets.clear();
+        this.bits.clear();
+        this.previous.clear();
+        this.undoActions.clear();
+    }
+
+    // Undoes the changes recorded since the last commit, latest first
+    public void rollback() {
+        for (int i = this.sets.size() - 1; i >= 0; i--) {
+            this.sets.get(i).set(this.bits.get(i), this.previous.get(i));
+        }
+        for (int i = this.undoActions.size() - 1; i >= 0; i--) {
+            this.undoActions.get(i).run();
+        }
+
+        commit();
+    }
+
+    private void record(BitSet set, int bit) {
+        this.previous.set(this.sets.size(), set.get(bit));
+        this.sets.add(set);
+        this.bits.add(bit);
+    }
+}
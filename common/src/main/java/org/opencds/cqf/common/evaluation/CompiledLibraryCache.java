@@ -0,0 +1,124 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
+
+/**
+ * Process-wide cache of compiled libraries, so that a library is translated once rather than by
+ * every request that loads it. Libraries are keyed by name, version and a hash of their source,
+ * so an updated library is compiled again, and the least recently used library is evicted once
+ * the cache holds library_cache.size libraries. Compiled libraries are only read by the engine,
+ * so they are shared between requests and threads.
+ */
+public class CompiledLibraryCache {
+
+    private static Map<String, Library> libraries;
+    private static AtomicLong hits = new AtomicLong();
+    private static AtomicLong misses = new AtomicLong();
+
+    public static int getMaxSize() {
+        Integer size = HapiProperties.getLibraryCacheSize();
+        return size == null || size < 0 ? 0 : size;
+    }
+
+    private static synchronized Map<String, Library> getLibraries() {
+        if (libraries == null) {
+            int maxSize = getMaxSize();
+            libraries = new LinkedHashMap<String, Library>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Library> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        return libraries;
+    }
+
+    // The key of a library with the given source, or null when the source is unknown
+    public static String getKey(String id, String version, byte[] source) {
+        if (id == null || source == null) {
+            return null;
+        }
+
+        return id + "|" + (version != null ? version : "") + "|" + hash(source);
+    }
+
+    // Returns the compiled library, or null when it has not been compiled or was evicted
+    public static Library get(String key) {
+        if (key == null || getMaxSize() == 0) {
+            return null;
+        }
+
+        Library library;
+        Map<String, Library> cache = getLibraries();
+        synchronized (cache) {
+            library = cache.get(key);
+        }
+
+        if (library != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+
+        return library;
+    }
+
+    public static void put(String key, Library library) {
+        if (key == null || library == null || getMaxSize() == 0) {
+            return;
+        }
+
+        Map<String, Library> cache = getLibraries();
+        synchronized (cache) {
+            cache.put(key, library);
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static int getSize() {
+        Map<String, Library> cache = getLibraries();
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public static void clear() {
+        Map<String, Library> cache = getLibraries();
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256, fall back to the content itself regardless
+            return new String(content, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.Library;
+
+/**
+ * Compact binary form of a library in the engine's execution model, so that a stored library is
+ * read without parsing ELM xml. The codec is reflective: an object is written as its class and the
+ * values of its fields, and read by setting the same fields on a new instance of that class, which
+ * keeps the evaluator classes the engine's reader creates. Only the fields that are set are written,
+ * after a mask of which those are. Class names, strings and type names are written once and then
+ * referred to by number, as they repeat throughout a library.
+ *
+ * Each class is written with a hash of the names of its fields, and a class whose fields differ
+ * from those written, as after an engine upgrade, fails the read rather than being read wrongly.
+ * Only classes of the ELM execution model are read. The annotations of the ELM, which hold the
+ * CQL narrative, are not written as the engine does not read them.
+ */
+public class ElmCodec {
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte STRING = 3;
+    private static final byte STRING_REFERENCE = 4;
+    private static final byte INTEGER = 5;
+    private static final byte DECIMAL = 6;
+    private static final byte QNAME = 7;
+    private static final byte ENUM = 8;
+    private static final byte LIST = 9;
+    private static final byte OBJECT = 10;
+    private static final byte QNAME_REFERENCE = 11;
+
+    // Classes are written by their name within one of these packages
+    private static final String[] PACKAGES = { "org.cqframework.cql.elm.execution.", "org.opencds.cqf.cql.elm.execution." };
+    private static final String ANNOTATION_FIELD = "annotation";
+
+    private static final Map<Class<?>, ClassInfo> classInfos = new ConcurrentHashMap<>();
+
+    // The constructor and the written fields of a class, from the topmost superclass down and by name
+    private static class ClassInfo {
+        private Constructor<?> constructor;
+        private List<Field> fields = new ArrayList<>();
+        private int layout;
+
+        private ClassInfo(Class<?> type) {
+            // An enum constant is written by name
+            if (type.isEnum()) {
+                return;
+            }
+
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+                hierarchy.add(0, current);
+            }
+            StringBuilder names = new StringBuilder();
+            for (Class<?> current : hierarchy) {
+                List<Field> declared = new ArrayList<>();
+                for (Field field : current.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())
+                            && !field.isSynthetic() && !field.getName().equals(ANNOTATION_FIELD)) {
+                        declared.add(field);
+                    }
+                }
+                declared.sort(Comparator.comparing(Field::getName));
+
+                for (Field field : declared) {
+                    field.setAccessible(true);
+                    this.fields.add(field);
+                    names.append(current.getName()).append('.').append(field.getName()).append(';');
+                }
+            }
+            this.layout = names.toString().hashCode();
+
+            // The fields that are set are written as a mask of 64 bits
+            if (this.fields.size() > Long.SIZE) {
+                throw new IllegalArgumentException("Too many fields to encode in " + type.getName());
+            }
+
+            if (!Modifier.isAbstract(type.getModifiers())) {
+                try {
+                    this.constructor = type.getDeclaredConstructor();
+                    this.constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalArgumentException("No default constructor for " + type.getName());
+                }
+            }
+        }
+    }
+
+    private static ClassInfo getClassInfo(Class<?> type) {
+        return classInfos.computeIfAbsent(type, ClassInfo::new);
+    }
+
+    // Returns the package of a class of the ELM execution model, or -1 for other classes
+    private static int getPackage(String name) {
+        for (int i = 0; i < PACKAGES.length; i++) {
+            if (name.startsWith(PACKAGES[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public static byte[] encode(Library library) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Encoder encoder = new Encoder(new DataOutputStream(bytes));
+            encoder.writeValue(library);
+            encoder.output.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error encountered while encoding ELM: " + e.getMessage());
+        }
+    }
+
+    // Reads a library from the remaining bytes of the buffer
+    public static Library decode(ByteBuffer buffer) {
+        Object value = new Decoder(buffer).readValue();
+        if (!(value instanceof Library)) {
+            throw new IllegalArgumentException("Encoded ELM does not hold a library");
+        }
+
+        return (Library) value;
+    }
+
+    private static class Encoder {
+
+        private DataOutputStream output;
+        private Map<String, Integer> strings = new HashMap<>();
+        private Map<QName, Integer> names = new HashMap<>();
+        private Map<Class<?>, Integer> classes = new HashMap<>();
+
+        private Encoder(DataOutputStream output) {
+            this.output = output;
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                this.output.writeByte(NULL);
+            }
+            else if (value instanceof String) {
+                writeString((String) value);
+            }
+            else if (value instanceof Boolean) {
+                this.output.writeByte((Boolean) value ? TRUE : FALSE);
+            }
+            else if (value instanceof Integer) {
+                this.output.writeByte(INTEGER);
+                this.output.writeInt((Integer) value);
+            }
+            else if (value instanceof BigDecimal) {
+                this.output.writeByte(DECIMAL);
+                writeString(((BigDecimal) value).toString());
+            }
+            else if (value instanceof QName) {
+                writeName((QName) value);
+            }
+            else if (value instanceof Enum) {
+                Enum<?> constant = (Enum<?>) value;
+                this.output.writeByte(ENUM);
+                writeClass(constant.getDeclaringClass());
+                writeString(constant.name());
+            }
+            else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                this.output.writeByte(LIST);
+                writeLength(list.size());
+                for (Object item : list) {
+                    writeValue(item);
+                }
+            }
+            else if (getPackage(value.getClass().getName()) >= 0) {
+                this.output.writeByte(OBJECT);
+                ClassInfo info = writeClass(value.getClass());
+                try {
+                    Object[] values = new Object[info.fields.size()];
+                    long mask = 0;
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = info.fields.get(i).get(value);
+                        if (values[i] != null) {
+                            mask |= 1L << i;
+                        }
+                    }
+
+                    writeVarLong(mask);
+                    for (Object fieldValue : values) {
+                        if (fieldValue != null) {
+                            writeValue(fieldValue);
+                        }
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported value in ELM: " + value.getClass().getName());
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                this.output.writeByte(NULL);
+                return;
+            }
+
+            Integer index = this.strings.get(value);
+            if (index != null) {
+                this.output.writeByte(STRING_REFERENCE);
+                writeLength(index);
+                return;
+            }
+
+            this.strings.put(value, this.strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.output.writeByte(STRING);
+            writeLength(bytes.length);
+            this.output.write(bytes);
+        }
+
+        private void writeName(QName name) throws IOException {
+            Integer index = this.names.get(name);
+            if (index != null) {
+                this.output.writeByte(QNAME_REFERENCE);
+                writeLength(index);
+                return;
+            }
+
+            this.names.put(name, this.names.size());
+            this.output.writeByte(QNAME);
+            writeString(name.getNamespaceURI());
+            writeString(name.getLocalPart());
+            writeString(name.getPrefix());
+        }
+
+        // A class is written by name with the layout of its fields the first time, and by number after that
+        private ClassInfo writeClass(Class<?> type) throws IOException {
+            ClassInfo info = getClassInfo(type);
+            Integer index = this.classes.get(type);
+            if (index != null) {
+                writeLength(index + 1);
+                return info;
+            }
+
+            this.classes.put(type, this.classes.size());
+            int packageIndex = getPackage(type.getName());
+            writeLength(0);
+            writeLength(packageIndex);
+            writeString(type.getName().substring(PACKAGES[packageIndex].length()));
+            this.output.writeInt(info.layout);
+            return info;
+        }
+
+        private void writeLength(int value) throws IOException {
+            writeVarLong(value);
+        }
+
+        // Lengths, indexes and masks are written in 7 bit groups, most are a single byte
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                this.output.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.output.writeByte((int) value);
+        }
+    }
+
+    private static class Decoder {
+
+        private ByteBuffer buffer;
+        private List<String> strings = new ArrayList<>();
+        private List<QName> names = new ArrayList<>();
+        private List<Class<?>> classes = new ArrayList<>();
+
+        private Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private Object readValue() {
+            byte tag = this.buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case STRING:
+                case STRING_REFERENCE:
+                    return readString(tag);
+                case INTEGER:
+                    return this.buffer.getInt();
+                case DECIMAL:
+                    return new BigDecimal(readString());
+                case QNAME:
+                    QName name = new QName(readString(), readString(), readString());
+                    this.names.add(name);
+                    return name;
+                case QNAME_REFERENCE:
+                    return this.names.get(readLength());
+                case ENUM:
+                    return readEnum(readClass());
+                case LIST:
+                    int size = readLength();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                case OBJECT:
+                    return readObject();
+                default:
+                    throw new IllegalArgumentException("Invalid value tag in encoded ELM: " + tag);
+            }
+        }
+
+        private String readString() {
+            byte tag = this.buffer.get();
+            return tag == NULL ? null : readString(tag);
+        }
+
+        private String readString(byte tag) {
+            if (tag == STRING_REFERENCE) {
+                return this.strings.get(readLength());
+            }
+            if (tag != STRING) {
+                throw new IllegalArgumentException("Expected a string in encoded ELM, found tag " + tag);
+            }
+
+            byte[] bytes = new byte[readLength()];
+            this.buffer.get(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            this.strings.add(value);
+            return value;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private Object readEnum(int index) {
+            Class type = this.classes.get(index);
+            if (!type.isEnum()) {
+                throw new IllegalArgumentException(type.getName() + " is not an enum");
+            }
+
+            return Enum.valueOf(type, readString());
+        }
+
+        private Object readObject() {
+            int index = readClass();
+            ClassInfo info = getClassInfo(this.classes.get(index));
+            if (info.constructor == null) {
+                throw new IllegalArgumentException("Cannot create " + this.classes.get(index).getName());
+            }
+
+            try {
+                Object value = info.constructor.newInstance();
+                List<Field> fields = info.fields;
+                long mask = readVarLong();
+                for (int i = 0; i < fields.size(); i++) {
+                    if ((mask & (1L << i)) != 0) {
+                        fields.get(i).set(value, readValue());
+                    }
+                }
+                return value;
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalArgumentException("Unable to create " + this.classes.get(index).getName() + ": " + e.getMessage());
+            }
+        }
+
+        // Returns the number of the class, checking the layout of its fields the first time it is read
+        private int readClass() {
+            int index = readLength();
+            if (index > 0) {
+                return index - 1;
+            }
+
+            int packageIndex = readLength();
+            String simpleName = readString();
+            if (packageIndex >= PACKAGES.length || simpleName == null) {
+                throw new IllegalArgumentException("Encoded ELM refers to a class outside of the ELM");
+            }
+
+            String name = PACKAGES[packageIndex] + simpleName;
+            Class<?> type;
+            try {
+                type = Class.forName(name, false, Library.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Encoded ELM refers to an unknown class: " + name);
+            }
+
+            if (this.buffer.getInt() != getClassInfo(type).layout) {
+                throw new IllegalArgumentException("The fields of " + name + " differ from the encoded ELM");
+            }
+
+            this.classes.add(type);
+            return this.classes.size() - 1;
+        }
+
+        private int readLength() {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid length in encoded ELM");
+            }
+
+            return (int) value;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                byte next = this.buffer.get();
+                value |= (long) (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("Invalid length in encoded ELM");
+        }
+    }
+}
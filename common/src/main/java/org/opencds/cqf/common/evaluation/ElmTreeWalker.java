@@ -0,0 +1,78 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Walks the nodes of an ELM tree. The ELM classes do not share a visitor, so their children
+ * are found by reflection over the fields of each node.
+ */
+public class ElmTreeWalker {
+
+    private static final String ELM_PACKAGE = "org.cqframework.cql.elm.execution";
+
+    /*
+     * Visits the node and its descendants until the predicate matches. Nodes that cannot be
+     * inspected count as a match, so callers looking for a dependency err on the safe side.
+     */
+    public static boolean anyMatch(Object node, Predicate<Object> predicate) {
+        return anyMatch(node, predicate, new IdentityHashMap<>());
+    }
+
+    private static boolean anyMatch(Object node, Predicate<Object> predicate, Map<Object, Boolean> seen) {
+        if (node == null || seen.put(node, Boolean.TRUE) != null) {
+            return false;
+        }
+
+        if (node instanceof List) {
+            for (Object element : (List<?>) node) {
+                if (anyMatch(element, predicate, seen)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (!isElmNode(node.getClass())) {
+            return false;
+        }
+
+        if (predicate.test(node)) {
+            return true;
+        }
+
+        for (Class<?> type = node.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+
+                try {
+                    field.setAccessible(true);
+                    if (anyMatch(field.get(node), predicate, seen)) {
+                        return true;
+                    }
+                } catch (Exception e) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // The engine evaluators extend the ELM classes from their own packages
+    private static boolean isElmNode(Class<?> type) {
+        for (; type != null; type = type.getSuperclass()) {
+            if (type.getName().startsWith(ELM_PACKAGE)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
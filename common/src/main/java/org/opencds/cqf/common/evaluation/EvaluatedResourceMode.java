@@ -0,0 +1,59 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Controls how the resources evaluated while computing a MeasureReport are reported.
+ */
+public enum EvaluatedResourceMode {
+    NONE("none", "None", "Evaluated resources are not collected"),
+
+    REFERENCES("references", "References", "Only references to the evaluated resources are collected"),
+
+    FULL("full", "Full", "The evaluated resources are collected and contained in the report");
+
+    private String code;
+    private String display;
+    private String definition;
+
+    EvaluatedResourceMode(String code, String display, String definition) {
+        this.code = code;
+        this.display = display;
+        this.definition = definition;
+    }
+
+    private static final Map<String, EvaluatedResourceMode> lookup = new HashMap<>();
+
+    static {
+        for (EvaluatedResourceMode mode : EvaluatedResourceMode.values()) {
+            lookup.put(mode.toCode(), mode);
+        }
+    }
+
+    public static EvaluatedResourceMode fromCode(String code) {
+        if (code != null && !code.isEmpty()) {
+            if (lookup.containsKey(code)) {
+                return lookup.get(code);
+            }
+
+            throw new InvalidRequestException("Invalid evaluatedResources mode: " + code);
+        }
+
+        return null;
+    }
+
+    public String toCode() {
+        return this.code;
+    }
+
+    public String getDefinition() {
+        return this.definition;
+    }
+
+    public String getDisplay() {
+        return this.display;
+    }
+}
@@ -0,0 +1,157 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.exceptions.EvaluationBudgetExceededException;
+import org.opencds.cqf.common.helpers.ParameterHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds the time and the number of patients a measure evaluation may use. The evaluation takes
+ * each patient from the budget before evaluating it and checks the budget between criteria, so it
+ * stops cleanly with the patients evaluated so far once the budget runs out. The evaluation is
+ * also stopped when the client of the request disconnects, where the servlet container exposes
+ * the state of the connection. Shared by the workers of an evaluation.
+ */
+public class EvaluationBudget {
+
+    private static final Logger logger = LoggerFactory.getLogger(EvaluationBudget.class);
+
+    // The connection of the client is checked at most this often, in nanoseconds
+    private static final long CONNECTION_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private long timeoutMillis;
+    private long deadline;
+    private int maxPatients;
+    private AtomicInteger startedPatients = new AtomicInteger();
+    private AtomicInteger evaluatedPatients = new AtomicInteger();
+    private volatile String stopReason;
+    private ServletRequest clientRequest;
+    private volatile long nextConnectionCheck;
+
+    // A timeout or patient count of 0 or less is not bounded
+    public EvaluationBudget(long timeoutMillis, int maxPatients) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+        this.maxPatients = maxPatients;
+    }
+
+    /*
+     * Creates the budget of a request from its _timeout (in seconds) and _maxPatients parameters,
+     * falling back to the server defaults. Returns null when neither is bounded.
+     */
+    public static EvaluationBudget create(String timeout, String maxPatients) {
+        int timeoutSeconds = ParameterHelper.parseInteger("_timeout", timeout, HapiProperties.getEvaluationTimeoutSeconds());
+        int patients = ParameterHelper.parseInteger("_maxPatients", maxPatients, HapiProperties.getEvaluationMaxPatients());
+        if (timeoutSeconds <= 0 && patients <= 0) {
+            return null;
+        }
+
+        return new EvaluationBudget(TimeUnit.SECONDS.toMillis(Math.max(timeoutSeconds, 0)), patients);
+    }
+
+    // Stops the evaluation when the client of the request disconnects
+    public void watchClient(ServletRequest request) {
+        this.clientRequest = request;
+    }
+
+    /*
+     * Takes a patient from the budget before it is evaluated. Returns false, and the patient must
+     * not be evaluated, once the budget has run out.
+     */
+    public boolean startPatient() {
+        if (isExhausted()) {
+            return false;
+        }
+
+        if (this.maxPatients > 0 && this.startedPatients.incrementAndGet() > this.maxPatients) {
+            stop("the patient budget of " + this.maxPatients + " patients was reached");
+            return false;
+        }
+
+        return true;
+    }
+
+    // Counts a patient whose evaluation completed
+    public void patientEvaluated() {
+        this.evaluatedPatients.incrementAndGet();
+    }
+
+    // Checked between criteria, throws once the time has run out or the client has disconnected
+    public void check() {
+        if (isExhausted()) {
+            throw new EvaluationBudgetExceededException(this.stopReason);
+        }
+    }
+
+    public boolean isExhausted() {
+        if (this.stopReason != null) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if (now > this.deadline) {
+            stop("the time budget of " + this.timeoutMillis + " ms was exceeded");
+        }
+        else if (this.clientRequest != null && now > this.nextConnectionCheck) {
+            this.nextConnectionCheck = now + CONNECTION_CHECK_INTERVAL;
+            if (!isConnected(this.clientRequest)) {
+                stop("the client disconnected");
+            }
+        }
+
+        return this.stopReason != null;
+    }
+
+    public void stop(String reason) {
+        if (this.stopReason == null) {
+            this.stopReason = reason;
+            logger.info("Stopping evaluation after {} patients: {}", this.evaluatedPatients.get(), reason);
+        }
+    }
+
+    // Whether the evaluation was stopped before all of its patients were evaluated
+    public boolean isStopped() {
+        return this.stopReason != null;
+    }
+
+    public String getStopReason() {
+        return this.stopReason;
+    }
+
+    public int getEvaluatedPatients() {
+        return this.evaluatedPatients.get();
+    }
+
+    /*
+     * The servlet API has no way to ask whether the client is still connected, so this asks the
+     * container's request for its end point (Jetty) by reflection. Containers that do not expose
+     * it are treated as connected.
+     */
+    private static boolean isConnected(ServletRequest request) {
+        while (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+
+        try {
+            Object channel = invoke(request, "getHttpChannel");
+            Object endPoint = channel != null ? invoke(channel, "getEndPoint") : null;
+            Object open = endPoint != null ? invoke(endPoint, "isOpen") : null;
+            return !Boolean.FALSE.equals(open);
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private static Object invoke(Object target, String methodName) throws Exception {
+        Method method = target.getClass().getMethod(methodName);
+        return method.invoke(target);
+    }
+}
@@ -0,0 +1,129 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.entity.MeasureCheckpointEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Saves the progress of a population evaluation every N patients or T seconds, whichever comes
+ * first, and lets a later evaluation with the same checkpoint id continue from the last save.
+ * Patients are enumerated in id order, so a resumed evaluation skips the patients up to the
+ * last one saved by the checkpoint and produces the same result as an uninterrupted one.
+ * Patients added before that one since the checkpoint are left out, as if they had been added
+ * after the evaluation.
+ */
+public class EvaluationCheckpointer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EvaluationCheckpointer.class);
+
+    private MeasureCheckpointStore store;
+    private String checkpointId;
+    private String runKey;
+    private int patientInterval;
+    private long timeInterval;
+
+    private int position;
+    private String lastPatientId;
+    private int unsaved;
+    private long lastSaved;
+
+    public EvaluationCheckpointer(MeasureCheckpointStore store, String checkpointId, String runKey) {
+        this(store, checkpointId, runKey, HapiProperties.getEvaluationCheckpointPatients(),
+                HapiProperties.getEvaluationCheckpointSeconds() * 1000L);
+    }
+
+    public EvaluationCheckpointer(MeasureCheckpointStore store, String checkpointId, String runKey, int patientInterval, long timeInterval) {
+        if (checkpointId.length() > MeasureCheckpointEntity.MAX_ID_LENGTH) {
+            throw new InvalidRequestException("Checkpoint ids are limited to " + MeasureCheckpointEntity.MAX_ID_LENGTH + " characters");
+        }
+
+        this.store = store;
+        this.checkpointId = checkpointId;
+        this.runKey = runKey;
+        this.patientInterval = patientInterval;
+        this.timeInterval = timeInterval;
+    }
+
+    /*
+     * Returns the state saved by the last checkpoint, or null when the evaluation starts from
+     * the beginning. A checkpoint saved for a different evaluation is not resumed.
+     */
+    public String restore() {
+        this.lastSaved = System.currentTimeMillis();
+        MeasureCheckpointEntity checkpoint = this.store.getCheckpoint(this.checkpointId);
+        if (checkpoint == null) {
+            return null;
+        }
+
+        if (!checkpoint.getRunKey().equals(this.runKey)) {
+            throw new InvalidRequestException(String.format(
+                    "Checkpoint %s was saved by an evaluation with different parameters", this.checkpointId));
+        }
+
+        this.position = checkpoint.getPosition();
+        this.lastPatientId = checkpoint.getLastPatientId();
+        logger.info("Resuming evaluation from checkpoint {} after {} patients", this.checkpointId, this.position);
+        return checkpoint.getState();
+    }
+
+    /*
+     * Advances past the patients that were evaluated before the checkpoint was saved, up to and
+     * including the last patient saved, so patients added or removed before it do not shift the
+     * patients that are evaluated.
+     */
+    public Iterator<String> skipEvaluated(Iterator<String> patients) {
+        if (this.lastPatientId == null) {
+            return patients;
+        }
+
+        while (patients.hasNext()) {
+            if (this.lastPatientId.equals(patients.next())) {
+                return patients;
+            }
+        }
+
+        throw new InvalidRequestException(String.format(
+                "Patient %s saved by checkpoint %s no longer exists", this.lastPatientId, this.checkpointId));
+    }
+
+    /*
+     * Records a batch of evaluated patients and saves a checkpoint when one is due. The state is
+     * only encoded when it is saved.
+     */
+    public void batchEvaluated(List<String> batch, Supplier<String> state) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        this.position += batch.size();
+        this.lastPatientId = batch.get(batch.size() - 1);
+        this.unsaved += batch.size();
+
+        long now = System.currentTimeMillis();
+        if ((this.patientInterval > 0 && this.unsaved >= this.patientInterval)
+                || (this.timeInterval > 0 && now - this.lastSaved >= this.timeInterval)) {
+            this.store.saveCheckpoint(this.checkpointId, this.runKey, this.position, this.lastPatientId, state.get(), new Date(now));
+            this.unsaved = 0;
+            this.lastSaved = now;
+            logger.debug("Saved checkpoint {} after {} patients", this.checkpointId, this.position);
+        }
+    }
+
+    // The number of patients evaluated, including those before the restored checkpoint
+    public int getPosition() {
+        return this.position;
+    }
+
+    // The evaluation finished, its checkpoint is no longer needed
+    public void complete() {
+        this.store.deleteCheckpoint(this.checkpointId);
+    }
+}
@@ -0,0 +1,82 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencds.cqf.common.config.HapiProperties;
+
+/**
+ * Shared, bounded worker pool for evaluation work that is split across threads.
+ * The pool is sized by the evaluation.parallelism property so that concurrent
+ * requests cannot together exceed the configured number of evaluation threads.
+ */
+public class EvaluationExecutor {
+
+    private static ExecutorService executor;
+
+    public static int getParallelism() {
+        Integer parallelism = HapiProperties.getEvaluationParallelism();
+        return parallelism == null || parallelism < 1 ? 1 : parallelism;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "cqf-evaluation-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            executor = Executors.newFixedThreadPool(getParallelism(), threadFactory);
+        }
+
+        return executor;
+    }
+
+    /*
+     * Runs the tasks on the shared pool and returns their results in task order.
+     * If any task fails the remaining tasks are cancelled and the failure is rethrown.
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        return invokeAll(getExecutor(), tasks);
+    }
+
+    static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Evaluation was interrupted", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Evaluation failed: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        return results;
+    }
+
+    private static <T> void cancel(List<Future<T>> futures) {
+        for (Future<T> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.execution.LibraryLoader;
+import org.opencds.cqf.cql.terminology.TerminologyProvider;
+
+/**
+ * Records where the time of an evaluation goes for the _explain mode of the evaluation
+ * operations: the retrieves of the libraries as declared in the ELM, each query those retrieves
+ * executed with its row count and time, the time spent per phase and per expression definition,
+ * and how often expressions and libraries were answered from their caches.
+ *
+ * The recorder is attached to the thread of the request, so the retrieve provider and the
+ * evaluation can find it without it being passed through the engine. An explained evaluation
+ * therefore runs on that thread only.
+ */
+public class EvaluationExplainer {
+
+    public static final String PHASE_LIBRARY = "library";
+    public static final String PHASE_TERMINOLOGY = "terminology";
+    public static final String PHASE_RETRIEVE = "retrieve";
+    public static final String PHASE_EVALUATION = "evaluation";
+
+    private static final ThreadLocal<EvaluationExplainer> current = new ThreadLocal<>();
+
+    private Map<String, Statistics> phases = new LinkedHashMap<>();
+    private Map<String, Statistics> queries = new LinkedHashMap<>();
+    private Map<String, Statistics> expressions = new LinkedHashMap<>();
+    private Map<String, Statistics> caches = new LinkedHashMap<>();
+    private List<RetrievePlan> retrieves = new ArrayList<>();
+    private String patientId;
+
+    // The recorder attached to the current thread, or null when the evaluation is not explained
+    public static EvaluationExplainer current() {
+        return current.get();
+    }
+
+    public void attach() {
+        current.set(this);
+    }
+
+    public void detach() {
+        current.remove();
+    }
+
+    // Queries of the current patient are recorded with the patient replaced, so they group across patients
+    public void setPatient(String patientId) {
+        this.patientId = patientId;
+    }
+
+    public void recordPhase(String phase, long nanos) {
+        this.phases.computeIfAbsent(phase, x -> new Statistics()).add(nanos, 0, false);
+    }
+
+    public void recordQuery(String dataType, String query, int rows, long nanos) {
+        String pattern = replacePatient(query);
+        this.queries.computeIfAbsent(dataType + (pattern != null ? pattern : ""), x -> new Statistics(dataType, pattern))
+                .add(nanos, rows, false);
+        recordPhase(PHASE_RETRIEVE, nanos);
+    }
+
+    private String replacePatient(String query) {
+        if (this.patientId == null || query == null) {
+            return query;
+        }
+
+        return query.replace("Patient%2F" + this.patientId, "Patient%2F{patient}")
+                .replace("Patient/" + this.patientId, "Patient/{patient}");
+    }
+
+    public void recordExpression(String name, boolean cached, long nanos) {
+        this.expressions.computeIfAbsent(name, x -> new Statistics(null, name)).add(nanos, 0, cached);
+    }
+
+    // Records a lookup in one of the caches other than the expression cache, such as the library cache
+    public void recordCacheLookup(String cache, boolean hit) {
+        this.caches.computeIfAbsent(cache, x -> new Statistics(null, cache)).add(0, 0, hit);
+    }
+
+    /*
+     * Records the time of an evaluation. The retrieves and terminology calls made during the
+     * evaluation are recorded as phases of their own, so the evaluation phase is what remains.
+     */
+    public void recordEvaluation(long nanos) {
+        nanos -= getPhaseNanos(PHASE_RETRIEVE) + getPhaseNanos(PHASE_TERMINOLOGY);
+        recordPhase(PHASE_EVALUATION, Math.max(nanos, 0));
+    }
+
+    /*
+     * Wraps the terminology provider in a proxy that records the time of each call as the
+     * terminology phase.
+     */
+    public TerminologyProvider wrap(TerminologyProvider provider) {
+        if (provider == null) {
+            return null;
+        }
+
+        InvocationHandler handler = (proxy, method, args) -> {
+            long start = System.nanoTime();
+            try {
+                return method.invoke(provider, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                recordPhase(PHASE_TERMINOLOGY, System.nanoTime() - start);
+            }
+        };
+
+        return (TerminologyProvider) Proxy.newProxyInstance(TerminologyProvider.class.getClassLoader(),
+                new Class<?>[] { TerminologyProvider.class }, handler);
+    }
+
+    // Records the retrieves declared by the library and the libraries it includes
+    public void addRetrievePlan(Library library, LibraryLoader libraryLoader) {
+        collectRetrieves(library, libraryLoader, new HashSet<>());
+    }
+
+    private void collectRetrieves(Library library, LibraryLoader libraryLoader, Set<String> visited) {
+        if (library == null || library.getIdentifier() == null
+                || !visited.add(library.getIdentifier().getId() + "|" + library.getIdentifier().getVersion())) {
+            return;
+        }
+
+        String libraryName = library.getIdentifier().getId();
+        ElmTreeWalker.anyMatch(library.getStatements(), node -> {
+            if (node instanceof Retrieve && ((Retrieve) node).getDataType() != null) {
+                this.retrieves.add(new RetrievePlan(libraryName, (Retrieve) node));
+            }
+            return false;
+        });
+
+        if (library.getIncludes() != null && libraryLoader != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                collectRetrieves(
+                        libraryLoader.load(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion())),
+                        libraryLoader, visited);
+            }
+        }
+    }
+
+    public Map<String, Statistics> getPhases() {
+        return this.phases;
+    }
+
+    public List<Statistics> getQueries() {
+        return new ArrayList<>(this.queries.values());
+    }
+
+    public List<Statistics> getExpressions() {
+        return new ArrayList<>(this.expressions.values());
+    }
+
+    public List<Statistics> getCaches() {
+        return new ArrayList<>(this.caches.values());
+    }
+
+    public List<RetrievePlan> getRetrieves() {
+        return this.retrieves;
+    }
+
+    public int getExpressionCount() {
+        int count = 0;
+        for (Statistics statistics : this.expressions.values()) {
+            count += statistics.getCount();
+        }
+        return count;
+    }
+
+    public int getExpressionCacheHits() {
+        int hits = 0;
+        for (Statistics statistics : this.expressions.values()) {
+            hits += statistics.getCacheHits();
+        }
+        return hits;
+    }
+
+    private long getPhaseNanos(String phase) {
+        Statistics statistics = this.phases.get(phase);
+        return statistics != null ? statistics.getNanos() : 0;
+    }
+
+    // The count, time, rows and cache hits of a phase, query or expression
+    public static class Statistics {
+
+        private String dataType;
+        private String name;
+        private int count;
+        private long nanos;
+        private long rows;
+        private int cacheHits;
+
+        private Statistics() {
+        }
+
+        private Statistics(String dataType, String name) {
+            this.dataType = dataType;
+            this.name = name;
+        }
+
+        private void add(long nanos, int rows, boolean cached) {
+            this.count++;
+            this.nanos += nanos;
+            this.rows += rows;
+            if (cached) {
+                this.cacheHits++;
+            }
+        }
+
+        public String getDataType() {
+            return this.dataType;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        public double getMillis() {
+            return this.nanos / 1000000.0;
+        }
+
+        public long getRows() {
+            return this.rows;
+        }
+
+        public int getCacheHits() {
+            return this.cacheHits;
+        }
+    }
+
+    // A retrieve as declared in the ELM of a library
+    public static class RetrievePlan {
+
+        private String library;
+        private String dataType;
+        private String templateId;
+        private String codeProperty;
+        private String codes;
+        private String dateProperty;
+
+        private RetrievePlan(String library, Retrieve retrieve) {
+            this.library = library;
+            this.dataType = retrieve.getDataType().getLocalPart();
+            this.templateId = retrieve.getTemplateId();
+            this.codeProperty = retrieve.getCodeProperty();
+            this.codes = describe(retrieve.getCodes());
+            this.dateProperty = retrieve.getDateProperty();
+        }
+
+        private static String describe(Expression codes) {
+            if (codes == null) {
+                return null;
+            }
+
+            if (codes instanceof ValueSetRef) {
+                return "valueset " + ((ValueSetRef) codes).getName();
+            }
+
+            return codes.getClass().getSimpleName();
+        }
+
+        public String getLibrary() {
+            return this.library;
+        }
+
+        public String getDataType() {
+            return this.dataType;
+        }
+
+        public String getTemplateId() {
+            return this.templateId;
+        }
+
+        public String getCodeProperty() {
+            return this.codeProperty;
+        }
+
+        public String getCodes() {
+            return this.codes;
+        }
+
+        public String getDateProperty() {
+            return this.dateProperty;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the work done by a running evaluation so that it can be reported while the evaluation
+ * is still in progress. Updated by the evaluation workers and read by other threads.
+ */
+public class EvaluationProgress {
+
+    private AtomicInteger processed = new AtomicInteger();
+    private volatile Integer total;
+
+    public int getProcessed() {
+        return this.processed.get();
+    }
+
+    public void addProcessed(int count) {
+        this.processed.addAndGet(count);
+    }
+
+    // The total amount of work, or null if it is not known
+    public Integer getTotal() {
+        return this.total;
+    }
+
+    public void setTotal(Integer total) {
+        this.total = total;
+    }
+}
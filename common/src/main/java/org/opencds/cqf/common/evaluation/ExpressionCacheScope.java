@@ -0,0 +1,206 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.execution.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scopes the expression cache of a Context to a single patient. Cached expression results
+ * are kept while criteria are evaluated for the same patient, so shared definitions such as
+ * "Initial Population" are only evaluated once per patient, and are discarded together with
+ * the evaluated resources when the context switches to another patient. Results of definitions
+ * that do not depend on the patient can be pinned, so they are kept for the whole evaluation.
+ */
+public class ExpressionCacheScope {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpressionCacheScope.class);
+
+    // The engine does not expose a way to clear the cache, see cqf-ruler github issue #153
+    private static final Field EXPRESSIONS = getExpressionsField();
+    // Not public in every engine version
+    private static final Method CURRENT_LIBRARY = getCurrentLibraryMethod();
+
+    private Context context;
+    private Set<String> pinned;
+    private String patientId;
+    private int patientCount;
+    private int evaluationCount;
+
+    public ExpressionCacheScope(Context context) {
+        this(context, Collections.emptySet());
+    }
+
+    public ExpressionCacheScope(Context context, Set<String> pinned) {
+        this.context = context;
+        this.pinned = pinned;
+        if (EXPRESSIONS == null) {
+            // Results cannot be safely cached if they cannot be discarded between patients
+            this.context.setExpressionCaching(false);
+        }
+    }
+
+    public Context getContext() {
+        return this.context;
+    }
+
+    /*
+     * Makes the patient the current context value. The expression cache and the evaluated
+     * resources are only reset when the patient actually changes.
+     */
+    public Context enterPatient(String patientId) {
+        this.evaluationCount++;
+        if (this.patientCount > 0 && Objects.equals(this.patientId, patientId)) {
+            return this.context;
+        }
+
+        clearExpressionCache();
+        this.context.clearEvaluatedResources();
+        this.context.setContextValue("Patient", patientId);
+        this.patientId = patientId;
+        this.patientCount++;
+
+        return this.context;
+    }
+
+    // Resets the expression cache on the next evaluation, even for the same patient, such as when parameters change
+    public void invalidate() {
+        this.patientId = null;
+    }
+
+    // The number of patient switches, and so of expression cache resets
+    public int getPatientCount() {
+        return this.patientCount;
+    }
+
+    // The number of criteria evaluated within this scope
+    public int getEvaluationCount() {
+        return this.evaluationCount;
+    }
+
+    // Whether the result of the expression of the current library is in the expression cache
+    public boolean isCached(String expression) {
+        if (EXPRESSIONS == null) {
+            return false;
+        }
+
+        try {
+            Map<?, ?> expressions = (Map<?, ?>) EXPRESSIONS.get(this.context);
+            if (expressions == null) {
+                return false;
+            }
+
+            for (Map.Entry<?, ?> entry : expressions.entrySet()) {
+                if (entry.getKey() instanceof String) {
+                    return expressions.containsKey(expression);
+                }
+                if (entry.getValue() instanceof Map && isCurrentLibrary(entry.getKey())) {
+                    return ((Map<?, ?>) entry.getValue()).containsKey(expression);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            logger.warn("Unable to read the expression cache: {}", e.getMessage());
+        }
+
+        return false;
+    }
+
+    private void clearExpressionCache() {
+        if (EXPRESSIONS == null) {
+            return;
+        }
+
+        try {
+            Map<?, ?> expressions = (Map<?, ?>) EXPRESSIONS.get(this.context);
+            if (expressions != null) {
+                clearUnpinned(expressions);
+            }
+        } catch (IllegalAccessException e) {
+            logger.warn("Unable to clear the expression cache: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Depending on the engine version the cache is keyed by expression name, or by library
+     * identifier with a map of expression names for each library. Pinned names only apply
+     * to the library being evaluated.
+     */
+    private void clearUnpinned(Map<?, ?> expressions) {
+        if (this.pinned.isEmpty()) {
+            expressions.clear();
+            return;
+        }
+
+        Iterator<? extends Map.Entry<?, ?>> entries = expressions.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<?, ?> entry = entries.next();
+            if (entry.getKey() instanceof String) {
+                if (!this.pinned.contains(entry.getKey())) {
+                    entries.remove();
+                }
+            }
+            else if (entry.getValue() instanceof Map && isCurrentLibrary(entry.getKey())) {
+                ((Map<?, ?>) entry.getValue()).keySet().retainAll(this.pinned);
+            }
+            else {
+                entries.remove();
+            }
+        }
+    }
+
+    private boolean isCurrentLibrary(Object key) {
+        Library library = getCurrentLibrary(this.context);
+        if (library == null || library.getIdentifier() == null || !(key instanceof VersionedIdentifier)) {
+            return false;
+        }
+
+        VersionedIdentifier identifier = (VersionedIdentifier) key;
+        return Objects.equals(identifier.getId(), library.getIdentifier().getId())
+                && Objects.equals(identifier.getVersion(), library.getIdentifier().getVersion());
+    }
+
+    // The library being evaluated by the context, which is the measure library outside of expression evaluation
+    public static Library getCurrentLibrary(Context context) {
+        if (CURRENT_LIBRARY == null) {
+            return null;
+        }
+
+        try {
+            return (Library) CURRENT_LIBRARY.invoke(context);
+        } catch (Exception e) {
+            logger.warn("Unable to read the current library: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static Method getCurrentLibraryMethod() {
+        try {
+            Method method = Context.class.getDeclaredMethod("getCurrentLibrary");
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            logger.warn("Pinned expressions are not supported by this engine version: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static Field getExpressionsField() {
+        try {
+            Field field = Context.class.getDeclaredField("expressions");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            logger.warn("Expression caching is not supported by this engine version: {}", e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Retrieve;
+
+/**
+ * Classifies the expression definitions of a library by whether their result depends on the
+ * patient being evaluated. A definition is patient-independent when it is not declared in the
+ * Patient context, or when it is but neither retrieves data nor references a patient-dependent
+ * definition, such as intervals derived from the "Measurement Period" parameter.
+ */
+public class ExpressionContextClassifier {
+
+    private Map<String, List<ExpressionDef>> definitions = new HashMap<>();
+    private Map<String, Boolean> dependent = new HashMap<>();
+    private Set<String> visiting = new HashSet<>();
+
+    private ExpressionContextClassifier(Library library) {
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                this.definitions.computeIfAbsent(def.getName(), x -> new ArrayList<>()).add(def);
+            }
+        }
+    }
+
+    /*
+     * Returns the names of the expression definitions of the library whose results can be
+     * kept for a whole evaluation rather than for a single patient.
+     */
+    public static Set<String> getPatientIndependentDefinitions(Library library) {
+        if (library == null) {
+            return Collections.emptySet();
+        }
+
+        ExpressionContextClassifier classifier = new ExpressionContextClassifier(library);
+        Set<String> independent = new HashSet<>();
+        for (Map.Entry<String, List<ExpressionDef>> entry : classifier.definitions.entrySet()) {
+            // Function results are not cached, so only plain definitions are of interest
+            if (entry.getValue().size() == 1 && !(entry.getValue().get(0) instanceof FunctionDef)
+                    && !classifier.isPatientDependent(entry.getKey())) {
+                independent.add(entry.getKey());
+            }
+        }
+
+        return independent;
+    }
+
+    private boolean isPatientDependent(String name) {
+        Boolean result = this.dependent.get(name);
+        if (result != null) {
+            return result;
+        }
+
+        // Recursive references are treated as patient-dependent
+        if (!this.visiting.add(name)) {
+            return true;
+        }
+
+        result = false;
+        for (ExpressionDef def : this.definitions.getOrDefault(name, Collections.emptyList())) {
+            boolean patientContext = def.getContext() == null || "Patient".equals(def.getContext());
+            if (isPatientDependent(def.getExpression(), patientContext)) {
+                result = true;
+                break;
+            }
+        }
+
+        this.visiting.remove(name);
+        this.dependent.put(name, result);
+        return result;
+    }
+
+    private boolean isPatientDependent(Object expression, boolean patientContext) {
+        return ElmTreeWalker.anyMatch(expression, node -> {
+            if (node instanceof Retrieve) {
+                return patientContext;
+            }
+
+            if (node instanceof ExpressionRef) {
+                ExpressionRef ref = (ExpressionRef) node;
+                // Definitions in included libraries are not classified
+                return ref.getLibraryName() != null || isPatientDependent(ref.getName());
+            }
+
+            return false;
+        });
+    }
+}
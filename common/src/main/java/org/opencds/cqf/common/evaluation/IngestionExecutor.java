@@ -0,0 +1,47 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencds.cqf.common.config.HapiProperties;
+
+/**
+ * Shared, bounded worker pool for committing submitted data. The pool is sized by
+ * the submit_data.parallelism property and is separate from the evaluation pool,
+ * so that a large submission does not hold the threads of measure evaluations.
+ */
+public class IngestionExecutor {
+
+    private static ExecutorService executor;
+
+    public static int getParallelism() {
+        Integer parallelism = HapiProperties.getSubmitDataParallelism();
+        return parallelism == null || parallelism < 1 ? 1 : parallelism;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "cqf-ingestion-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            executor = Executors.newFixedThreadPool(getParallelism(), threadFactory);
+        }
+
+        return executor;
+    }
+
+    /*
+     * Runs the tasks on the ingestion pool and returns their results in task order.
+     * If any task fails the remaining tasks are cancelled and the failure is rethrown.
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        return EvaluationExecutor.invokeAll(getExecutor(), tasks);
+    }
+}
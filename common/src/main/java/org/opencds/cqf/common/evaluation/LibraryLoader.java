@@ -6,16 +6,20 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.cql2elm.CqlTranslatorException.ErrorSeverity;
 import org.cqframework.cql.cql2elm.LibraryBuilder.SignatureLevel;
+import org.cqframework.cql.elm.execution.IncludeDef;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
-import javax.xml.bind.JAXBException;
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import static org.opencds.cqf.common.helpers.TranslatorHelper.*;
 
@@ -23,7 +27,9 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
 
     private LibraryManager libraryManager;
     private ModelManager modelManager;
+    private LibrarySourceProvider<?, ?> sourceProvider;
     private Map<String, Library> libraries = new HashMap<>();
+    private Map<String, String> keys = new HashMap<>();
 
     // private static final Logger logger =
     // LoggerFactory.getLogger(LibraryLoader.class);
@@ -41,11 +47,18 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
     }
 
     public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager) {
+        this(libraryManager, modelManager, null);
+    }
+
+    // Libraries are loaded from the ELM stored by the source provider when it matches their CQL
+    public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager, LibrarySourceProvider<?, ?> sourceProvider) {
         this.libraryManager = libraryManager;
         this.modelManager = modelManager;
+        this.sourceProvider = sourceProvider;
     }
 
-    private Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
+    // Synchronized so contexts evaluating on separate threads can share one loader
+    private synchronized Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
         if (libraryIdentifier == null) {
             throw new IllegalArgumentException("Library identifier is null.");
         }
@@ -58,13 +71,81 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
 
         Library library = libraries.get(mangledId);
         if (library == null) {
-            library = loadLibrary(libraryIdentifier);
+            // Libraries compiled by earlier requests are shared, as long as their source is unchanged
+            byte[] source = getLibrarySource(libraryIdentifier);
+            String key = CompiledLibraryCache.getKey(libraryIdentifier.getId(), libraryIdentifier.getVersion(), source);
+            library = CompiledLibraryCache.get(key);
+            EvaluationExplainer explainer = EvaluationExplainer.current();
+            if (explainer != null && key != null) {
+                explainer.recordCacheLookup("library", library != null);
+            }
+            if (library == null) {
+                library = LibraryStore.read(key);
+            }
+            if (library == null) {
+                library = loadElm(libraryIdentifier, source);
+                if (library == null) {
+                    library = loadLibrary(libraryIdentifier);
+                }
+                // The library is kept in the library store, so it is not translated again after a restart
+                LibraryStore.write(key, library);
+            }
+            CompiledLibraryCache.put(key, library);
             libraries.put(mangledId, library);
+            if (key != null) {
+                keys.put(mangledId, key);
+            }
         }
 
         return library;
     }
 
+    /*
+     * Returns a hash of the sources of the library and the libraries it includes, which changes
+     * whenever any of those sources changes, even without a new version. Returns null when the
+     * source of one of the libraries is not known.
+     */
+    public synchronized String getContentHash(VersionedIdentifier libraryIdentifier) {
+        StringBuilder keys = new StringBuilder();
+        if (!collectKeys(libraryIdentifier, keys, new HashSet<>())) {
+            return null;
+        }
+
+        return CompiledLibraryCache.hash(keys.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean collectKeys(VersionedIdentifier libraryIdentifier, StringBuilder keys, Set<String> visited) {
+        String mangledId = this.mangleIdentifer(libraryIdentifier);
+        if (!visited.add(mangledId)) {
+            return true;
+        }
+
+        Library library = resolveLibrary(libraryIdentifier);
+        String key = this.keys.get(mangledId);
+        if (key == null) {
+            return false;
+        }
+        keys.append(key).append('\n');
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                if (!collectKeys(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()), keys, visited)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private byte[] getLibrarySource(VersionedIdentifier libraryIdentifier) {
+        try (InputStream source = libraryManager.getLibrarySourceLoader().getLibrarySource(toElmIdentifier(libraryIdentifier))) {
+            return source != null ? source.readAllBytes() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private String mangleIdentifer(VersionedIdentifier libraryIdentifier) {
         String id = libraryIdentifier.getId();
         String version = libraryIdentifier.getVersion();
@@ -72,10 +153,35 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
         return version == null ? id : id + "-" + version;
     }
 
-    private Library loadLibrary(VersionedIdentifier libraryIdentifier) {
-        org.hl7.elm.r1.VersionedIdentifier identifier = new org.hl7.elm.r1.VersionedIdentifier()
+    /*
+     * Reads the ELM stored with the library when it was compiled from the library's current CQL.
+     * Returns null, and the library is translated instead, when there is no such ELM.
+     */
+    private Library loadElm(VersionedIdentifier libraryIdentifier, byte[] source) {
+        if (this.sourceProvider == null || source == null) {
+            return null;
+        }
+
+        byte[] elm = this.sourceProvider.getElm(toElmIdentifier(libraryIdentifier), CompiledLibraryCache.hash(source));
+        if (elm == null) {
+            return null;
+        }
+
+        try {
+            return readLibrary(new ByteArrayInputStream(elm));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static org.hl7.elm.r1.VersionedIdentifier toElmIdentifier(VersionedIdentifier libraryIdentifier) {
+        return new org.hl7.elm.r1.VersionedIdentifier()
                 .withId(libraryIdentifier.getId()).withSystem(libraryIdentifier.getSystem())
                 .withVersion(libraryIdentifier.getVersion());
+    }
+
+    private Library loadLibrary(VersionedIdentifier libraryIdentifier) {
+        org.hl7.elm.r1.VersionedIdentifier identifier = toElmIdentifier(libraryIdentifier);
 
         ArrayList<CqlTranslatorException> errors = new ArrayList<>();
         org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, ErrorSeverity.Error,
@@ -88,19 +194,8 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
         if (CqlTranslatorException.HasErrors(errors)) {
             throw new IllegalArgumentException(errorsToString(errors));
         }
-        try {
-            CqlTranslator translator = getTranslator("", libraryManager, modelManager);
-
-            if (translator.getErrors().size() > 0) {
-                throw new IllegalArgumentException(errorsToString(translator.getErrors()));
-            }
 
-            return readLibrary(new ByteArrayInputStream(
-                    translator.convertToXml(translatedLibrary).getBytes(StandardCharsets.UTF_8)));
-        } catch (JAXBException e) {
-            throw new IllegalArgumentException(String.format("Errors occurred translating library %s%s.",
-                    identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
-        }
+        return toExecutionLibrary(translatedLibrary);
     }
 
     @Override
@@ -0,0 +1,178 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk store of compiled libraries in the library_store.directory, so that libraries are not
+ * translated again after a restart. Each library is a file named by the hash of its
+ * CompiledLibraryCache key, holding the key and the library encoded by ElmCodec, which is read
+ * without parsing ELM xml. The files are memory-mapped and the library is decoded straight from
+ * the mapping, so servers on the same host that share the directory also share the library bytes
+ * in the page cache. A file is only mapped while its library is read; the compiled library is
+ * then kept by the CompiledLibraryCache.
+ *
+ * Files are written once, to a temporary file that is then moved into place, and never changed
+ * or deleted by the server. A library whose source changes is stored in a new file, so files of
+ * old library versions stay behind until removed. Any file can be deleted at any time, including
+ * while servers are running: a missing library is translated and stored again when next used.
+ */
+public class LibraryStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryStore.class);
+
+    // "CQLE" followed by the format version
+    private static final int MAGIC = 0x43514C45;
+    private static final short FORMAT_VERSION = 2;
+    private static final String EXTENSION = ".elmb";
+
+    public static boolean isEnabled() {
+        return !HapiProperties.getLibraryStoreDirectory().trim().isEmpty();
+    }
+
+    private static Path getDirectory() {
+        return Paths.get(HapiProperties.getLibraryStoreDirectory().trim());
+    }
+
+    private static Path getPath(String key) {
+        return getDirectory().resolve(CompiledLibraryCache.hash(key.getBytes(StandardCharsets.UTF_8)) + EXTENSION);
+    }
+
+    // Returns the stored library, or null when it is not stored or cannot be read
+    public static Library read(String key) {
+        if (key == null || !isEnabled()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = map(getPath(key));
+            if (buffer == null || !key.equals(readKey(buffer))) {
+                return null;
+            }
+
+            return readLibrary(buffer);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read stored library {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    // Stores a library, unless it is already stored
+    public static void write(String key, Library library) {
+        if (key == null || library == null || !isEnabled()) {
+            return;
+        }
+
+        Path path = getPath(key);
+        if (Files.exists(path)) {
+            return;
+        }
+
+        try {
+            byte[] elm = ElmCodec.encode(library);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(elm.length + key.length() + 16);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(MAGIC);
+            output.writeShort(FORMAT_VERSION);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            output.writeShort(keyBytes.length);
+            output.write(keyBytes);
+            output.writeInt(elm.length);
+            output.write(elm);
+            output.flush();
+
+            Files.createDirectories(path.getParent());
+            Path temporary = Files.createTempFile(path.getParent(), "library", ".tmp");
+            Files.write(temporary, bytes.toByteArray());
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to store library {}: {}", key, e.getMessage());
+        }
+    }
+
+    // Reads the stored libraries into the library cache on a background thread when preload is enabled
+    public static void startPreload() {
+        if (!isEnabled() || !HapiProperties.getLibraryStorePreload()) {
+            return;
+        }
+
+        Thread thread = new Thread(LibraryStore::preload, "cqf-library-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void preload() {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(getDirectory(), "*" + EXTENSION)) {
+            for (Path file : files) {
+                try {
+                    ByteBuffer buffer = map(file);
+                    String key = buffer != null ? readKey(buffer) : null;
+                    if (key != null) {
+                        CompiledLibraryCache.put(key, readLibrary(buffer));
+                        count++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Unable to preload stored library {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to preload stored libraries: {}", e.getMessage());
+        }
+
+        logger.info("Preloaded {} stored libraries", count);
+    }
+
+    /*
+     * Maps the file for reading, or returns null when there is no file. The mapping is not kept:
+     * it is released once the library has been read from it and the buffer is no longer used.
+     */
+    private static ByteBuffer map(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // Reads the header and leaves the buffer at the length of the encoded library
+    private static String readKey(ByteBuffer buffer) {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getShort() != FORMAT_VERSION) {
+            return null;
+        }
+
+        byte[] key = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static Library readLibrary(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer elm = buffer.slice();
+        elm.limit(length);
+        return ElmCodec.decode(elm);
+    }
+
+}
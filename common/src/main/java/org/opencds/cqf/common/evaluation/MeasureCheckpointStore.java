@@ -0,0 +1,50 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.opencds.cqf.common.entity.MeasureCheckpointEntity;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Persists the checkpoints of long-running population evaluations in the server database.
+ */
+public class MeasureCheckpointStore {
+
+    @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+    private EntityManager entityManager;
+
+    // The checkpoint, or null if none has been saved with the id
+    @Transactional(propagation = Propagation.REQUIRED, readOnly = true)
+    public MeasureCheckpointEntity getCheckpoint(String id) {
+        return this.entityManager.find(MeasureCheckpointEntity.class, id);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void saveCheckpoint(String id, String runKey, int position, String lastPatientId, String state, Date updated) {
+        MeasureCheckpointEntity checkpoint = this.entityManager.find(MeasureCheckpointEntity.class, id);
+        if (checkpoint == null) {
+            checkpoint = new MeasureCheckpointEntity();
+            checkpoint.setId(id);
+            this.entityManager.persist(checkpoint);
+        }
+
+        checkpoint.setRunKey(runKey);
+        checkpoint.setPosition(position);
+        checkpoint.setLastPatientId(lastPatientId);
+        checkpoint.setState(state);
+        checkpoint.setUpdated(updated);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void deleteCheckpoint(String id) {
+        MeasureCheckpointEntity checkpoint = this.entityManager.find(MeasureCheckpointEntity.class, id);
+        if (checkpoint != null) {
+            this.entityManager.remove(checkpoint);
+        }
+    }
+}
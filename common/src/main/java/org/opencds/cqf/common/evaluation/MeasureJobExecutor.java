@@ -0,0 +1,181 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.entity.MeasureJobEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * Runs measure operations requested with "Prefer: respond-async" in the background. Jobs run
+ * on their own small, bounded pool, one evaluation thread per job, so that queued batch work
+ * cannot take the threads used by interactive requests. Jobs that do not fit in the queue are
+ * rejected rather than held indefinitely.
+ *
+ * Each job is owned by the server that queued it. That server reports its unfinished jobs alive
+ * in the database every HEARTBEAT_SECONDS, with their progress, so any server sharing the
+ * database can report on them. A job is only taken as lost, and failed, once its heartbeat is
+ * older than STALE_SECONDS.
+ */
+public class MeasureJobExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasureJobExecutor.class);
+
+    public static final String PREFER_HEADER = "Prefer";
+    public static final String RESPOND_ASYNC = "respond-async";
+
+    private static final int HEARTBEAT_SECONDS = 30;
+    private static final int STALE_SECONDS = 5 * HEARTBEAT_SECONDS;
+
+    private MeasureJobStore store;
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService heartbeat;
+    private String nodeId = UUID.randomUUID().toString();
+    // Progress of the jobs queued or running on this server
+    private Map<String, EvaluationProgress> active = new ConcurrentHashMap<>();
+
+    public MeasureJobExecutor(MeasureJobStore store, int maxRunning, int maxQueued) {
+        this.store = store;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(maxRunning, 1), Math.max(maxRunning, 1), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(maxQueued, 1)), runnable -> {
+                    Thread thread = new Thread(runnable, "cqf-measure-job-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cqf-measure-job-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeat.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void heartbeat() {
+        if (this.active.isEmpty()) {
+            return;
+        }
+
+        try {
+            this.store.heartbeat(this.active, new Date());
+        } catch (RuntimeException e) {
+            logger.warn("Unable to record the heartbeat of measure jobs: {}", e.getMessage());
+        }
+    }
+
+    public static boolean isAsyncRequested(RequestDetails requestDetails) {
+        if (requestDetails == null) {
+            return false;
+        }
+
+        List<String> values = requestDetails.getHeaders(PREFER_HEADER);
+        if (values == null) {
+            return false;
+        }
+
+        for (String value : values) {
+            for (String preference : value.split(",")) {
+                if (RESPOND_ASYNC.equalsIgnoreCase(preference.trim())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Queues the job and returns its id. The job reports its progress through the progress it is
+     * given, and its result is stored encoded with the parser.
+     */
+    public String submit(String operation, IParser parser, Function<EvaluationProgress, IBaseResource> job) {
+        String id = UUID.randomUUID().toString();
+        EvaluationProgress progress = new EvaluationProgress();
+        this.active.put(id, progress);
+        this.store.createJob(id, operation, this.nodeId, new Date());
+
+        try {
+            this.executor.execute(() -> run(id, parser, job, progress));
+        } catch (RejectedExecutionException e) {
+            this.active.remove(id);
+            this.store.failJob(id, "Rejected because too many measure jobs are queued", progress, new Date());
+            throw new UnclassifiedServerFailureException(503, "Too many measure jobs are queued, try again later");
+        }
+
+        logger.info("Queued {} job {}", operation, id);
+        return id;
+    }
+
+    private void run(String id, IParser parser, Function<EvaluationProgress, IBaseResource> job, EvaluationProgress progress) {
+        try {
+            this.store.startJob(id, new Date());
+            IBaseResource result = job.apply(progress);
+            this.store.completeJob(id, parser.encodeResourceToString(result), progress, new Date());
+            logger.info("Completed measure job {}", id);
+        } catch (Exception e) {
+            logger.error("Measure job {} failed", id, e);
+            this.store.failJob(id, e.getMessage() != null ? e.getMessage() : e.getClass().getName(), progress, new Date());
+        } finally {
+            this.active.remove(id);
+        }
+    }
+
+    /*
+     * Returns the job with its current progress, or null if there is no job with the id. Jobs of
+     * other servers report the progress of their last heartbeat. Unfinished jobs whose server has
+     * stopped reporting them alive were lost when that server stopped, and are failed.
+     */
+    public MeasureJobEntity getJob(String id) {
+        // Read before the job, jobs only leave the active map once their final state is stored
+        EvaluationProgress progress = this.active.get(id);
+        MeasureJobEntity job = this.store.getJob(id);
+        if (job == null) {
+            return null;
+        }
+
+        if (progress != null) {
+            job.setProcessed(progress.getProcessed());
+            job.setTotal(progress.getTotal());
+        }
+        else if (!MeasureJobStore.isFinished(job) && isStale(job)) {
+            this.store.failStaleJob(id, getStaleBefore(), "The job was interrupted, its server stopped running it", new Date());
+            job = this.store.getJob(id);
+        }
+
+        return job;
+    }
+
+    private boolean isStale(MeasureJobEntity job) {
+        Date heartbeat = job.getHeartbeat() != null ? job.getHeartbeat() : job.getCreated();
+        return heartbeat.before(getStaleBefore());
+    }
+
+    private static Date getStaleBefore() {
+        return new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(STALE_SECONDS));
+    }
+
+    public void shutdown() {
+        this.heartbeat.shutdownNow();
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,110 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Date;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.opencds.cqf.common.entity.MeasureJobEntity;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Persists the state of asynchronous measure jobs in the server database.
+ */
+public class MeasureJobStore {
+
+    @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+    private EntityManager entityManager;
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void createJob(String id, String operation, String nodeId, Date created) {
+        MeasureJobEntity job = new MeasureJobEntity();
+        job.setId(id);
+        job.setOperation(operation);
+        job.setStatus(MeasureJobEntity.Status.QUEUED);
+        job.setProcessed(0);
+        job.setCreated(created);
+        job.setNodeId(nodeId);
+        job.setHeartbeat(created);
+        this.entityManager.persist(job);
+    }
+
+    // Records that the unfinished jobs are still alive, with their progress so far
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void heartbeat(Map<String, EvaluationProgress> jobs, Date heartbeat) {
+        for (Map.Entry<String, EvaluationProgress> entry : jobs.entrySet()) {
+            MeasureJobEntity job = this.entityManager.find(MeasureJobEntity.class, entry.getKey());
+            if (job != null && !isFinished(job)) {
+                job.setHeartbeat(heartbeat);
+                job.setProcessed(entry.getValue().getProcessed());
+                job.setTotal(entry.getValue().getTotal());
+            }
+        }
+    }
+
+    /*
+     * Fails the job if it is unfinished and its server has not reported it alive since staleBefore.
+     * The heartbeat is checked again here, so a job that has just reported in is left running.
+     */
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void failStaleJob(String id, Date staleBefore, String error, Date finished) {
+        MeasureJobEntity job = this.entityManager.find(MeasureJobEntity.class, id);
+        if (job == null || isFinished(job)) {
+            return;
+        }
+
+        Date heartbeat = job.getHeartbeat() != null ? job.getHeartbeat() : job.getCreated();
+        if (heartbeat.before(staleBefore)) {
+            failJob(id, error, null, finished);
+        }
+    }
+
+    public static boolean isFinished(MeasureJobEntity job) {
+        return job.getStatus() == MeasureJobEntity.Status.COMPLETE || job.getStatus() == MeasureJobEntity.Status.FAILED;
+    }
+
+    // The job, or null if there is no job with the id
+    @Transactional(propagation = Propagation.REQUIRED, readOnly = true)
+    public MeasureJobEntity getJob(String id) {
+        return this.entityManager.find(MeasureJobEntity.class, id);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void startJob(String id, Date started) {
+        MeasureJobEntity job = this.entityManager.find(MeasureJobEntity.class, id);
+        if (job != null) {
+            job.setStatus(MeasureJobEntity.Status.RUNNING);
+            job.setStarted(started);
+        }
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void completeJob(String id, String result, EvaluationProgress progress, Date finished) {
+        MeasureJobEntity job = this.entityManager.find(MeasureJobEntity.class, id);
+        if (job != null) {
+            job.setStatus(MeasureJobEntity.Status.COMPLETE);
+            job.setResult(result);
+            job.setProcessed(progress.getProcessed());
+            job.setTotal(progress.getTotal());
+            job.setFinished(finished);
+        }
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void failJob(String id, String error, EvaluationProgress progress, Date finished) {
+        MeasureJobEntity job = this.entityManager.find(MeasureJobEntity.class, id);
+        if (job != null) {
+            job.setStatus(MeasureJobEntity.Status.FAILED);
+            job.setError(error != null && error.length() > MeasureJobEntity.MAX_ERROR_LENGTH
+                    ? error.substring(0, MeasureJobEntity.MAX_ERROR_LENGTH) : error);
+            if (progress != null) {
+                job.setProcessed(progress.getProcessed());
+                job.setTotal(progress.getTotal());
+            }
+            job.setFinished(finished);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.opencds.cqf.common.entity.MeasureResultEntity;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Persists per-patient measure results in the server database so that incremental evaluations
+ * only need to re-evaluate the patients whose data changed since their result was stored.
+ */
+public class MeasureResultStore {
+
+    @PersistenceContext(type = PersistenceContextType.TRANSACTION)
+    private EntityManager entityManager;
+
+    /*
+     * Builds the key that identifies results which can be reused between runs. Keys that do not
+     * fit in the key column are replaced by their digest.
+     */
+    public static String createRunKey(String... parts) {
+        String key = String.join("|", parts);
+        if (key.length() <= MeasureResultEntity.MAX_KEY_LENGTH) {
+            return key;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder builder = new StringBuilder("sha256:");
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unable to create measure result key", e);
+        }
+    }
+
+    // The time of the oldest stored result of the run, or null if nothing is stored
+    @Transactional(propagation = Propagation.REQUIRED, readOnly = true)
+    public Date getOldestResult(String runKey) {
+        return this.entityManager
+                .createQuery("SELECT MIN(r.evaluated) FROM MeasureResultEntity r WHERE r.runKey = :runKey", Date.class)
+                .setParameter("runKey", runKey)
+                .getSingleResult();
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED, readOnly = true)
+    public Map<String, MeasureResultEntity> getResults(String runKey, Collection<String> patientIds) {
+        Map<String, MeasureResultEntity> results = new HashMap<>();
+        if (patientIds.isEmpty()) {
+            return results;
+        }
+
+        for (MeasureResultEntity result : this.entityManager
+                .createQuery("SELECT r FROM MeasureResultEntity r WHERE r.runKey = :runKey AND r.patientId IN :patientIds", MeasureResultEntity.class)
+                .setParameter("runKey", runKey)
+                .setParameter("patientIds", patientIds)
+                .getResultList()) {
+            results.put(result.getPatientId(), result);
+        }
+
+        return results;
+    }
+
+    /*
+     * Moves the evaluated time of stored results forward once they are known to be unchanged up to
+     * that time, so the next run only looks for changes made since then
+     */
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void touchResults(String runKey, Collection<String> patientIds, Date evaluated) {
+        if (patientIds.isEmpty()) {
+            return;
+        }
+
+        this.entityManager
+                .createQuery("UPDATE MeasureResultEntity r SET r.evaluated = :evaluated WHERE r.runKey = :runKey AND r.patientId IN :patientIds AND r.evaluated < :evaluated")
+                .setParameter("evaluated", evaluated)
+                .setParameter("runKey", runKey)
+                .setParameter("patientIds", patientIds)
+                .executeUpdate();
+    }
+
+    /*
+     * Stores the encoded results by patient id, replacing any result already stored for the run
+     */
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void saveResults(String runKey, Map<String, String> results, Date evaluated) {
+        Map<String, MeasureResultEntity> existing = getResults(runKey, results.keySet());
+        for (Map.Entry<String, String> entry : results.entrySet()) {
+            MeasureResultEntity result = existing.get(entry.getKey());
+            if (result == null) {
+                result = new MeasureResultEntity();
+                result.setRunKey(runKey);
+                result.setPatientId(entry.getKey());
+                result.setEvaluated(evaluated);
+                result.setResult(entry.getValue());
+                this.entityManager.persist(result);
+            }
+            else {
+                result.setEvaluated(evaluated);
+                result.setResult(entry.getValue());
+                this.entityManager.merge(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns dense ordinals to the ids of the members found during a measure evaluation, so that
+ * population membership can be held in bit sets rather than sets of ids. One index is shared
+ * by all of the workers of an evaluation so that their bit sets can be combined directly.
+ *
+ * The workers look up every patient and resource, so lookups do not lock: ids already indexed
+ * are read from a concurrent map, and a new id takes the next ordinal from a counter. The ids
+ * by ordinal are kept in an array, which only a new id locks to store into, and are read once
+ * the workers are done, to build and encode the results.
+ */
+public class MemberIndex {
+
+    private Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+    private String[] ids = new String[1024];
+    private AtomicInteger next = new AtomicInteger();
+
+    public int indexOf(String id) {
+        Integer ordinal = this.ordinals.get(id);
+        if (ordinal != null) {
+            return ordinal;
+        }
+
+        return this.ordinals.computeIfAbsent(id, x -> {
+            int assigned = this.next.getAndIncrement();
+            store(assigned, x);
+            return assigned;
+        });
+    }
+
+    // The ordinal of an id that has already been indexed, or -1
+    public int find(String id) {
+        Integer ordinal = this.ordinals.get(id);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    private synchronized void store(int ordinal, String id) {
+        if (ordinal >= this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, Math.max(this.ids.length * 2, ordinal + 1));
+        }
+        this.ids[ordinal] = id;
+    }
+
+    public synchronized String getId(int ordinal) {
+        return ordinal >= 0 && ordinal < this.ids.length ? this.ids[ordinal] : null;
+    }
+
+    public int size() {
+        return this.next.get();
+    }
+
+    public synchronized List<String> getIds() {
+        int size = size();
+        List<String> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(this.ids[i]);
+        }
+
+        return result;
+    }
+
+    public synchronized List<String> getIds(BitSet members) {
+        List<String> result = new ArrayList<>(members.cardinality());
+        for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+            result.add(getId(i));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,171 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.cql.execution.LibraryLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Finds the patients whose data has changed since a point in time, with the time of each
+ * patient's latest change. Only the resource types retrieved by a measure's libraries are
+ * searched, by last updated date, and each changed resource is mapped to its patients through
+ * the Patient compartment definition.
+ */
+public class PatientChangeDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientChangeDetector.class);
+
+    private static final int PAGE_SIZE = 500;
+
+    private DaoRegistry registry;
+    private FhirContext fhirContext;
+
+    public PatientChangeDetector(DaoRegistry registry, FhirContext fhirContext) {
+        this.registry = registry;
+        this.fhirContext = fhirContext;
+    }
+
+    public Map<String, Date> getChangedPatients(Collection<String> dataTypes, Date since) {
+        Map<String, Date> changed = new HashMap<>();
+        FhirTerser terser = this.fhirContext.newTerser();
+
+        for (String dataType : dataTypes) {
+            RuntimeResourceDefinition definition;
+            try {
+                definition = this.fhirContext.getResourceDefinition(dataType);
+            } catch (Exception e) {
+                logger.warn("Unable to detect changes to unknown resource type {}", dataType);
+                continue;
+            }
+
+            List<String> paths = getCompartmentPaths(definition);
+            if (!"Patient".equals(dataType) && paths.isEmpty()) {
+                continue;
+            }
+
+            SearchParameterMap map = new SearchParameterMap();
+            map.setLastUpdated(new DateRangeParam(new DateParam(ParamPrefixEnum.GREATERTHAN, since), null));
+            IBundleProvider results = this.registry.getResourceDao(dataType).search(map);
+
+            for (int from = 0; ; from += PAGE_SIZE) {
+                List<IBaseResource> page = results.getResources(from, from + PAGE_SIZE);
+                if (page == null || page.isEmpty()) {
+                    break;
+                }
+
+                for (IBaseResource resource : page) {
+                    // Resources without a last updated date are taken to have changed just now
+                    Date updated = resource.getMeta() != null && resource.getMeta().getLastUpdated() != null
+                            ? resource.getMeta().getLastUpdated() : new Date();
+                    if ("Patient".equals(dataType)) {
+                        addChange(changed, resource.getIdElement().getIdPart(), updated);
+                        continue;
+                    }
+
+                    for (String path : paths) {
+                        for (IBaseReference reference : terser.getValues(resource, path, IBaseReference.class)) {
+                            IIdType id = reference.getReferenceElement();
+                            if (id != null && "Patient".equals(id.getResourceType())) {
+                                addChange(changed, id.getIdPart(), updated);
+                            }
+                        }
+                    }
+                }
+
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private static void addChange(Map<String, Date> changed, String patientId, Date updated) {
+        Date latest = changed.get(patientId);
+        if (latest == null || latest.before(updated)) {
+            changed.put(patientId, updated);
+        }
+    }
+
+    /*
+     * Returns the resource types retrieved by the library and the libraries it includes
+     */
+    public static Set<String> getRetrievedDataTypes(Library library, LibraryLoader libraryLoader) {
+        Set<String> dataTypes = new HashSet<>();
+        collectRetrievedDataTypes(library, libraryLoader, dataTypes, new HashSet<>());
+        return dataTypes;
+    }
+
+    private static void collectRetrievedDataTypes(Library library, LibraryLoader libraryLoader, Set<String> dataTypes, Set<String> visited) {
+        if (library == null || library.getIdentifier() == null
+                || !visited.add(library.getIdentifier().getId() + "|" + library.getIdentifier().getVersion())) {
+            return;
+        }
+
+        ElmTreeWalker.anyMatch(library.getStatements(), node -> {
+            if (node instanceof Retrieve && ((Retrieve) node).getDataType() != null) {
+                dataTypes.add(((Retrieve) node).getDataType().getLocalPart());
+            }
+            return false;
+        });
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                collectRetrievedDataTypes(
+                        libraryLoader.load(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion())),
+                        libraryLoader, dataTypes, visited);
+            }
+        }
+    }
+
+    // The paths of the references that place resources of this type in a patient's compartment
+    private List<String> getCompartmentPaths(RuntimeResourceDefinition definition) {
+        List<String> paths = new ArrayList<>();
+        for (RuntimeSearchParam searchParam : definition.getSearchParamsForCompartmentName("Patient")) {
+            if (searchParam.getPath() == null) {
+                continue;
+            }
+
+            for (String path : searchParam.getPath().split("\\|")) {
+                path = path.trim();
+                // Drop FHIRPath type filters such as .where(resolve() is Patient)
+                int filter = path.indexOf(".where(");
+                if (filter >= 0) {
+                    path = path.substring(0, filter);
+                }
+                if (!path.isEmpty() && !path.contains("(") && !path.contains(" ")) {
+                    paths.add(path);
+                }
+            }
+        }
+
+        return paths;
+    }
+}
@@ -0,0 +1,104 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.opencds.cqf.cql.data.DataProvider;
+import org.opencds.cqf.cql.runtime.Code;
+
+/**
+ * Keeps the results of the retrieves made for the current patient, so that evaluating the same
+ * patient again, such as for another measurement period, does not read the patient's data again.
+ * The results are discarded when a retrieve is made for another patient. Not thread-safe, each
+ * execution context should have its own cache.
+ */
+public class RetrieveCache implements InvocationHandler {
+
+    private DataProvider provider;
+    private Object contextValue;
+    private Map<List<Object>, List<Object>> results = new HashMap<>();
+
+    private RetrieveCache(DataProvider provider) {
+        this.provider = provider;
+    }
+
+    /*
+     * Wraps the data provider in a proxy that caches its retrieves. The engine's provider
+     * interface differs between versions, so every other method is passed through unchanged.
+     */
+    public static DataProvider wrap(DataProvider provider) {
+        return (DataProvider) Proxy.newProxyInstance(DataProvider.class.getClassLoader(),
+                new Class<?>[] { DataProvider.class }, new RetrieveCache(provider));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, ...)
+        if (!method.getName().equals("retrieve") || args == null || args.length < 7 || !"Patient".equals(args[0])) {
+            return invokeProvider(method, args);
+        }
+
+        if (!Objects.equals(this.contextValue, args[2])) {
+            this.results.clear();
+            this.contextValue = args[2];
+        }
+
+        List<Object> key = new ArrayList<>();
+        for (Object arg : args) {
+            key.add(getKey(arg));
+        }
+
+        List<Object> result = this.results.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        result = new ArrayList<>();
+        Iterable<?> retrieved = (Iterable<?>) invokeProvider(method, args);
+        if (retrieved != null) {
+            for (Object resource : retrieved) {
+                result.add(resource);
+            }
+        }
+
+        this.results.put(key, result);
+        return result;
+    }
+
+    private Object invokeProvider(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(this.provider, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * Codes are compared by value, as each evaluation creates new Code instances. Other values
+     * that do not compare by value, such as date ranges, only match the same instance, so a
+     * retrieve filtered by the measurement period is never shared between periods.
+     */
+    private static Object getKey(Object arg) {
+        if (arg instanceof Code) {
+            Code code = (Code) arg;
+            return code.getSystem() + "|" + code.getVersion() + "|" + code.getCode();
+        }
+
+        if (arg instanceof Iterable) {
+            List<Object> key = new ArrayList<>();
+            for (Object element : (Iterable<?>) arg) {
+                key.add(getKey(element));
+            }
+            return key;
+        }
+
+        return arg;
+    }
+}
@@ -0,0 +1,127 @@
+package org.opencds.cqf.common.evaluation;
+
+/**
+ * Keeps the count, sum, minimum, maximum, mean and variance of a stream of measure observations
+ * without storing the observations. The mean and variance are updated with Welford's method, and
+ * partial statistics are combined with the pairwise form of the same update, so workers and
+ * shards can each aggregate their own observations.
+ */
+public class RunningStatistics {
+
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double mean;
+    // The sum of squared differences from the mean
+    private double m2;
+
+    public void add(double value) {
+        this.count++;
+        this.sum += value;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+
+        double delta = value - this.mean;
+        this.mean += delta / this.count;
+        this.m2 += delta * (value - this.mean);
+    }
+
+    public RunningStatistics merge(RunningStatistics other) {
+        if (other.count == 0) {
+            return this;
+        }
+
+        long count = this.count + other.count;
+        double delta = other.mean - this.mean;
+        this.mean += delta * other.count / count;
+        this.m2 += other.m2 + delta * delta * this.count * other.count / count;
+        this.count = count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+
+        return this;
+    }
+
+    public RunningStatistics copy() {
+        RunningStatistics copy = new RunningStatistics();
+        copy.count = this.count;
+        copy.sum = this.sum;
+        copy.min = this.min;
+        copy.max = this.max;
+        copy.mean = this.mean;
+        copy.m2 = this.m2;
+        return copy;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public double getSum() {
+        return this.sum;
+    }
+
+    public double getMin() {
+        return this.min;
+    }
+
+    public double getMax() {
+        return this.max;
+    }
+
+    public double getMean() {
+        return this.mean;
+    }
+
+    // The population variance of the observations
+    public double getVariance() {
+        return this.count > 0 ? this.m2 / this.count : 0;
+    }
+
+    /*
+     * Returns the aggregate of the observations named by a cqfm aggregate method code, average
+     * when no method is given, or null when there are no observations or the method needs the
+     * observations themselves (median).
+     */
+    public Double getAggregate(String aggregateMethod) {
+        if (this.count == 0) {
+            return null;
+        }
+
+        if (aggregateMethod == null) {
+            return this.mean;
+        }
+
+        switch (aggregateMethod) {
+            case "average": return this.mean;
+            case "sum": return this.sum;
+            case "minimum": return this.min;
+            case "maximum": return this.max;
+            case "count": return (double) this.count;
+            default: return null;
+        }
+    }
+
+    // Encodes the statistics as "<count>,<sum>,<min>,<max>,<mean>,<m2>"
+    public String encode() {
+        return this.count + "," + this.sum + "," + this.min + "," + this.max + "," + this.mean + "," + this.m2;
+    }
+
+    public static RunningStatistics decode(String encoded) {
+        String[] parts = encoded.split(",");
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("Invalid encoded statistics: " + encoded);
+        }
+
+        RunningStatistics statistics = new RunningStatistics();
+        statistics.count = Long.parseLong(parts[0]);
+        statistics.sum = Double.parseDouble(parts[1]);
+        statistics.min = Double.parseDouble(parts[2]);
+        statistics.max = Double.parseDouble(parts[3]);
+        statistics.mean = Double.parseDouble(parts[4]);
+        statistics.m2 = Double.parseDouble(parts[5]);
+        return statistics;
+    }
+}
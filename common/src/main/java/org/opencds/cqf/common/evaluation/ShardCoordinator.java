@@ -0,0 +1,184 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.AdditionalRequestHeadersInterceptor;
+
+/**
+ * Evaluates a measure report across several servers. The patient id space is split into shards,
+ * each shard is evaluated by a worker through the regular $evaluate-measure operation, and the
+ * partial reports are merged. The merge is associative, so a failed shard can be retried on
+ * another worker on its own and the partial reports can be combined in any grouping.
+ */
+public class ShardCoordinator<T extends IBaseResource> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    public static final String TERMINOLOGY_SOURCE_HEADER = "X-Terminology-Source";
+    public static final String TERMINOLOGY_USER_HEADER = "X-Terminology-User";
+    public static final String TERMINOLOGY_PASS_HEADER = "X-Terminology-Pass";
+
+    // Clients get their own context so that their long timeouts do not apply to other clients
+    private static Map<FhirVersionEnum, FhirContext> clientContexts = new ConcurrentHashMap<>();
+
+    private FhirContext fhirContext;
+    private Class<T> reportType;
+    private BinaryOperator<T> merger;
+    private List<String> workers;
+    private int shardCount;
+    private int retries;
+    private Map<String, String> headers = new LinkedHashMap<>();
+
+    public ShardCoordinator(FhirContext fhirContext, Class<T> reportType, BinaryOperator<T> merger, List<String> workers) {
+        this(fhirContext, reportType, merger, workers, HapiProperties.getEvaluationShardCount(), HapiProperties.getEvaluationShardRetries());
+    }
+
+    public ShardCoordinator(FhirContext fhirContext, Class<T> reportType, BinaryOperator<T> merger, List<String> workers,
+                            int shardCount, int retries) {
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException("Sharded evaluation requires at least one worker");
+        }
+
+        this.fhirContext = getClientContext(fhirContext);
+        this.reportType = reportType;
+        this.merger = merger;
+        this.workers = workers;
+        this.shardCount = shardCount > 0 ? shardCount : workers.size();
+        this.retries = Math.max(retries, 0);
+    }
+
+    private static FhirContext getClientContext(FhirContext fhirContext) {
+        return clientContexts.computeIfAbsent(fhirContext.getVersion().getVersion(), version -> {
+            FhirContext clientContext = new FhirContext(version);
+            clientContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+            clientContext.getRestfulClientFactory().setSocketTimeout(HapiProperties.getEvaluationShardTimeoutSeconds() * 1000);
+            return clientContext;
+        });
+    }
+
+    /*
+     * The terminology server the workers evaluate with. It is passed in request headers rather
+     * than in the url, so the credentials do not end up in the access logs of the workers and
+     * of any proxy in between.
+     */
+    public void setTerminology(String source, String user, String pass) {
+        this.headers.clear();
+        if (source != null) {
+            this.headers.put(TERMINOLOGY_SOURCE_HEADER, source);
+        }
+        if (user != null) {
+            this.headers.put(TERMINOLOGY_USER_HEADER, user);
+        }
+        if (pass != null) {
+            this.headers.put(TERMINOLOGY_PASS_HEADER, pass);
+        }
+    }
+
+    /*
+     * Evaluates every shard of the measure with the given $evaluate-measure parameters and
+     * returns the merged report. Progress is counted in shards.
+     */
+    public T evaluate(String measureId, Map<String, String> parameters, EvaluationProgress progress) {
+        if (progress != null) {
+            progress.setTotal(this.shardCount);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.workers.size(), this.shardCount), runnable -> {
+            Thread thread = new Thread(runnable, "cqf-shard-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < this.shardCount; i++) {
+                ShardSpec shard = new ShardSpec(i, this.shardCount);
+                futures.add(executor.submit(() -> {
+                    T partial = evaluateShard(measureId, parameters, shard);
+                    if (progress != null) {
+                        progress.addProcessed(1);
+                    }
+                    return partial;
+                }));
+            }
+
+            T result = null;
+            for (Future<T> future : futures) {
+                T partial = future.get();
+                result = result == null ? partial : this.merger.apply(result, partial);
+            }
+
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Sharded evaluation was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Sharded evaluation failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Tries the shard on its own worker first and on the following workers when it fails
+    private T evaluateShard(String measureId, Map<String, String> parameters, ShardSpec shard) {
+        RuntimeException failure = null;
+        for (int attempt = 0; attempt <= this.retries; attempt++) {
+            String worker = this.workers.get((shard.getIndex() + attempt) % this.workers.size());
+            try {
+                logger.info("Evaluating shard {} of Measure/{} on {}", shard, measureId, worker);
+                IGenericClient client = this.fhirContext.newRestfulGenericClient(worker);
+                if (!this.headers.isEmpty()) {
+                    AdditionalRequestHeadersInterceptor interceptor = new AdditionalRequestHeadersInterceptor();
+                    this.headers.forEach(interceptor::addHeaderValue);
+                    client.registerInterceptor(interceptor);
+                }
+                return client.fetchResourceFromUrl(this.reportType, buildUrl(worker, measureId, parameters, shard));
+            } catch (RuntimeException e) {
+                logger.warn("Shard {} of Measure/{} failed on {}", shard, measureId, worker, e);
+                failure = e;
+            }
+        }
+
+        throw new RuntimeException(String.format("Shard %s of Measure/%s failed after %d attempts: %s",
+                shard, measureId, this.retries + 1, failure.getMessage()), failure);
+    }
+
+    private static String buildUrl(String worker, String measureId, Map<String, String> parameters, ShardSpec shard) {
+        StringBuilder url = new StringBuilder(worker.endsWith("/") ? worker.substring(0, worker.length() - 1) : worker)
+                .append("/Measure/").append(measureId).append("/$evaluate-measure?shard=")
+                .append(URLEncoder.encode(shard.toString(), StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (parameter.getValue() != null) {
+                url.append('&').append(parameter.getKey()).append('=')
+                        .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+            }
+        }
+
+        return url.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * One shard of the patient id space, written as "index/count". A patient belongs to the shard
+ * whose index is the hash of its id modulo the shard count, so every node assigns patients to
+ * shards the same way without coordinating.
+ */
+public class ShardSpec {
+
+    private int index;
+    private int count;
+
+    public ShardSpec(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException(String.format("Invalid shard: %d/%d", index, count));
+        }
+
+        this.index = index;
+        this.count = count;
+    }
+
+    // Parses the shard parameter of a request, an invalid shard is rejected as a bad request
+    public static ShardSpec parse(String shard) {
+        String[] parts = shard.split("/");
+        if (parts.length != 2) {
+            throw new InvalidRequestException("Invalid shard, expected index/count: " + shard);
+        }
+
+        try {
+            return new ShardSpec(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Invalid shard, expected index/count: " + shard);
+        }
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public boolean contains(String id) {
+        return Math.floorMod(id.hashCode(), this.count) == this.index;
+    }
+
+    // Lazily restricts the ids to the members of the shard
+    public Iterable<String> filter(Iterable<String> ids) {
+        return () -> new Iterator<String>() {
+            private Iterator<String> source = ids.iterator();
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (this.next == null && this.source.hasNext()) {
+                    String id = this.source.next();
+                    if (contains(id)) {
+                        this.next = id;
+                    }
+                }
+
+                return this.next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                String id = this.next;
+                this.next = null;
+                return id;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return this.index + "/" + this.count;
+    }
+}
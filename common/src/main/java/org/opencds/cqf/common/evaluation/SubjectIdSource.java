@@ -0,0 +1,92 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Lazily enumerates the ids of the subjects matched by a search. Results are read from the
+ * bundle provider one page at a time and only the id of each resource is kept, so the full
+ * subject resources never have to be held in memory together.
+ */
+public class SubjectIdSource implements Iterable<String> {
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private IBundleProvider bundleProvider;
+    private int pageSize;
+
+    public SubjectIdSource(IBundleProvider bundleProvider) {
+        this(bundleProvider, DEFAULT_PAGE_SIZE);
+    }
+
+    public SubjectIdSource(IBundleProvider bundleProvider, int pageSize) {
+        this.bundleProvider = bundleProvider;
+        this.pageSize = pageSize;
+    }
+
+    /*
+     * The total number of subjects, or null if the search does not know its size yet
+     */
+    public Integer size() {
+        return this.bundleProvider.size();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return iterator(0);
+    }
+
+    /*
+     * Enumerates the subjects from the given position in the search results. The results are read
+     * from that position, rather than read and skipped, so paging through the subjects is linear.
+     */
+    public Iterator<String> iterator(int offset) {
+        return new Iterator<String>() {
+            private int from = offset;
+            private boolean exhausted = false;
+            private Iterator<IBaseResource> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !exhausted) {
+                    nextPage();
+                }
+
+                return page.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return page.next().getIdElement().getIdPart();
+            }
+
+            private void nextPage() {
+                Integer size = bundleProvider.size();
+                if (size != null && from >= size) {
+                    exhausted = true;
+                    return;
+                }
+
+                int to = size != null ? Math.min(from + pageSize, size) : from + pageSize;
+                List<IBaseResource> resources = bundleProvider.getResources(from, to);
+                if (resources == null || resources.isEmpty()) {
+                    exhausted = true;
+                    return;
+                }
+
+                from = to;
+                page = resources.iterator();
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opencds.cqf.cql.runtime.Code;
+import org.opencds.cqf.cql.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.terminology.ValueSetInfo;
+
+/**
+ * Keeps value set expansions and membership checks for the length of a request, so that the
+ * measures evaluated by the request share them instead of asking the terminology provider for
+ * each measure. Safe to share between threads.
+ */
+public class TerminologyCache {
+
+    // The cached results of each wrapped provider, by method and arguments
+    private Map<TerminologyProvider, Map<String, Object>> results = new ConcurrentHashMap<>();
+
+    /*
+     * Wraps the terminology provider in a proxy that caches expand and in. Other methods are
+     * passed through unchanged.
+     */
+    public TerminologyProvider wrap(TerminologyProvider provider) {
+        if (provider == null) {
+            return null;
+        }
+
+        Map<String, Object> cache = this.results.computeIfAbsent(provider, x -> new ConcurrentHashMap<>());
+        InvocationHandler handler = (proxy, method, args) -> {
+            String key = getKey(method, args);
+            if (key == null) {
+                return invokeProvider(provider, method, args);
+            }
+
+            Object result = cache.get(key);
+            if (result == null) {
+                result = invokeProvider(provider, method, args);
+                if (result instanceof Iterable) {
+                    List<Object> codes = new ArrayList<>();
+                    for (Object code : (Iterable<?>) result) {
+                        codes.add(code);
+                    }
+                    result = codes;
+                }
+                if (result != null) {
+                    cache.put(key, result);
+                }
+            }
+
+            return result;
+        };
+
+        return (TerminologyProvider) Proxy.newProxyInstance(TerminologyProvider.class.getClassLoader(),
+                new Class<?>[] { TerminologyProvider.class }, handler);
+    }
+
+    private static Object invokeProvider(TerminologyProvider provider, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(provider, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // expand(valueSet) and in(code, valueSet) are cached, everything else is not
+    private static String getKey(Method method, Object[] args) {
+        if (method.getName().equals("expand") && args != null && args.length == 1 && args[0] instanceof ValueSetInfo) {
+            return "expand|" + getKey((ValueSetInfo) args[0]);
+        }
+
+        if (method.getName().equals("in") && args != null && args.length == 2 && args[0] instanceof Code
+                && args[1] instanceof ValueSetInfo) {
+            Code code = (Code) args[0];
+            return "in|" + code.getSystem() + "|" + code.getVersion() + "|" + code.getCode() + "|" + getKey((ValueSetInfo) args[1]);
+        }
+
+        return null;
+    }
+
+    private static String getKey(ValueSetInfo valueSet) {
+        return valueSet.getId() + "|" + valueSet.getVersion();
+    }
+}
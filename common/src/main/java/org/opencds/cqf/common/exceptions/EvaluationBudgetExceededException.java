@@ -0,0 +1,12 @@
+package org.opencds.cqf.common.exceptions;
+
+/*
+ * Stops the evaluation of a patient part way when the evaluation has run out of its budget.
+ */
+public class EvaluationBudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public EvaluationBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+package org.opencds.cqf.common.exceptions;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/*
+ * Ends an asynchronous request with 202 Accepted and the location at which the status of the
+ * job can be polled.
+ */
+public class MeasureJobAcceptedException extends BaseServerResponseException {
+    private static final long serialVersionUID = 1L;
+
+    public static final int STATUS_CODE = 202;
+
+    public MeasureJobAcceptedException(String message, String statusLocation) {
+        super(STATUS_CODE, message);
+        addResponseHeader(Constants.HEADER_CONTENT_LOCATION, statusLocation);
+    }
+}
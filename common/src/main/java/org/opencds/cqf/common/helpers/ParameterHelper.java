@@ -0,0 +1,34 @@
+package org.opencds.cqf.common.helpers;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+public class ParameterHelper {
+
+    // Parses an integer operation parameter, or returns the default when it is not given
+    public static int parseInteger(String name, String value, int defaultValue) {
+        return parseInteger(name, value, defaultValue, Integer.MIN_VALUE);
+    }
+
+    /*
+     * Parses an integer operation parameter of at least min, or returns the default when it is not
+     * given. A value that is not a valid integer is rejected as a bad request (400).
+     */
+    public static int parseInteger(String name, String value, int defaultValue, int min) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException(String.format("Invalid %s, expected an integer: %s", name, value));
+        }
+
+        if (parsed < min) {
+            throw new InvalidRequestException(String.format("Invalid %s, expected at least %d: %s", name, min, value));
+        }
+
+        return parsed;
+    }
+}
@@ -0,0 +1,141 @@
+package org.opencds.cqf.common.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits submitted data into transaction chunks. The data is added as units, the entries that
+ * must be committed in the same transaction (such as the entries of a submitted transaction
+ * Bundle), each with the ids it defines and the ids it references. Units that reference each
+ * other, directly or through other units, form a group that is committed in submission order by
+ * a single chain of chunks. Separate groups do not depend on each other, so their chains can be
+ * committed concurrently.
+ */
+public class TransactionChunker {
+
+    private List<Integer> sizes = new ArrayList<>();
+    private List<Integer> parents = new ArrayList<>();
+    // The unit that defines each id
+    private Map<String, Integer> owners = new HashMap<>();
+    private List<Set<String>> references = new ArrayList<>();
+
+    // Adds a unit of the given number of entries and returns its index
+    public int addUnit(int size, Set<String> defines, Set<String> references) {
+        int unit = this.sizes.size();
+        this.sizes.add(size);
+        this.parents.add(unit);
+        this.references.add(references);
+        for (String id : defines) {
+            Integer owner = this.owners.putIfAbsent(id, unit);
+            if (owner != null) {
+                union(owner, unit);
+            }
+        }
+
+        return unit;
+    }
+
+    /*
+     * Returns the chains of chunks, each chunk as the indexes of its units. A group larger than
+     * the chunk size gets a chain of its own, split in submission order; a unit larger than the
+     * chunk size is never split. Smaller groups are packed together into single-chunk chains.
+     */
+    public List<List<List<Integer>>> getChains(int chunkSize) {
+        for (int unit = 0; unit < this.sizes.size(); unit++) {
+            for (String id : this.references.get(unit)) {
+                Integer owner = this.owners.get(id);
+                if (owner != null) {
+                    union(owner, unit);
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int unit = 0; unit < this.sizes.size(); unit++) {
+            groups.computeIfAbsent(find(unit), x -> new ArrayList<>()).add(unit);
+        }
+
+        List<List<List<Integer>>> chains = new ArrayList<>();
+        List<Integer> packed = new ArrayList<>();
+        int packedSize = 0;
+        for (List<Integer> group : groups.values()) {
+            int groupSize = getSize(group);
+            if (groupSize > chunkSize) {
+                chains.add(split(group, chunkSize));
+                continue;
+            }
+
+            if (packedSize + groupSize > chunkSize && !packed.isEmpty()) {
+                chains.add(chainOf(packed));
+                packed = new ArrayList<>();
+                packedSize = 0;
+            }
+
+            packed.addAll(group);
+            packedSize += groupSize;
+        }
+
+        if (!packed.isEmpty()) {
+            chains.add(chainOf(packed));
+        }
+
+        return chains;
+    }
+
+    private List<List<Integer>> split(List<Integer> group, int chunkSize) {
+        List<List<Integer>> chain = new ArrayList<>();
+        List<Integer> chunk = new ArrayList<>();
+        int size = 0;
+        for (Integer unit : group) {
+            if (size + this.sizes.get(unit) > chunkSize && !chunk.isEmpty()) {
+                chain.add(chunk);
+                chunk = new ArrayList<>();
+                size = 0;
+            }
+
+            chunk.add(unit);
+            size += this.sizes.get(unit);
+        }
+
+        if (!chunk.isEmpty()) {
+            chain.add(chunk);
+        }
+
+        return chain;
+    }
+
+    private static List<List<Integer>> chainOf(List<Integer> chunk) {
+        List<List<Integer>> chain = new ArrayList<>();
+        chain.add(chunk);
+        return chain;
+    }
+
+    private int getSize(List<Integer> units) {
+        int size = 0;
+        for (Integer unit : units) {
+            size += this.sizes.get(unit);
+        }
+        return size;
+    }
+
+    private int find(int unit) {
+        while (this.parents.get(unit) != unit) {
+            this.parents.set(unit, this.parents.get(this.parents.get(unit)));
+            unit = this.parents.get(unit);
+        }
+        return unit;
+    }
+
+    // The earlier unit becomes the root, so groups are ordered by their first unit
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            this.parents.set(Math.max(rootA, rootB), Math.min(rootA, rootB));
+        }
+    }
+}
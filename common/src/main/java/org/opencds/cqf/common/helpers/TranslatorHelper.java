@@ -1,12 +1,15 @@
 package org.opencds.cqf.common.helpers;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.util.JAXBSource;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
@@ -14,10 +17,14 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.tracking.TrackBack;
+import org.hl7.cql_annotations.r1.Annotation;
+import org.hl7.elm.r1.ObjectFactory;
 import org.opencds.cqf.cql.execution.CqlLibraryReader;
 
 public class TranslatorHelper {
 
+    private static JAXBContext elmContext;
+
     public static Library readLibrary(InputStream xmlStream) {
         try {
             return CqlLibraryReader.read(xmlStream);
@@ -26,6 +33,38 @@ public class TranslatorHelper {
         }
     }
 
+    /*
+     * Converts a translated library to the execution model. The translator's model is marshalled
+     * straight into the engine's reader as a JAXBSource, so the ELM is never written out as xml.
+     */
+    public static Library toExecutionLibrary(org.hl7.elm.r1.Library library) {
+        try {
+            return CqlLibraryReader.read(new JAXBSource(getElmContext(), new ObjectFactory().createLibrary(library)));
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while converting ELM: " + e.getMessage());
+        }
+    }
+
+    // Writes a translated library as ELM xml
+    public static byte[] toElmXml(org.hl7.elm.r1.Library library) {
+        try {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            getElmContext().createMarshaller().marshal(new ObjectFactory().createLibrary(library), xml);
+            return xml.toByteArray();
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while writing ELM xml: " + e.getMessage());
+        }
+    }
+
+    // JAXB contexts are thread-safe and expensive to create, so one is shared
+    private static synchronized JAXBContext getElmContext() throws JAXBException {
+        if (elmContext == null) {
+            elmContext = JAXBContext.newInstance(org.hl7.elm.r1.Library.class, Annotation.class);
+        }
+
+        return elmContext;
+    }
+
     public static String errorsToString(Iterable<CqlTranslatorException> exceptions) {
         ArrayList<String> errors = new ArrayList<>();
         for (CqlTranslatorException error : exceptions) {
@@ -68,10 +107,10 @@ public class TranslatorHelper {
 
     public static Library translateLibrary(InputStream cqlStream, LibraryManager libraryManager, ModelManager modelManager) {
         CqlTranslator translator = getTranslator(cqlStream, libraryManager, modelManager);
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return translateLibrary(translator);
     }
 
     public static Library translateLibrary(CqlTranslator translator) {
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return toExecutionLibrary(translator.toELM());
     }
 }
\ No newline at end of file
@@ -13,16 +13,28 @@ import java.util.function.Function;
  */
 public class LibrarySourceProvider<LibraryType, AttachmentType> implements org.cqframework.cql.cql2elm.LibrarySourceProvider {
 
+    // Records on a stored ELM attachment the hash of the CQL it was compiled from
+    public static final String CQL_HASH_EXTENSION = "http://cqframework.org/fhir/StructureDefinition/cqf-cqlContentHash";
+
     private FhirLibrarySourceProvider innerProvider;
     private LibraryResolutionProvider<LibraryType> provider;
     private Function<LibraryType, Iterable<AttachmentType>> getAttachments;
     private Function<AttachmentType, String> getContentType;
     private Function<AttachmentType, byte[]> getContent;
+    private Function<AttachmentType, String> getCqlHash;
 
     public LibrarySourceProvider(LibraryResolutionProvider<LibraryType> provider, 
         Function<LibraryType, Iterable<AttachmentType>> getAttachments,
         Function<AttachmentType, String> getContentType,
         Function<AttachmentType, byte[]> getContent) {
+        this(provider, getAttachments, getContentType, getContent, null);
+    }
+
+    public LibrarySourceProvider(LibraryResolutionProvider<LibraryType> provider, 
+        Function<LibraryType, Iterable<AttachmentType>> getAttachments,
+        Function<AttachmentType, String> getContentType,
+        Function<AttachmentType, byte[]> getContent,
+        Function<AttachmentType, String> getCqlHash) {
         
         this.innerProvider = new FhirLibrarySourceProvider();
 
@@ -30,6 +42,7 @@ public class LibrarySourceProvider<LibraryType, AttachmentType> implements org.c
         this.getAttachments = getAttachments;
         this.getContentType = getContentType;
         this.getContent = getContent;
+        this.getCqlHash = getCqlHash;
     }
 
     @Override
@@ -46,4 +59,27 @@ public class LibrarySourceProvider<LibraryType, AttachmentType> implements org.c
 
         return this.innerProvider.getLibrarySource(versionedIdentifier);
     }
-}
\ No newline at end of file
+
+    /*
+     * Returns the ELM xml stored with the library when it was compiled from the CQL with the given
+     * hash, or null when the library has no ELM for its current CQL.
+     */
+    public byte[] getElm(VersionedIdentifier versionedIdentifier, String cqlHash) {
+        if (this.getCqlHash == null || cqlHash == null) {
+            return null;
+        }
+
+        try {
+            LibraryType lib = this.provider.resolveLibraryByName(versionedIdentifier.getId(), versionedIdentifier.getVersion());
+            for (AttachmentType attachment : this.getAttachments.apply(lib)) {
+                if ("application/elm+xml".equals(this.getContentType.apply(attachment))
+                        && cqlHash.equals(this.getCqlHash.apply(attachment))) {
+                    return this.getContent.apply(attachment);
+                }
+            }
+        }
+        catch(Exception e){}
+
+        return null;
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.List;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.EvaluationExplainer;
 import org.opencds.cqf.cql.retrieve.*;
 import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
 
@@ -38,6 +39,19 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
     }
 
     protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
+        EvaluationExplainer explainer = EvaluationExplainer.current();
+        if (explainer == null) {
+            return search(dataType, map);
+        }
+
+        long start = System.nanoTime();
+        Collection<Object> result = search(dataType, map);
+        explainer.recordQuery(dataType, map.toNormalizedQueryString(this.registry.getResourceDao(dataType).getContext()),
+                result.size(), System.nanoTime() - start);
+        return result;
+    }
+
+    private Collection<Object> search(String dataType, SearchParameterMap map) {
         IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
         IBundleProvider bundleProvider = dao.search(map);
         if (bundleProvider.size() == null)
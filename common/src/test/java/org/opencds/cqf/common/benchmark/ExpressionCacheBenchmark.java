@@ -0,0 +1,109 @@
+package org.opencds.cqf.common.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.evaluation.ExpressionCacheScope;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.execution.Context;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares clearing the expression cache before every population criterion, as MeasureEvaluation
+ * did before ExpressionCacheScope, with clearing it once per patient. The criteria of the library
+ * all depend on one shared definition, as the populations of a proportion measure depend on the
+ * initial population. The hits and lookups counters report the expression cache hit rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExpressionCacheBenchmark {
+
+    private static final List<String> CRITERIA = Arrays.asList("Initial Population", "Denominator", "Denominator Exclusion", "Numerator");
+    private static final int PATIENTS = 100;
+
+    private Library library;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CacheCounters {
+        public long hits;
+        public long lookups;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.hits = 0;
+            this.lookups = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        String values = IntStream.range(0, 500).mapToObj(Integer::toString).collect(Collectors.joining(", "));
+        String cql = "library CacheBenchmark version '1.0.0'\n"
+                + "define \"Shared\": Sum(({ " + values + " }) X where X mod 3 = 0 return X * X)\n"
+                + "define \"Initial Population\": \"Shared\" > 0\n"
+                + "define \"Denominator\": \"Initial Population\" and \"Shared\" mod 2 = 0\n"
+                + "define \"Denominator Exclusion\": \"Initial Population\" and \"Shared\" < 0\n"
+                + "define \"Numerator\": \"Denominator\" and \"Shared\" mod 5 = 0\n";
+
+        ModelManager modelManager = new ModelManager();
+        this.library = TranslatorHelper.translateLibrary(cql, new LibraryManager(modelManager), modelManager);
+    }
+
+    private int evaluate(boolean resetPerCriterion, CacheCounters counters) {
+        Context evaluationContext = new Context(this.library);
+        evaluationContext.setExpressionCaching(true);
+        ExpressionCacheScope scope = new ExpressionCacheScope(evaluationContext);
+        int members = 0;
+        for (int patient = 0; patient < PATIENTS; patient++) {
+            String patientId = "Patient/" + patient;
+            for (String criteria : CRITERIA) {
+                if (resetPerCriterion) {
+                    scope.invalidate();
+                }
+
+                Context context = scope.enterPatient(patientId);
+                counters.lookups++;
+                if (scope.isCached("Shared")) {
+                    counters.hits++;
+                }
+                if (Boolean.TRUE.equals(context.resolveExpressionRef(criteria).evaluate(context))) {
+                    members++;
+                }
+            }
+        }
+
+        return members;
+    }
+
+    @Benchmark
+    public int resetPerCriterion(CacheCounters counters) {
+        return evaluate(true, counters);
+    }
+
+    @Benchmark
+    public int resetPerPatient(CacheCounters counters) {
+        return evaluate(false, counters);
+    }
+}
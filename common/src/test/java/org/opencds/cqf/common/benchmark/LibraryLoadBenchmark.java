@@ -0,0 +1,173 @@
+package org.opencds.cqf.common.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorException.ErrorSeverity;
+import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.LibraryBuilder.SignatureLevel;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryStore;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the ways LibraryLoader can load a library: translating its CQL, converting the
+ * translated ELM to the execution model directly or through an ELM xml round trip, reading
+ * stored ELM xml, and decoding the binary library store. Loads FHIRHelpers and a generated measure
+ * library of the size of a large eCQM, which includes FHIRHelpers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LibraryLoadBenchmark {
+
+    private static final int MEASURE_DEFINITIONS = 150;
+
+    @Param({ "FHIRHelpers", "LargeMeasure" })
+    public String library;
+
+    private VersionedIdentifier identifier;
+    private String measureCql;
+    private org.hl7.elm.r1.Library translated;
+    private byte[] elm;
+    private String key;
+    private Path directory;
+
+    @Setup
+    public void setup() throws IOException {
+        this.measureCql = createMeasureCql();
+        this.identifier = this.library.equals("FHIRHelpers")
+                ? new VersionedIdentifier().withId("FHIRHelpers").withVersion("4.0.0")
+                : new VersionedIdentifier().withId("LargeMeasure").withVersion("1.0.0");
+        this.translated = translate();
+        this.elm = TranslatorHelper.toElmXml(this.translated);
+
+        byte[] source;
+        try (InputStream cql = createLibraryManager().getLibrarySourceLoader().getLibrarySource(this.identifier)) {
+            source = cql.readAllBytes();
+        }
+
+        this.directory = Files.createTempDirectory("library-store");
+        HapiProperties.setProperty("library_store.directory", this.directory.toString());
+        this.key = CompiledLibraryCache.getKey(this.identifier.getId(), this.identifier.getVersion(), source);
+        LibraryStore.write(this.key, TranslatorHelper.toExecutionLibrary(this.translated));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        HapiProperties.setProperty("library_store.directory", "");
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /*
+     * A measure library with the number of definitions of a large eCQM, most of them retrieves
+     * filtered through FHIRHelpers conversions, combined into the measure populations.
+     */
+    private static String createMeasureCql() {
+        StringBuilder cql = new StringBuilder("library LargeMeasure version '1.0.0'\n")
+                .append("using FHIR version '4.0.0'\n")
+                .append("include FHIRHelpers version '4.0.0' called FHIRHelpers\n")
+                .append("parameter \"Measurement Period\" Interval<DateTime>\n")
+                .append("context Patient\n");
+
+        StringBuilder population = new StringBuilder("define \"Initial Population\": false");
+        for (int i = 0; i < MEASURE_DEFINITIONS / 3; i++) {
+            cql.append("define \"Encounters ").append(i).append("\": [Encounter] E where FHIRHelpers.ToInterval(E.period) overlaps \"Measurement Period\" and E.status.value = 'finished'\n");
+            cql.append("define \"Conditions ").append(i).append("\": [Condition] C where FHIRHelpers.ToDateTime(C.onset as FHIR.dateTime) before end of \"Measurement Period\"\n");
+            cql.append("define \"Qualifies ").append(i).append("\": exists \"Encounters ").append(i).append("\" and exists \"Conditions ").append(i).append("\"\n");
+            population.append(" or \"Qualifies ").append(i).append("\"");
+        }
+        cql.append(population).append('\n');
+        cql.append("define \"Denominator\": \"Initial Population\"\n");
+        cql.append("define \"Numerator\": \"Denominator\" and exists \"Encounters 0\"\n");
+        return cql.toString();
+    }
+
+    // A library manager that reads FHIRHelpers from the translator and the measure from memory, as LibraryLoader is given for each request
+    private LibraryManager createLibraryManager() {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().clearProviders();
+        FhirLibrarySourceProvider fhirProvider = new FhirLibrarySourceProvider();
+        libraryManager.getLibrarySourceLoader().registerProvider(identifier -> identifier.getId().equals("LargeMeasure")
+                ? new ByteArrayInputStream(this.measureCql.getBytes(StandardCharsets.UTF_8))
+                : fhirProvider.getLibrarySource(identifier));
+        return libraryManager;
+    }
+
+    private org.hl7.elm.r1.Library translate() {
+        ArrayList<CqlTranslatorException> errors = new ArrayList<>();
+        org.hl7.elm.r1.Library translated = createLibraryManager().resolveLibrary(this.identifier, ErrorSeverity.Error,
+                SignatureLevel.All,
+                new CqlTranslator.Options[] { CqlTranslator.Options.EnableAnnotations,
+                        CqlTranslator.Options.EnableLocators, CqlTranslator.Options.DisableListDemotion,
+                        CqlTranslator.Options.DisableListPromotion, CqlTranslator.Options.DisableMethodInvocation },
+                errors).getLibrary();
+
+        if (CqlTranslatorException.HasErrors(errors)) {
+            throw new IllegalArgumentException(TranslatorHelper.errorsToString(errors));
+        }
+
+        return translated;
+    }
+
+    // The whole load of an uncached library, with a new library manager as each request had
+    @Benchmark
+    public Library translateAndConvert() {
+        return TranslatorHelper.toExecutionLibrary(translate());
+    }
+
+    @Benchmark
+    public Library convertDirect() {
+        return TranslatorHelper.toExecutionLibrary(this.translated);
+    }
+
+    // The conversion LibraryLoader made before it converted the translated model directly
+    @Benchmark
+    public Library convertThroughXml() {
+        return TranslatorHelper.readLibrary(new ByteArrayInputStream(TranslatorHelper.toElmXml(this.translated)));
+    }
+
+    // Loading the ELM stored with the Library resource
+    @Benchmark
+    public Library readStoredElm() {
+        return TranslatorHelper.readLibrary(new ByteArrayInputStream(this.elm));
+    }
+
+    @Benchmark
+    public Library readLibraryStore() {
+        return LibraryStore.read(this.key);
+    }
+}
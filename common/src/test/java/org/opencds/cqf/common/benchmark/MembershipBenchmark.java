@@ -0,0 +1,109 @@
+package org.opencds.cqf.common.benchmark;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opencds.cqf.common.evaluation.MemberIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares population membership held in maps by id, as MeasureEvaluation kept it before, with
+ * bit sets over the ordinals of a MemberIndex. Each population build adds every patient to the
+ * initial population and denominator, half of them to the numerator and a tenth to the
+ * denominator exclusion, then counts the populations. Run with -prof gc to compare allocation;
+ * the bit sets also index the ids, as an evaluation does once for all of its populations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MembershipBenchmark {
+
+    @Param({ "10000", "1000000" })
+    public int patients;
+
+    private String[] ids;
+    private Object resource = new Object();
+    private MemberIndex index;
+
+    @Setup
+    public void setup() {
+        this.ids = new String[this.patients];
+        this.index = new MemberIndex();
+        for (int i = 0; i < this.patients; i++) {
+            this.ids[i] = "Patient/" + i;
+            this.index.indexOf(this.ids[i]);
+        }
+    }
+
+    @Benchmark
+    public int mapPopulations() {
+        Map<String, Object> initialPopulation = new HashMap<>();
+        Map<String, Object> denominator = new HashMap<>();
+        Map<String, Object> numerator = new HashMap<>();
+        Map<String, Object> denominatorExclusion = new HashMap<>();
+        for (int i = 0; i < this.ids.length; i++) {
+            initialPopulation.put(this.ids[i], this.resource);
+            denominator.put(this.ids[i], this.resource);
+            if (i % 2 == 0) {
+                numerator.put(this.ids[i], this.resource);
+            }
+            if (i % 10 == 0) {
+                denominatorExclusion.put(this.ids[i], this.resource);
+                denominator.remove(this.ids[i]);
+            }
+        }
+
+        return initialPopulation.size() + denominator.size() + numerator.size() + denominatorExclusion.size();
+    }
+
+    @Benchmark
+    public int bitSetPopulations() {
+        MemberIndex index = new MemberIndex();
+        BitSet initialPopulation = new BitSet();
+        BitSet denominator = new BitSet();
+        BitSet numerator = new BitSet();
+        BitSet denominatorExclusion = new BitSet();
+        for (int i = 0; i < this.ids.length; i++) {
+            int ordinal = index.indexOf(this.ids[i]);
+            initialPopulation.set(ordinal);
+            denominator.set(ordinal);
+            if (i % 2 == 0) {
+                numerator.set(ordinal);
+            }
+            if (i % 10 == 0) {
+                denominatorExclusion.set(ordinal);
+                denominator.clear(ordinal);
+            }
+        }
+
+        return initialPopulation.cardinality() + denominator.cardinality() + numerator.cardinality() + denominatorExclusion.cardinality();
+    }
+
+    // Workers of a parallel evaluation look up the ordinals of members already indexed
+    @Benchmark
+    @Threads(4)
+    public int concurrentLookup() {
+        int sum = 0;
+        for (String id : this.ids) {
+            sum += this.index.indexOf(id);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * JMH benchmarks of the measure evaluation components. They are compiled with the tests but not
+ * run by them; to run them, with the allocation profiler, after building the module:
+ *
+ * <pre>
+ * mvn -pl common -am test-compile
+ * mvn -pl common exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main -prof gc Membership"
+ * </pre>
+ *
+ * The last argument selects the benchmarks to run by a pattern of their names.
+ */
+package org.opencds.cqf.common.benchmark;
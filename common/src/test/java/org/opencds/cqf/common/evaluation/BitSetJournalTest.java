@@ -0,0 +1,67 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BitSetJournalTest {
+
+    @Test
+    public void testRollbackRestoresPreviousBits() {
+        BitSet first = new BitSet();
+        BitSet second = new BitSet();
+        first.set(1);
+
+        BitSetJournal journal = new BitSetJournal();
+        journal.set(first, 2);
+        journal.clear(first, 1);
+        journal.set(second, 1);
+        // A bit changed twice is restored to its value before the first change
+        journal.set(first, 1);
+        journal.rollback();
+
+        assertTrue(first.get(1));
+        assertFalse(first.get(2));
+        assertTrue(second.isEmpty());
+    }
+
+    @Test
+    public void testCommitKeepsChanges() {
+        BitSet set = new BitSet();
+        BitSetJournal journal = new BitSetJournal();
+        journal.set(set, 3);
+        journal.commit();
+        journal.set(set, 4);
+        journal.rollback();
+
+        assertTrue(set.get(3));
+        assertFalse(set.get(4));
+
+        // Nothing is left to undo after a rollback
+        journal.rollback();
+        assertTrue(set.get(3));
+    }
+
+    @Test
+    public void testRollbackActionsRunLatestFirst() {
+        List<String> order = new ArrayList<>();
+        BitSetJournal journal = new BitSetJournal();
+        journal.onRollback(() -> order.add("first"));
+        journal.onRollback(() -> order.add("second"));
+        journal.rollback();
+
+        assertEquals(Arrays.asList("second", "first"), order);
+
+        journal.onRollback(() -> order.add("committed"));
+        journal.commit();
+        journal.rollback();
+        assertEquals(2, order.size());
+    }
+}
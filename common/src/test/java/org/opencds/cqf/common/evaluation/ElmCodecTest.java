@@ -0,0 +1,113 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.execution.Context;
+
+public class ElmCodecTest {
+
+    private static final String CQL = "library Encoded version '1.0.0'\n"
+            + "parameter \"Limit\" Integer default 10\n"
+            + "define \"Squares\": ({ 1, 2, 3, 4, 5 }) X where X > 1 return X * X\n"
+            + "define \"Total\": Sum(\"Squares\")\n"
+            + "define \"Dose\": 2.5 'mg' + 1.5 'mg'\n"
+            + "define \"Period\": Interval[@2019-01-01, @2020-01-01)\n"
+            + "define \"Over\": \"Total\" > \"Limit\"\n"
+            + "define function \"Twice\"(value Integer): value * 2\n"
+            + "define \"Called\": \"Twice\"(21)\n";
+
+    private static Library translate(CqlTranslator.Options... options) {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromText(CQL, modelManager, new LibraryManager(modelManager), options);
+        return TranslatorHelper.toExecutionLibrary(translator.toELM());
+    }
+
+    private static Object evaluate(Library library, String expression) {
+        Context context = new Context(library);
+        return context.resolveExpressionRef(expression).evaluate(context);
+    }
+
+    // Without annotations, which are not written, the decoded library equals the original
+    @Test
+    public void testRoundTripEqualsOriginal() {
+        Library library = translate();
+        Library decoded = ElmCodec.decode(ByteBuffer.wrap(ElmCodec.encode(library)));
+
+        assertEquals(library, decoded);
+        assertEquals(library.getStatements().getDef().get(0).getClass(), decoded.getStatements().getDef().get(0).getClass());
+    }
+
+    @Test
+    public void testDecodedLibraryEvaluates() {
+        Library decoded = ElmCodec.decode(ByteBuffer.wrap(ElmCodec.encode(translate(CqlTranslator.Options.EnableAnnotations,
+                CqlTranslator.Options.EnableLocators))));
+
+        assertEquals(54, evaluate(decoded, "Total"));
+        assertEquals(true, evaluate(decoded, "Over"));
+        assertEquals(42, evaluate(decoded, "Called"));
+        assertEquals(0, new BigDecimal("4.0").compareTo(((org.opencds.cqf.cql.runtime.Quantity) evaluate(decoded, "Dose")).getValue()));
+        assertTrue(((List<?>) evaluate(decoded, "Squares")).contains(25));
+    }
+
+    // Names repeat throughout a library and are written once, so the encoding is smaller than the xml
+    @Test
+    public void testEncodingIsSmallerThanXml() {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromText(CQL, modelManager, new LibraryManager(modelManager));
+        byte[] xml = TranslatorHelper.toElmXml(translator.toELM());
+
+        assertTrue(ElmCodec.encode(TranslatorHelper.toExecutionLibrary(translator.toELM())).length < xml.length / 2);
+    }
+
+    // An object of a class written for the first time, by package number, name and field layout
+    private static byte[] encodeObjectOfClass(int packageIndex, String className, int layout) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        output.writeByte(10);
+        output.writeByte(0);
+        output.writeByte(packageIndex);
+        output.writeByte(3);
+        output.writeByte(name.length);
+        output.write(name);
+        output.writeInt(layout);
+        output.writeByte(0);
+        return bytes.toByteArray();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClassesOutsideTheElmAreNotRead() throws IOException {
+        ElmCodec.decode(ByteBuffer.wrap(encodeObjectOfClass(2, "ArrayList", 0)));
+    }
+
+    // A class whose fields are not those written, as after an engine upgrade, is not read
+    @Test(expected = IllegalArgumentException.class)
+    public void testChangedClassIsNotRead() throws IOException {
+        ElmCodec.decode(ByteBuffer.wrap(encodeObjectOfClass(0, "Library", 0)));
+    }
+
+    @Test
+    public void testDifferentLibrariesHaveDifferentEncodings() {
+        Library library = translate();
+        byte[] encoded = ElmCodec.encode(library);
+        library.getIdentifier().setVersion("2.0.0");
+
+        assertNotEquals(ByteBuffer.wrap(encoded), ByteBuffer.wrap(ElmCodec.encode(library)));
+    }
+}
@@ -0,0 +1,72 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opencds.cqf.common.exceptions.EvaluationBudgetExceededException;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+public class EvaluationBudgetTest {
+
+    @Test
+    public void testPatientBudget() {
+        EvaluationBudget budget = new EvaluationBudget(0, 2);
+        assertTrue(budget.startPatient());
+        budget.patientEvaluated();
+        assertTrue(budget.startPatient());
+        budget.patientEvaluated();
+
+        assertFalse(budget.startPatient());
+        assertTrue(budget.isStopped());
+        assertEquals(2, budget.getEvaluatedPatients());
+        assertNotNull(budget.getStopReason());
+    }
+
+    @Test(expected = EvaluationBudgetExceededException.class)
+    public void testTimeBudget() throws InterruptedException {
+        EvaluationBudget budget = new EvaluationBudget(1, 0);
+        Thread.sleep(20);
+
+        assertFalse(budget.startPatient());
+        budget.check();
+    }
+
+    @Test
+    public void testUnboundedBudget() {
+        EvaluationBudget budget = new EvaluationBudget(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(budget.startPatient());
+        }
+
+        budget.check();
+        assertFalse(budget.isStopped());
+    }
+
+    // The first reason a budget is stopped for is the one reported
+    @Test
+    public void testStopKeepsFirstReason() {
+        EvaluationBudget budget = new EvaluationBudget(0, 0);
+        budget.stop("first");
+        budget.stop("second");
+
+        assertEquals("first", budget.getStopReason());
+        assertFalse(budget.startPatient());
+    }
+
+    @Test
+    public void testCreateWithoutBoundsReturnsNull() {
+        assertNull(EvaluationBudget.create("0", "0"));
+        assertNotNull(EvaluationBudget.create("0", "10"));
+    }
+
+    // A bound that is not a number is the client's error, reported as a bad request
+    @Test(expected = InvalidRequestException.class)
+    public void testCreateRejectsInvalidBound() {
+        EvaluationBudget.create("ten", null);
+    }
+}
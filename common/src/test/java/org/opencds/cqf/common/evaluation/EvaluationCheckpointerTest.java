@@ -0,0 +1,150 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opencds.cqf.common.entity.MeasureCheckpointEntity;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+public class EvaluationCheckpointerTest {
+
+    // Keeps the checkpoints in memory rather than in the server database
+    private static class MemoryCheckpointStore extends MeasureCheckpointStore {
+        private Map<String, MeasureCheckpointEntity> checkpoints = new HashMap<>();
+        private int saves;
+
+        @Override
+        public MeasureCheckpointEntity getCheckpoint(String id) {
+            return this.checkpoints.get(id);
+        }
+
+        @Override
+        public void saveCheckpoint(String id, String runKey, int position, String lastPatientId, String state, Date updated) {
+            MeasureCheckpointEntity checkpoint = new MeasureCheckpointEntity();
+            checkpoint.setId(id);
+            checkpoint.setRunKey(runKey);
+            checkpoint.setPosition(position);
+            checkpoint.setLastPatientId(lastPatientId);
+            checkpoint.setState(state);
+            checkpoint.setUpdated(updated);
+            this.checkpoints.put(id, checkpoint);
+            this.saves++;
+        }
+
+        @Override
+        public void deleteCheckpoint(String id) {
+            this.checkpoints.remove(id);
+        }
+    }
+
+    private static EvaluationCheckpointer create(MeasureCheckpointStore store, String runKey) {
+        return new EvaluationCheckpointer(store, "checkpoint", runKey, 2, 0);
+    }
+
+    // Evaluates the first patients of a run and saves a checkpoint after every two of them
+    private static MemoryCheckpointStore interruptAfter(String... patients) {
+        MemoryCheckpointStore store = new MemoryCheckpointStore();
+        EvaluationCheckpointer checkpointer = create(store, "run");
+        assertNull(checkpointer.restore());
+        for (String patient : patients) {
+            checkpointer.batchEvaluated(Arrays.asList(patient), () -> "state after " + patient);
+        }
+        return store;
+    }
+
+    @Test
+    public void testSavesEveryInterval() {
+        MemoryCheckpointStore store = interruptAfter("a", "b", "c");
+
+        assertEquals(1, store.saves);
+        MeasureCheckpointEntity checkpoint = store.getCheckpoint("checkpoint");
+        assertEquals(2, checkpoint.getPosition());
+        assertEquals("b", checkpoint.getLastPatientId());
+        assertEquals("state after b", checkpoint.getState());
+    }
+
+    @Test
+    public void testStateIsOnlyEncodedWhenSaved() {
+        EvaluationCheckpointer checkpointer = create(new MemoryCheckpointStore(), "run");
+        checkpointer.restore();
+        checkpointer.batchEvaluated(Arrays.asList("a"), () -> {
+            fail("The state was encoded without being saved");
+            return null;
+        });
+    }
+
+    @Test
+    public void testResumesAfterLastSavedPatient() {
+        MemoryCheckpointStore store = interruptAfter("a", "b", "c");
+
+        EvaluationCheckpointer resumed = create(store, "run");
+        assertEquals("state after b", resumed.restore());
+        assertEquals(2, resumed.getPosition());
+
+        Iterator<String> remaining = resumed.skipEvaluated(Arrays.asList("a", "b", "c", "d").iterator());
+        assertEquals("c", remaining.next());
+        assertEquals("d", remaining.next());
+        assertFalse(remaining.hasNext());
+    }
+
+    // Patients added before the last saved one do not shift the patients that are evaluated
+    @Test
+    public void testResumeIgnoresPatientsAddedBeforeLastSaved() {
+        MemoryCheckpointStore store = interruptAfter("b", "d");
+
+        EvaluationCheckpointer resumed = create(store, "run");
+        resumed.restore();
+        Iterator<String> remaining = resumed.skipEvaluated(Arrays.asList("a", "b", "c", "d", "e").iterator());
+        assertEquals("e", remaining.next());
+        assertFalse(remaining.hasNext());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void testResumeFailsWhenLastSavedPatientIsGone() {
+        MemoryCheckpointStore store = interruptAfter("a", "b");
+
+        EvaluationCheckpointer resumed = create(store, "run");
+        resumed.restore();
+        resumed.skipEvaluated(Arrays.asList("a", "c").iterator());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void testCheckpointOfAnotherRunIsNotResumed() {
+        MemoryCheckpointStore store = interruptAfter("a", "b");
+        create(store, "another run").restore();
+    }
+
+    @Test
+    public void testStartsFromTheBeginningWithoutCheckpoint() {
+        EvaluationCheckpointer checkpointer = create(new MemoryCheckpointStore(), "run");
+        assertNull(checkpointer.restore());
+
+        Iterator<String> patients = Arrays.asList("a", "b").iterator();
+        assertSame(patients, checkpointer.skipEvaluated(patients));
+    }
+
+    @Test
+    public void testCompleteDeletesCheckpoint() {
+        MemoryCheckpointStore store = interruptAfter("a", "b");
+
+        EvaluationCheckpointer resumed = create(store, "run");
+        resumed.restore();
+        List<String> rest = Arrays.asList("c");
+        resumed.batchEvaluated(rest, () -> "state after c");
+        resumed.complete();
+
+        assertNull(store.getCheckpoint("checkpoint"));
+    }
+}
@@ -0,0 +1,83 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.execution.Context;
+
+public class ExpressionCacheScopeTest {
+
+    private static final String CQL = "library CacheScope version '1.0.0'\n"
+            + "define \"Shared\": Sum(({ 1, 2, 3, 4, 5 }) X return X * X)\n"
+            + "define \"Numerator\": \"Shared\" > 10\n";
+
+    private static Library library;
+
+    @BeforeClass
+    public static void translate() {
+        ModelManager modelManager = new ModelManager();
+        library = TranslatorHelper.translateLibrary(CQL, new LibraryManager(modelManager), modelManager);
+    }
+
+    // Caching is off by default, measure evaluations turn it on in MeasureEvaluationSeed
+    private static Context createContext() {
+        Context context = new Context(library);
+        context.setExpressionCaching(true);
+        return context;
+    }
+
+    private static void evaluate(Context context, String expression) {
+        context.resolveExpressionRef(expression).evaluate(context);
+    }
+
+    @Test
+    public void testKeepsResultsForTheSamePatient() {
+        ExpressionCacheScope scope = new ExpressionCacheScope(createContext());
+        evaluate(scope.enterPatient("a"), "Numerator");
+        assertTrue(scope.isCached("Shared"));
+
+        scope.enterPatient("a");
+        assertTrue(scope.isCached("Shared"));
+        assertEquals(1, scope.getPatientCount());
+        assertEquals(2, scope.getEvaluationCount());
+    }
+
+    @Test
+    public void testClearsResultsWhenThePatientChanges() {
+        ExpressionCacheScope scope = new ExpressionCacheScope(createContext());
+        evaluate(scope.enterPatient("a"), "Numerator");
+
+        scope.enterPatient("b");
+        assertFalse(scope.isCached("Shared"));
+        assertEquals(2, scope.getPatientCount());
+    }
+
+    @Test
+    public void testKeepsPinnedResults() {
+        ExpressionCacheScope scope = new ExpressionCacheScope(createContext(), Collections.singleton("Shared"));
+        evaluate(scope.enterPatient("a"), "Numerator");
+
+        scope.enterPatient("b");
+        assertTrue(scope.isCached("Shared"));
+        assertFalse(scope.isCached("Numerator"));
+    }
+
+    @Test
+    public void testInvalidateClearsResultsForTheSamePatient() {
+        ExpressionCacheScope scope = new ExpressionCacheScope(createContext());
+        evaluate(scope.enterPatient("a"), "Numerator");
+
+        scope.invalidate();
+        scope.enterPatient("a");
+        assertFalse(scope.isCached("Shared"));
+    }
+}
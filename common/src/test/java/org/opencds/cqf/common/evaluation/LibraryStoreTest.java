@@ -0,0 +1,158 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+
+public class LibraryStoreTest {
+
+    private static final String CQL = "library Stored version '1.0.0'\ndefine \"Value\": 1 + 1\n";
+    private static final String KEY = CompiledLibraryCache.getKey("Stored", "1.0.0", CQL.getBytes(StandardCharsets.UTF_8));
+
+    private static Library library;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void translate() {
+        library = translate(CQL);
+    }
+
+    private static Library translate(String cql) {
+        ModelManager modelManager = new ModelManager();
+        return TranslatorHelper.translateLibrary(cql, new LibraryManager(modelManager), modelManager);
+    }
+
+    @Before
+    public void enableStore() {
+        HapiProperties.setProperty("library_store.directory", this.folder.getRoot().getPath());
+    }
+
+    @After
+    public void disableStore() {
+        HapiProperties.setProperty("library_store.directory", "");
+    }
+
+    private File getFile(String key) {
+        return new File(this.folder.getRoot(), CompiledLibraryCache.hash(key.getBytes(StandardCharsets.UTF_8)) + ".elmb");
+    }
+
+    @Test
+    public void testWriteThenRead() {
+        LibraryStore.write(KEY, library);
+
+        Library stored = LibraryStore.read(KEY);
+        assertNotNull(stored);
+        assertEquals("Stored", stored.getIdentifier().getId());
+        assertEquals("1.0.0", stored.getIdentifier().getVersion());
+        assertEquals(library.getStatements().getDef().size(), stored.getStatements().getDef().size());
+    }
+
+    // The file holds the magic "CQLE", the format version, the key and the encoded library, each length prefixed
+    @Test
+    public void testFileFormat() throws IOException {
+        LibraryStore.write(KEY, library);
+
+        File file = getFile(KEY);
+        assertTrue(file.exists());
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[4];
+            input.readFully(magic);
+            assertEquals("CQLE", new String(magic, StandardCharsets.US_ASCII));
+            assertEquals(2, input.readShort());
+
+            byte[] key = new byte[input.readUnsignedShort()];
+            input.readFully(key);
+            assertEquals(KEY, new String(key, StandardCharsets.UTF_8));
+
+            byte[] stored = new byte[input.readInt()];
+            input.readFully(stored);
+            assertArrayEquals(ElmCodec.encode(library), stored);
+            assertEquals(-1, input.read());
+        }
+    }
+
+    @Test
+    public void testExistingFileIsNotReplaced() throws IOException {
+        LibraryStore.write(KEY, library);
+        File file = getFile(KEY);
+        long modified = file.lastModified();
+        byte[] content = Files.readAllBytes(file.toPath());
+
+        LibraryStore.write(KEY, translate("library Other version '1.0.0'\ndefine \"Value\": 2\n"));
+        assertEquals(modified, file.lastModified());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    // A file whose key differs from the one requested, such as after a hash collision, is not used
+    @Test
+    public void testFileOfAnotherKeyIsNotRead() throws IOException {
+        LibraryStore.write(KEY, library);
+        String otherKey = CompiledLibraryCache.getKey("Stored", "1.0.0", "other source".getBytes(StandardCharsets.UTF_8));
+        Files.copy(getFile(KEY).toPath(), getFile(otherKey).toPath());
+
+        assertNull(LibraryStore.read(otherKey));
+    }
+
+    @Test
+    public void testDamagedFilesAreNotRead() throws IOException {
+        LibraryStore.write(KEY, library);
+        Path path = getFile(KEY).toPath();
+        byte[] content = Files.readAllBytes(path);
+
+        Files.write(path, Arrays.copyOf(content, content.length / 2));
+        assertNull(LibraryStore.read(KEY));
+
+        content[0] = 'X';
+        Files.write(path, content);
+        assertNull(LibraryStore.read(KEY));
+    }
+
+    // Old files can be removed at any time, the library is then translated and stored again
+    @Test
+    public void testRemovedFileIsWrittenAgain() {
+        LibraryStore.write(KEY, library);
+        assertNotNull(LibraryStore.read(KEY));
+
+        assertTrue(getFile(KEY).delete());
+        assertNull(LibraryStore.read(KEY));
+
+        LibraryStore.write(KEY, library);
+        assertNotNull(LibraryStore.read(KEY));
+    }
+
+    @Test
+    public void testDisabledStore() {
+        HapiProperties.setProperty("library_store.directory", "");
+        assertFalse(LibraryStore.isEnabled());
+
+        LibraryStore.write(KEY, library);
+        assertNull(LibraryStore.read(KEY));
+        assertEquals(0, this.folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,97 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class MemberIndexTest {
+
+    @Test
+    public void testOrdinalsAreDenseAndStable() {
+        MemberIndex index = new MemberIndex();
+        assertEquals(0, index.indexOf("a"));
+        assertEquals(1, index.indexOf("b"));
+        assertEquals(0, index.indexOf("a"));
+        assertEquals(2, index.indexOf("c"));
+
+        assertEquals(3, index.size());
+        assertEquals(Arrays.asList("a", "b", "c"), index.getIds());
+        assertEquals("b", index.getId(1));
+    }
+
+    @Test
+    public void testFindDoesNotIndex() {
+        MemberIndex index = new MemberIndex();
+        index.indexOf("a");
+
+        assertEquals(0, index.find("a"));
+        assertEquals(-1, index.find("b"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testGetIdsOfBitSet() {
+        MemberIndex index = new MemberIndex();
+        BitSet members = new BitSet();
+        for (String id : Arrays.asList("a", "b", "c", "d")) {
+            int ordinal = index.indexOf(id);
+            if (!id.equals("b")) {
+                members.set(ordinal);
+            }
+        }
+
+        assertEquals(Arrays.asList("a", "c", "d"), index.getIds(members));
+    }
+
+    // Workers indexing overlapping ids concurrently must still give each id exactly one dense ordinal
+    @Test
+    public void testConcurrentIndexing() throws Exception {
+        MemberIndex index = new MemberIndex();
+        int ids = 10000;
+        int workers = 8;
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Callable<int[]>> tasks = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                tasks.add(() -> {
+                    int[] ordinals = new int[ids];
+                    for (int i = 0; i < ids; i++) {
+                        ordinals[i] = index.indexOf("Patient/" + i);
+                    }
+                    return ordinals;
+                });
+            }
+
+            List<Future<int[]>> results = executor.invokeAll(tasks);
+            int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                assertEquals(Arrays.toString(expected), Arrays.toString(result.get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(ids, index.size());
+        Set<String> seen = new HashSet<>();
+        for (int ordinal = 0; ordinal < ids; ordinal++) {
+            String id = index.getId(ordinal);
+            assertNotNull(id);
+            assertEquals(ordinal, index.find(id));
+            seen.add(id);
+        }
+        assertEquals(ids, seen.size());
+    }
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.data.DataProvider;
+import org.opencds.cqf.cql.runtime.Code;
+import org.opencds.cqf.cql.runtime.Interval;
+
+public class RetrieveCacheTest {
+
+    private int retrieves;
+    private DataProvider cache;
+    private Method retrieve;
+
+    /*
+     * The engine's provider interface differs between versions, so the provider is a proxy that
+     * counts its retrieves and the retrieve method is called by reflection, as RetrieveCache does.
+     */
+    @Before
+    public void setup() {
+        DataProvider provider = (DataProvider) Proxy.newProxyInstance(DataProvider.class.getClassLoader(),
+                new Class<?>[] { DataProvider.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("retrieve")) {
+                        this.retrieves++;
+                        return Collections.singletonList("result " + this.retrieves);
+                    }
+                    return null;
+                });
+        this.cache = RetrieveCache.wrap(provider);
+
+        for (Method method : DataProvider.class.getMethods()) {
+            if (method.getName().equals("retrieve")) {
+                this.retrieve = method;
+            }
+        }
+    }
+
+    // retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, ..., dateRange)
+    private Object retrieve(String context, String patientId, String dataType, Iterable<Code> codes, Interval dateRange) throws Exception {
+        Object[] args = new Object[this.retrieve.getParameterCount()];
+        args[0] = context;
+        args[1] = "subject";
+        args[2] = patientId;
+        args[3] = dataType;
+        args[5] = codes != null ? "code" : null;
+        args[6] = codes;
+        args[args.length - 1] = dateRange;
+        return this.retrieve.invoke(this.cache, args);
+    }
+
+    private static Code code(String value) {
+        return new Code().withSystem("http://loinc.org").withCode(value);
+    }
+
+    @Test
+    public void testRepeatedRetrieveIsCached() throws Exception {
+        Object first = retrieve("Patient", "a", "Observation", null, null);
+        Object second = retrieve("Patient", "a", "Observation", null, null);
+
+        assertEquals(1, this.retrieves);
+        assertEquals(first, second);
+    }
+
+    // Each evaluation creates new Code instances, they match by value
+    @Test
+    public void testCodesAreComparedByValue() throws Exception {
+        retrieve("Patient", "a", "Observation", Arrays.asList(code("1234-5")), null);
+        retrieve("Patient", "a", "Observation", Arrays.asList(code("1234-5")), null);
+        assertEquals(1, this.retrieves);
+
+        retrieve("Patient", "a", "Observation", Arrays.asList(code("9999-9")), null);
+        assertEquals(2, this.retrieves);
+    }
+
+    @Test
+    public void testDifferentDataTypesAreNotShared() throws Exception {
+        retrieve("Patient", "a", "Observation", null, null);
+        retrieve("Patient", "a", "Condition", null, null);
+
+        assertEquals(2, this.retrieves);
+    }
+
+    // Date ranges only match the same instance, so retrieves filtered by different periods are not shared
+    @Test
+    public void testDateRangesAreComparedByInstance() throws Exception {
+        Interval period = new Interval(1, true, 2, true);
+        retrieve("Patient", "a", "Observation", null, period);
+        retrieve("Patient", "a", "Observation", null, period);
+        assertEquals(1, this.retrieves);
+
+        retrieve("Patient", "a", "Observation", null, new Interval(1, true, 2, true));
+        assertEquals(2, this.retrieves);
+    }
+
+    @Test
+    public void testResultsAreDiscardedForAnotherPatient() throws Exception {
+        retrieve("Patient", "a", "Observation", null, null);
+        retrieve("Patient", "b", "Observation", null, null);
+        retrieve("Patient", "a", "Observation", null, null);
+
+        assertEquals(3, this.retrieves);
+    }
+
+    @Test
+    public void testRetrievesOutsideThePatientContextAreNotCached() throws Exception {
+        retrieve("Unfiltered", null, "Practitioner", null, null);
+        retrieve("Unfiltered", null, "Practitioner", null, null);
+
+        assertEquals(2, this.retrieves);
+    }
+}
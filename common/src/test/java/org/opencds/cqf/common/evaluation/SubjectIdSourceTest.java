@@ -0,0 +1,73 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class SubjectIdSourceTest {
+
+    // Records the ranges of results that are read from the search
+    private static class RecordingBundleProvider extends SimpleBundleProvider {
+        private List<String> reads = new ArrayList<>();
+
+        RecordingBundleProvider(int patients) {
+            super(createPatients(patients));
+        }
+
+        @Override
+        public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+            this.reads.add(theFromIndex + "-" + theToIndex);
+            return super.getResources(theFromIndex, theToIndex);
+        }
+    }
+
+    private static List<IBaseResource> createPatients(int count) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            patients.add(new Patient().setId("Patient/p" + i));
+        }
+        return patients;
+    }
+
+    private static List<String> readAll(Iterator<String> iterator) {
+        List<String> ids = new ArrayList<>();
+        iterator.forEachRemaining(ids::add);
+        return ids;
+    }
+
+    @Test
+    public void testReadsOnePageAtATime() {
+        RecordingBundleProvider provider = new RecordingBundleProvider(5);
+
+        assertEquals(Arrays.asList("p0", "p1", "p2", "p3", "p4"), readAll(new SubjectIdSource(provider, 2).iterator()));
+        assertEquals(Arrays.asList("0-2", "2-4", "4-5"), provider.reads);
+    }
+
+    // A page from an offset is read from there, without reading the subjects before it
+    @Test
+    public void testReadsFromOffset() {
+        RecordingBundleProvider provider = new RecordingBundleProvider(10);
+
+        Iterator<String> page = new SubjectIdSource(provider, 3).iterator(6);
+        assertEquals("p6", page.next());
+        assertEquals(Arrays.asList("6-9"), provider.reads);
+    }
+
+    @Test
+    public void testOffsetPastTheEnd() {
+        RecordingBundleProvider provider = new RecordingBundleProvider(2);
+
+        assertFalse(new SubjectIdSource(provider, 3).iterator(5).hasNext());
+        assertEquals(0, provider.reads.size());
+    }
+}
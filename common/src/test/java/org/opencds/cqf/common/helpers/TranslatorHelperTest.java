@@ -0,0 +1,64 @@
+package org.opencds.cqf.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.Test;
+import org.opencds.cqf.cql.execution.Context;
+
+public class TranslatorHelperTest {
+
+    private static final String CQL = "library Conversion version '1.0.0'\n"
+            + "parameter \"Threshold\" Integer default 10\n"
+            + "define \"Values\": ({ 1, 2, 3, 4, 5 }) X where X > 1 return X * X\n"
+            + "define \"Total\": Sum(\"Values\")\n"
+            + "define \"Above\": \"Total\" > \"Threshold\"\n";
+
+    private static org.hl7.elm.r1.Library translate() {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = TranslatorHelper.getTranslator(CQL, new LibraryManager(modelManager), modelManager);
+        assertEquals(0, translator.getErrors().size());
+        return translator.toELM();
+    }
+
+    private static List<String> getDefinitions(Library library) {
+        List<String> names = new ArrayList<>();
+        for (ExpressionDef def : library.getStatements().getDef()) {
+            names.add(def.getName());
+        }
+        return names;
+    }
+
+    // Converting the translator's model directly gives the same library as writing and reading its xml
+    @Test
+    public void testDirectConversionMatchesXml() {
+        org.hl7.elm.r1.Library elm = translate();
+        Library direct = TranslatorHelper.toExecutionLibrary(elm);
+        Library read = TranslatorHelper.readLibrary(new ByteArrayInputStream(TranslatorHelper.toElmXml(elm)));
+
+        assertEquals(read.getIdentifier().getId(), direct.getIdentifier().getId());
+        assertEquals(read.getIdentifier().getVersion(), direct.getIdentifier().getVersion());
+        assertEquals(getDefinitions(read), getDefinitions(direct));
+        assertEquals(read.getParameters().getDef().size(), direct.getParameters().getDef().size());
+    }
+
+    @Test
+    public void testConvertedLibraryEvaluates() {
+        Library library = TranslatorHelper.toExecutionLibrary(translate());
+        Context context = new Context(library);
+
+        Object total = context.resolveExpressionRef("Total").evaluate(context);
+        assertNotNull(total);
+        assertEquals(54, ((Number) total).intValue());
+        assertEquals(Boolean.TRUE, context.resolveExpressionRef("Above").evaluate(context));
+    }
+}
@@ -0,0 +1,245 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.opencds.cqf.common.evaluation.BitSetJournal;
+import org.opencds.cqf.common.evaluation.EvaluatedResourceMode;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.MemberIndex;
+import org.opencds.cqf.common.evaluation.RunningStatistics;
+
+/*
+ * Collects the per-group populations and the evaluated resources of a measure evaluation
+ * over a set of patients.
+ */
+public class MeasureAccumulator {
+
+    private Measure measure;
+    private MemberIndex index;
+    private List<GroupAccumulator> groups = new ArrayList<>();
+    private HashMap<String, Resource> resources = new HashMap<>();
+    private HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+    private EvaluatedResourceMode evaluatedResourceMode;
+    // The patients counted for each supplemental data element, by value
+    private List<Map<String, BitSet>> supplementalData = new ArrayList<>();
+    private BitSetJournal journal;
+
+    public MeasureAccumulator(Measure measure, MemberIndex index, boolean trackPatients, EvaluatedResourceMode evaluatedResourceMode) {
+        this.measure = measure;
+        this.index = index;
+        this.evaluatedResourceMode = evaluatedResourceMode;
+        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+            this.groups.add(new GroupAccumulator(group, index, trackPatients));
+        }
+        for (int i = 0; i < measure.getSupplementalData().size(); i++) {
+            this.supplementalData.add(new TreeMap<>());
+        }
+    }
+
+    /*
+     * Records the changes made for each patient, so that a patient whose evaluation is stopped
+     * part way can be rolled back. Evaluated resources are not rolled back.
+     */
+    public void enableJournal() {
+        this.journal = new BitSetJournal();
+        for (GroupAccumulator group : this.groups) {
+            group.setJournal(this.journal);
+        }
+    }
+
+    // Keeps the changes made for the previous patient and starts recording those of the next
+    public void startPatient() {
+        if (this.journal != null) {
+            this.journal.commit();
+            for (GroupAccumulator group : this.groups) {
+                group.startPatient();
+            }
+        }
+    }
+
+    // Undoes the changes made for the patient since startPatient
+    public void rollbackPatient() {
+        if (this.journal != null) {
+            this.journal.rollback();
+        }
+    }
+
+    public Measure getMeasure() {
+        return this.measure;
+    }
+
+    public List<GroupAccumulator> getGroups() {
+        return this.groups;
+    }
+
+    public EvaluatedResourceMode getEvaluatedResourceMode() {
+        return this.evaluatedResourceMode;
+    }
+
+    public HashMap<String, Resource> getResources() {
+        return this.resources;
+    }
+
+    public HashMap<String, HashSet<String>> getCodeToResourceMap() {
+        return this.codeToResourceMap;
+    }
+
+    public void addSupplementalData(int element, String value, String patientId) {
+        Map<String, BitSet> values = this.supplementalData.get(element);
+        if (this.journal != null && !values.containsKey(value)) {
+            this.journal.onRollback(() -> values.remove(value));
+        }
+        BitSet patients = values.computeIfAbsent(value, x -> new BitSet());
+        if (this.journal != null) {
+            this.journal.set(patients, this.index.indexOf(patientId));
+        }
+        else {
+            patients.set(this.index.indexOf(patientId));
+        }
+    }
+
+    public Map<String, BitSet> getSupplementalData(int element) {
+        return this.supplementalData.get(element);
+    }
+
+    /*
+     * Encodes the populations and evaluated resource references as text, one line per population:
+     * "m <group> <population> <ids>" for members, "p <group> <population> <ids>" for patients and
+     * "r <population> <references>" for evaluated resources. FHIR ids contain no spaces or commas.
+     * Strata are encoded as "s <group> <stratifier> <value> <ids>" and supplemental data as
+     * "d <element> <value> <patient ids>", with the values URL encoded.
+     * Measure observation statistics are encoded as "o <group> <statistics>".
+     * The first line, "i <ids>", lists the member ids in index order so that decoding into an
+     * empty index restores the same order.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        appendLine(builder, "i", this.index.getIds());
+        for (int i = 0; i < this.groups.size(); i++) {
+            GroupAccumulator group = this.groups.get(i);
+            for (MeasurePopulationType type : group.getPopulationTypes()) {
+                appendLine(builder, "m " + i + " " + type.toCode(), group.getMembers(type));
+                appendLine(builder, "p " + i + " " + type.toCode(), group.getPatients(type));
+            }
+        }
+
+        for (int i = 0; i < this.groups.size(); i++) {
+            GroupAccumulator group = this.groups.get(i);
+            for (int j = 0; j < group.getStratifierCount(); j++) {
+                for (String value : group.getStrata(j).keySet()) {
+                    appendLine(builder, "s " + i + " " + j + " " + URLEncoder.encode(value, StandardCharsets.UTF_8),
+                            group.getStratumMembers(j, value));
+                }
+            }
+        }
+
+        for (int i = 0; i < this.groups.size(); i++) {
+            RunningStatistics observations = this.groups.get(i).getObservations();
+            if (observations.getCount() > 0) {
+                builder.append("o ").append(i).append(' ').append(observations.encode()).append('\n');
+            }
+        }
+
+        for (int i = 0; i < this.supplementalData.size(); i++) {
+            for (Map.Entry<String, BitSet> entry : this.supplementalData.get(i).entrySet()) {
+                appendLine(builder, "d " + i + " " + URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8),
+                        this.index.getIds(entry.getValue()));
+            }
+        }
+
+        for (Map.Entry<String, HashSet<String>> entry : this.codeToResourceMap.entrySet()) {
+            appendLine(builder, "r " + entry.getKey(), entry.getValue());
+        }
+
+        return builder.toString();
+    }
+
+    // Adds populations and evaluated resource references previously produced by encode
+    public void addEncoded(String encoded) {
+        for (String line : encoded.split("\n")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 2 && parts[0].equals("i")) {
+                for (String id : parts[1].split(",")) {
+                    this.index.indexOf(id);
+                }
+                continue;
+            }
+            if (parts.length < 3) {
+                continue;
+            }
+
+            if (parts[0].equals("r") && this.evaluatedResourceMode != EvaluatedResourceMode.NONE) {
+                this.codeToResourceMap.computeIfAbsent(parts[1], x -> new HashSet<>()).addAll(Arrays.asList(parts[2].split(",")));
+            }
+            else if (parts.length == 5 && parts[0].equals("s")) {
+                GroupAccumulator group = this.groups.get(Integer.parseInt(parts[1]));
+                String value = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+                for (String id : parts[4].split(",")) {
+                    group.addStratumMember(Integer.parseInt(parts[2]), value, id);
+                }
+            }
+            else if (parts.length == 3 && parts[0].equals("o")) {
+                this.groups.get(Integer.parseInt(parts[1])).addObservations(RunningStatistics.decode(parts[2]));
+            }
+            else if (parts.length == 4 && parts[0].equals("d")) {
+                String value = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+                for (String id : parts[3].split(",")) {
+                    addSupplementalData(Integer.parseInt(parts[1]), value, id);
+                }
+            }
+            else if (parts.length == 4 && (parts[0].equals("m") || parts[0].equals("p"))) {
+                GroupAccumulator group = this.groups.get(Integer.parseInt(parts[1]));
+                MeasurePopulationType type = MeasurePopulationType.fromCode(parts[2]);
+                for (String id : parts[3].split(",")) {
+                    if (parts[0].equals("m")) {
+                        group.add(type, id);
+                    }
+                    else {
+                        group.addPatient(type, id);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void appendLine(StringBuilder builder, String prefix, Collection<String> ids) {
+        if (ids != null && !ids.isEmpty()) {
+            builder.append(prefix).append(' ').append(String.join(",", ids)).append('\n');
+        }
+    }
+
+    public MeasureAccumulator merge(MeasureAccumulator other) {
+        for (int i = 0; i < this.groups.size(); i++) {
+            this.groups.get(i).merge(other.groups.get(i));
+        }
+
+        for (Map.Entry<String, Resource> entry : other.resources.entrySet()) {
+            this.resources.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+
+        for (Map.Entry<String, HashSet<String>> entry : other.codeToResourceMap.entrySet()) {
+            this.codeToResourceMap.computeIfAbsent(entry.getKey(), x -> new HashSet<>()).addAll(entry.getValue());
+        }
+
+        for (int i = 0; i < this.supplementalData.size(); i++) {
+            for (Map.Entry<String, BitSet> entry : other.supplementalData.get(i).entrySet()) {
+                this.supplementalData.get(i).computeIfAbsent(entry.getKey(), x -> new BitSet()).or(entry.getValue());
+            }
+        }
+
+        return this;
+    }
+}
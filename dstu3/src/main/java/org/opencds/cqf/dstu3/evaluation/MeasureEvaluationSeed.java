@@ -15,7 +15,9 @@ import org.opencds.cqf.cql.runtime.DateTime;
 import org.opencds.cqf.cql.runtime.Interval;
 import org.opencds.cqf.cql.terminology.TerminologyProvider;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
+import org.opencds.cqf.common.evaluation.EvaluationExplainer;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.TerminologyCache;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.UsingHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
@@ -32,6 +34,12 @@ public class MeasureEvaluationSeed
     private LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> libraryResourceProvider;
     private EvaluationProviderFactory providerFactory;
     private DataProvider dataProvider;
+    private Library library;
+    private TerminologyProvider terminologyProvider;
+    private List<Triple<String,String,String>> usingDefs;
+    private String productLine;
+    // Shared by the seeds of one request, so that value sets are only expanded once per request
+    private TerminologyCache terminologyCache;
 
     public MeasureEvaluationSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader, LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> libraryResourceProvider)
     {
@@ -46,16 +54,20 @@ public class MeasureEvaluationSeed
     {
         this.measure = measure;
 
+        EvaluationExplainer explainer = EvaluationExplainer.current();
+        long start = System.nanoTime();
+
         LibraryHelper.loadLibraries(measure, this.libraryLoader, this.libraryResourceProvider);
 
         // resolve primary library
-        Library library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
+        library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
 
-        // resolve execution context
-        context = new Context(library);
-        context.registerLibraryLoader(libraryLoader);
+        if (explainer != null) {
+            explainer.recordPhase(EvaluationExplainer.PHASE_LIBRARY, System.nanoTime() - start);
+            explainer.addRetrievePlan(library, libraryLoader);
+        }
 
-        List<Triple<String,String,String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
+        usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
 
         if (usingDefs.size() > 1) {
             throw new IllegalArgumentException("Evaluation of Measure using multiple Models is not supported at this time.");
@@ -63,28 +75,56 @@ public class MeasureEvaluationSeed
 
         // If there are no Usings, there is probably not any place the Terminology
         // actually used so I think the assumption that at least one provider exists is ok.
-        TerminologyProvider terminologyProvider = null;
+        terminologyProvider = null;
         if (usingDefs.size() > 0) {
             // Creates a terminology provider based on the first using statement. This assumes the terminology
             // server matches the FHIR version of the CQL.
             terminologyProvider = this.providerFactory.createTerminologyProvider(
                     usingDefs.get(0).getLeft(), usingDefs.get(0).getMiddle(),
                         source, user, pass);
-            context.registerTerminologyProvider(terminologyProvider);
+            if (this.terminologyCache != null) {
+                terminologyProvider = this.terminologyCache.wrap(terminologyProvider);
+            }
+            if (explainer != null) {
+                terminologyProvider = explainer.wrap(terminologyProvider);
+            }
         }
 
         for (Triple<String,String,String> def : usingDefs)
         {
             this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(), terminologyProvider);
-            context.registerDataProvider(
-                def.getRight(), 
-                dataProvider);
         }
 
         // resolve the measurement period
         measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
                 DateHelper.resolveRequestDate(periodEnd, false), true);
 
+        this.productLine = productLine;
+
+        // resolve execution context
+        context = createContext();
+    }
+
+    /*
+     * Builds a new execution context from the state resolved in setup. Each context has its own
+     * expression cache, so separate contexts can be used to evaluate patients on separate threads.
+     */
+    public Context createContext()
+    {
+        Context context = new Context(library);
+        context.registerLibraryLoader(libraryLoader);
+
+        if (terminologyProvider != null) {
+            context.registerTerminologyProvider(terminologyProvider);
+        }
+
+        for (Triple<String,String,String> def : usingDefs)
+        {
+            context.registerDataProvider(
+                def.getRight(), 
+                dataProvider);
+        }
+
         context.setParameter(null, "Measurement Period",
                 new Interval(DateTime.fromJavaDate((Date) measurementPeriod.getStart()), true,
                         DateTime.fromJavaDate((Date) measurementPeriod.getEnd()), true));
@@ -94,5 +134,7 @@ public class MeasureEvaluationSeed
         }
 
         context.setExpressionCaching(true);
+
+        return context;
     }
 }
@@ -0,0 +1,370 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Extension;
+import org.hl7.fhir.dstu3.model.ListResource;
+import org.hl7.fhir.dstu3.model.MeasureReport;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * Merges the partial reports of a sharded evaluation. Population counts are added, subject
+ * lists and evaluated resources are combined without duplicates, and scores are recomputed from
+ * the merged counts. A report stopped by its budget leaves the merged report pending, and the
+ * OperationOutcome of every such report is kept. Merging is associative, so partial reports can
+ * be combined in any grouping.
+ */
+public class MeasureReportMerger {
+
+    public static MeasureReport merge(MeasureReport left, MeasureReport right) {
+        MeasureReport merged = left.copy();
+
+        for (int i = 0; i < right.getGroup().size(); i++) {
+            MeasureReport.MeasureReportGroupComponent rightGroup = right.getGroup().get(i);
+            MeasureReport.MeasureReportGroupComponent group = findGroup(merged, rightGroup, i);
+            if (group == null) {
+                group = merged.addGroup();
+                group.setIdentifier(rightGroup.getIdentifier().copy());
+            }
+            mergeGroup(merged, group, right, rightGroup);
+        }
+
+        mergeEvaluatedResources(merged, right);
+        mergeSupplementalData(merged, right);
+        mergeOutcomes(merged, right);
+        return merged;
+    }
+
+    // Groups are matched by identifier, or by position when the measure groups have no identifiers
+    private static MeasureReport.MeasureReportGroupComponent findGroup(MeasureReport report,
+            MeasureReport.MeasureReportGroupComponent group, int index) {
+        if (!group.getIdentifier().hasValue()) {
+            return index < report.getGroup().size() ? report.getGroup().get(index) : null;
+        }
+
+        for (MeasureReport.MeasureReportGroupComponent candidate : report.getGroup()) {
+            if (group.getIdentifier().getValue().equals(candidate.getIdentifier().getValue())) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private static void mergeGroup(MeasureReport merged, MeasureReport.MeasureReportGroupComponent group,
+            MeasureReport right, MeasureReport.MeasureReportGroupComponent rightGroup) {
+        MeasureReport.MeasureReportGroupPopulationComponent leftObservations = findPopulation(group, MeasurePopulationType.MEASUREOBSERVATION.toCode());
+        int leftObservationCount = leftObservations != null ? leftObservations.getCount() : 0;
+
+        for (MeasureReport.MeasureReportGroupPopulationComponent rightPopulation : rightGroup.getPopulation()) {
+            MeasureReport.MeasureReportGroupPopulationComponent population = findPopulation(group, getCode(rightPopulation));
+            if (population == null) {
+                population = group.addPopulation();
+                population.setCode(rightPopulation.getCode().copy());
+            }
+            population.setCount(population.getCount() + rightPopulation.getCount());
+
+            ListResource rightList = rightPopulation.hasPatients()
+                    ? (ListResource) findContained(right, rightPopulation.getPatients().getReference()) : null;
+            if (rightList != null) {
+                ListResource list = population.hasPatients()
+                        ? (ListResource) findContained(merged, population.getPatients().getReference()) : null;
+                if (list == null) {
+                    list = new ListResource();
+                    list.setId(UUID.randomUUID().toString());
+                    merged.addContained(list);
+                    population.setPatients(new Reference("#" + list.getId()));
+                }
+                mergeListEntries(list, rightList);
+            }
+        }
+
+        MeasureReport.MeasureReportGroupPopulationComponent rightObservations = findPopulation(rightGroup, MeasurePopulationType.MEASUREOBSERVATION.toCode());
+        if (rightObservations != null && findPopulation(group, MeasurePopulationType.DENOMINATOR.toCode()) == null) {
+            mergeObservationScore(group, leftObservationCount, rightGroup, rightObservations);
+        }
+        // Scores are only reported for proportion and ratio measures with a non-empty denominator
+        else if (group.hasMeasureScore() || rightGroup.hasMeasureScore()) {
+            MeasureReport.MeasureReportGroupPopulationComponent numerator = findPopulation(group, MeasurePopulationType.NUMERATOR.toCode());
+            MeasureReport.MeasureReportGroupPopulationComponent denominator = findPopulation(group, MeasurePopulationType.DENOMINATOR.toCode());
+            if (numerator != null && denominator != null && denominator.getCount() > 0) {
+                group.setMeasureScore(numerator.getCount() / (double) denominator.getCount());
+            }
+            else {
+                group.setMeasureScoreElement(null);
+            }
+        }
+
+        mergeStratifiers(group, rightGroup);
+    }
+
+    // Stratifiers are matched by position, their strata by value and stratum populations by code
+    private static void mergeStratifiers(MeasureReport.MeasureReportGroupComponent group,
+            MeasureReport.MeasureReportGroupComponent rightGroup) {
+        for (int i = 0; i < rightGroup.getStratifier().size(); i++) {
+            MeasureReport.MeasureReportGroupStratifierComponent rightStratifier = rightGroup.getStratifier().get(i);
+            if (i >= group.getStratifier().size()) {
+                group.addStratifier(rightStratifier.copy());
+                continue;
+            }
+
+            MeasureReport.MeasureReportGroupStratifierComponent stratifier = group.getStratifier().get(i);
+            for (MeasureReport.StratifierGroupComponent rightStratum : rightStratifier.getStratum()) {
+                MeasureReport.StratifierGroupComponent stratum = findStratum(stratifier, rightStratum.getValue());
+                if (stratum == null) {
+                    stratifier.addStratum(rightStratum.copy());
+                    continue;
+                }
+
+                for (MeasureReport.StratifierGroupPopulationComponent rightPopulation : rightStratum.getPopulation()) {
+                    MeasureReport.StratifierGroupPopulationComponent population = findStratumPopulation(stratum,
+                            rightPopulation.getCode().getCodingFirstRep().getCode());
+                    if (population == null) {
+                        stratum.addPopulation(rightPopulation.copy());
+                    }
+                    else {
+                        population.setCount(population.getCount() + rightPopulation.getCount());
+                    }
+                }
+
+                if (stratum.hasMeasureScore() || rightStratum.hasMeasureScore()) {
+                    MeasureReport.StratifierGroupPopulationComponent numerator = findStratumPopulation(stratum, MeasurePopulationType.NUMERATOR.toCode());
+                    MeasureReport.StratifierGroupPopulationComponent denominator = findStratumPopulation(stratum, MeasurePopulationType.DENOMINATOR.toCode());
+                    if (numerator != null && denominator != null && denominator.getCount() > 0) {
+                        stratum.setMeasureScore(numerator.getCount() / (double) denominator.getCount());
+                    }
+                    else {
+                        stratum.setMeasureScoreElement(null);
+                    }
+                }
+            }
+        }
+    }
+
+    private static MeasureReport.StratifierGroupComponent findStratum(MeasureReport.MeasureReportGroupStratifierComponent stratifier,
+            String value) {
+        for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+            if (value != null && value.equals(stratum.getValue())) {
+                return stratum;
+            }
+        }
+
+        return null;
+    }
+
+    private static MeasureReport.StratifierGroupPopulationComponent findStratumPopulation(
+            MeasureReport.StratifierGroupComponent stratum, String code) {
+        for (MeasureReport.StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+            if (code != null && code.equals(population.getCode().getCodingFirstRep().getCode())) {
+                return population;
+            }
+        }
+
+        return null;
+    }
+
+    // Supplemental data Observations are matched by their element and value, and their counts added
+    private static void mergeSupplementalData(MeasureReport merged, MeasureReport right) {
+        for (Extension rightExtension : right.getExtensionsByUrl(MeasureEvaluation.SUPPLEMENTAL_DATA_EXTENSION)) {
+            Observation rightObservation = (Observation) findContained(right, ((Reference) rightExtension.getValue()).getReference());
+            if (rightObservation == null) {
+                continue;
+            }
+
+            Observation observation = null;
+            for (Extension extension : merged.getExtensionsByUrl(MeasureEvaluation.SUPPLEMENTAL_DATA_EXTENSION)) {
+                Observation candidate = (Observation) findContained(merged, ((Reference) extension.getValue()).getReference());
+                if (candidate != null && getSupplementalDataKey(candidate).equals(getSupplementalDataKey(rightObservation))) {
+                    observation = candidate;
+                    break;
+                }
+            }
+
+            if (observation == null) {
+                observation = rightObservation.copy();
+                merged.addContained(observation);
+                merged.addExtension(new Extension(MeasureEvaluation.SUPPLEMENTAL_DATA_EXTENSION, new Reference("#" + getLocalId(observation))));
+            }
+            else {
+                observation.getValueQuantity().setValue(observation.getValueQuantity().getValue()
+                        .add(rightObservation.getValueQuantity().getValue()));
+            }
+        }
+    }
+
+    // The outcomes say why a partial report is incomplete, so each one is contained in the merged report
+    private static void mergeOutcomes(MeasureReport merged, MeasureReport right) {
+        if (right.getStatus() == MeasureReport.MeasureReportStatus.PENDING) {
+            merged.setStatus(MeasureReport.MeasureReportStatus.PENDING);
+        }
+
+        for (Resource contained : right.getContained()) {
+            if (contained instanceof OperationOutcome && findContained(merged, "#" + getLocalId(contained)) == null) {
+                merged.addContained(contained.copy());
+            }
+        }
+    }
+
+    private static String getSupplementalDataKey(Observation observation) {
+        Extension criteria = MeasureEvaluation.getExtension(observation.getExtensionsByUrl(MeasureEvaluation.CRITERIA_REFERENCE_EXTENSION));
+        return (criteria != null ? criteria.getValue().primitiveValue() : "") + "|" + observation.getCode().getText();
+    }
+
+    /*
+     * Combines continuous variable scores using the aggregate method reported on the measure
+     * observation population. Medians cannot be combined from partial scores and are dropped.
+     */
+    private static void mergeObservationScore(MeasureReport.MeasureReportGroupComponent group, int leftCount,
+            MeasureReport.MeasureReportGroupComponent rightGroup, MeasureReport.MeasureReportGroupPopulationComponent rightObservations) {
+        int rightCount = rightObservations.getCount();
+        if (rightCount == 0) {
+            return;
+        }
+        if (leftCount == 0) {
+            group.setMeasureScoreElement(rightGroup.hasMeasureScore() ? rightGroup.getMeasureScoreElement().copy() : null);
+            return;
+        }
+        // Once a score is dropped it stays unknown, whichever way the rest of the reports are grouped
+        if (!group.hasMeasureScore() || !rightGroup.hasMeasureScore()) {
+            group.setMeasureScoreElement(null);
+            return;
+        }
+
+        Extension aggregateMethod = MeasureEvaluation.getExtension(rightObservations.getExtensionsByUrl(MeasureEvaluation.AGGREGATE_METHOD_EXTENSION));
+        String method = aggregateMethod != null && aggregateMethod.hasValue() ? aggregateMethod.getValue().primitiveValue() : "average";
+        double left = group.getMeasureScore().doubleValue();
+        double right = rightGroup.getMeasureScore().doubleValue();
+        Double score;
+        switch (method) {
+            case "average": score = (left * leftCount + right * rightCount) / (leftCount + rightCount); break;
+            case "sum":
+            case "count": score = left + right; break;
+            case "minimum": score = Math.min(left, right); break;
+            case "maximum": score = Math.max(left, right); break;
+            default: score = null;
+        }
+
+        if (score != null) {
+            group.setMeasureScore(score);
+        }
+        else {
+            group.setMeasureScoreElement(null);
+        }
+    }
+
+    private static String getCode(MeasureReport.MeasureReportGroupPopulationComponent population) {
+        return population.getCode().getCodingFirstRep().getCode();
+    }
+
+    private static MeasureReport.MeasureReportGroupPopulationComponent findPopulation(
+            MeasureReport.MeasureReportGroupComponent group, String code) {
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+            if (code != null && code.equals(getCode(population))) {
+                return population;
+            }
+        }
+
+        return null;
+    }
+
+    // Evaluated resources are either a contained Bundle of the resources or a contained List of references
+    private static void mergeEvaluatedResources(MeasureReport merged, MeasureReport right) {
+        Resource rightResources = right.hasEvaluatedResources()
+                ? findContained(right, right.getEvaluatedResources().getReference()) : null;
+        if (rightResources == null) {
+            return;
+        }
+
+        Resource resources = merged.hasEvaluatedResources()
+                ? findContained(merged, merged.getEvaluatedResources().getReference()) : null;
+        if (resources == null) {
+            resources = rightResources.copy();
+            merged.addContained(resources);
+            merged.setEvaluatedResources(new Reference("#" + getLocalId(resources)));
+        }
+        else if (resources instanceof Bundle && rightResources instanceof Bundle) {
+            mergeBundles((Bundle) resources, (Bundle) rightResources);
+        }
+        else if (resources instanceof ListResource && rightResources instanceof ListResource) {
+            mergeListEntries((ListResource) resources, (ListResource) rightResources);
+        }
+    }
+
+    // Lists of evaluated resources are matched by their title, other resources by their id
+    private static void mergeBundles(Bundle bundle, Bundle right) {
+        for (Bundle.BundleEntryComponent rightEntry : right.getEntry()) {
+            Resource rightResource = rightEntry.getResource();
+            Resource resource = null;
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (isSameEntry(entry.getResource(), rightResource)) {
+                    resource = entry.getResource();
+                    break;
+                }
+            }
+
+            if (resource == null) {
+                bundle.addEntry(rightEntry.copy());
+            }
+            else if (resource instanceof ListResource) {
+                mergeListEntries((ListResource) resource, (ListResource) rightResource);
+            }
+        }
+    }
+
+    private static boolean isSameEntry(Resource resource, Resource other) {
+        if (resource == null || other == null || !resource.fhirType().equals(other.fhirType())) {
+            return false;
+        }
+
+        if (resource instanceof ListResource) {
+            return ((ListResource) resource).hasTitle() && ((ListResource) resource).getTitle().equals(((ListResource) other).getTitle());
+        }
+
+        return resource.getIdElement().getIdPart() != null
+                && resource.getIdElement().getIdPart().equals(other.getIdElement().getIdPart());
+    }
+
+    private static void mergeListEntries(ListResource list, ListResource right) {
+        Set<String> items = new HashSet<>();
+        for (ListResource.ListEntryComponent entry : list.getEntry()) {
+            items.add(entry.getItem().getReference());
+        }
+
+        for (ListResource.ListEntryComponent entry : right.getEntry()) {
+            if (items.add(entry.getItem().getReference())) {
+                list.addEntry(entry.copy());
+            }
+        }
+    }
+
+    private static boolean isLocal(String reference) {
+        return reference != null && reference.startsWith("#");
+    }
+
+    // Contained ids may or may not keep their leading '#' depending on how the report was parsed
+    private static String getLocalId(Resource resource) {
+        String id = resource.getIdElement().getIdPart();
+        return id != null && id.startsWith("#") ? id.substring(1) : id;
+    }
+
+    private static Resource findContained(MeasureReport report, String reference) {
+        if (!isLocal(reference)) {
+            return null;
+        }
+
+        for (Resource contained : report.getContained()) {
+            if (reference.substring(1).equals(getLocalId(contained))) {
+                return contained;
+            }
+        }
+
+        return null;
+    }
+}
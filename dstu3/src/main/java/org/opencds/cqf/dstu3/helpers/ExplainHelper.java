@@ -0,0 +1,77 @@
+package org.opencds.cqf.dstu3.helpers;
+
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.DecimalType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.opencds.cqf.common.evaluation.EvaluationExplainer;
+
+/**
+ * Reports what an EvaluationExplainer recorded as a Parameters resource: a "retrieve" for each
+ * retrieve of the libraries, a "query" for each query the retrieves executed, a "phase" and an
+ * "expression" with the time of each phase and expression definition, and a "cache" with the
+ * hit ratio of the expression and library caches. Times are in milliseconds.
+ */
+public class ExplainHelper {
+
+    public static Parameters toParameters(EvaluationExplainer explainer) {
+        Parameters parameters = new Parameters();
+
+        for (EvaluationExplainer.RetrievePlan retrieve : explainer.getRetrieves()) {
+            Parameters.ParametersParameterComponent parameter = parameters.addParameter().setName("retrieve");
+            addPart(parameter, "library", retrieve.getLibrary());
+            addPart(parameter, "dataType", retrieve.getDataType());
+            addPart(parameter, "templateId", retrieve.getTemplateId());
+            addPart(parameter, "codeProperty", retrieve.getCodeProperty());
+            addPart(parameter, "codes", retrieve.getCodes());
+            addPart(parameter, "dateProperty", retrieve.getDateProperty());
+        }
+
+        for (EvaluationExplainer.Statistics query : explainer.getQueries()) {
+            Parameters.ParametersParameterComponent parameter = parameters.addParameter().setName("query");
+            addPart(parameter, "dataType", query.getDataType());
+            addPart(parameter, "searchParameterMap", query.getName());
+            parameter.addPart().setName("executions").setValue(new IntegerType(query.getCount()));
+            parameter.addPart().setName("rows").setValue(new IntegerType((int) Math.min(query.getRows(), Integer.MAX_VALUE)));
+            parameter.addPart().setName("time").setValue(new DecimalType(query.getMillis()));
+        }
+
+        for (Map.Entry<String, EvaluationExplainer.Statistics> phase : explainer.getPhases().entrySet()) {
+            Parameters.ParametersParameterComponent parameter = parameters.addParameter().setName("phase");
+            addPart(parameter, "name", phase.getKey());
+            parameter.addPart().setName("calls").setValue(new IntegerType(phase.getValue().getCount()));
+            parameter.addPart().setName("time").setValue(new DecimalType(phase.getValue().getMillis()));
+        }
+
+        for (EvaluationExplainer.Statistics expression : explainer.getExpressions()) {
+            Parameters.ParametersParameterComponent parameter = parameters.addParameter().setName("expression");
+            addPart(parameter, "name", expression.getName());
+            parameter.addPart().setName("evaluations").setValue(new IntegerType(expression.getCount()));
+            parameter.addPart().setName("cacheHits").setValue(new IntegerType(expression.getCacheHits()));
+            parameter.addPart().setName("time").setValue(new DecimalType(expression.getMillis()));
+        }
+
+        addCache(parameters, "expression", explainer.getExpressionCount(), explainer.getExpressionCacheHits());
+        for (EvaluationExplainer.Statistics cache : explainer.getCaches()) {
+            addCache(parameters, cache.getName(), cache.getCount(), cache.getCacheHits());
+        }
+
+        return parameters;
+    }
+
+    private static void addCache(Parameters parameters, String name, int lookups, int hits) {
+        Parameters.ParametersParameterComponent cache = parameters.addParameter().setName("cache");
+        addPart(cache, "name", name);
+        cache.addPart().setName("lookups").setValue(new IntegerType(lookups));
+        cache.addPart().setName("hits").setValue(new IntegerType(hits));
+        cache.addPart().setName("hitRatio").setValue(new DecimalType(lookups > 0 ? (double) hits / lookups : 0));
+    }
+
+    private static void addPart(Parameters.ParametersParameterComponent parameter, String name, String value) {
+        if (value != null) {
+            parameter.addPart().setName(name).setValue(new StringType(value));
+        }
+    }
+}
@@ -27,14 +27,17 @@ public class LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
         
-        libraryManager.getLibrarySourceLoader().registerProvider(
+        LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment> sourceProvider =
             new LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment>(
                 provider, 
                 x -> x.getContent(),
                 x -> x.getContentType(),
-                x -> x.getData()));
+                x -> x.getData(),
+                x -> x.hasExtension(LibrarySourceProvider.CQL_HASH_EXTENSION)
+                    ? x.getExtensionsByUrl(LibrarySourceProvider.CQL_HASH_EXTENSION).get(0).getValue().primitiveValue() : null);
+        libraryManager.getLibrarySourceLoader().registerProvider(sourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, sourceProvider);
     }
 
 
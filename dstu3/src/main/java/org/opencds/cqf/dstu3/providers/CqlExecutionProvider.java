@@ -1,5 +1,6 @@
 package org.opencds.cqf.dstu3.providers;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -25,6 +26,8 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.Type;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.EvaluationExplainer;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.helpers.DateHelper;
@@ -35,6 +38,7 @@ import org.opencds.cqf.cql.execution.Context;
 import org.opencds.cqf.cql.runtime.DateTime;
 import org.opencds.cqf.cql.runtime.Interval;
 import org.opencds.cqf.cql.terminology.TerminologyProvider;
+import org.opencds.cqf.dstu3.helpers.ExplainHelper;
 import org.opencds.cqf.dstu3.helpers.FhirMeasureBundler;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
@@ -176,8 +180,14 @@ public class CqlExecutionProvider {
 
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        // The source is made of the expression, the resource type and the included library versions,
+        // so the compiled expression is shared by every evaluation of it and only the parameters are bound per call
+        String key = CompiledLibraryCache.getKey("LocalLibrary", null, source.getBytes(StandardCharsets.UTF_8));
+        org.cqframework.cql.elm.execution.Library library = CompiledLibraryCache.get(key);
+        if (library == null) {
+            library = TranslatorHelper.translateLibrary(source, libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+            CompiledLibraryCache.put(key, library);
+        }
         Context context = new Context(library);
         context.setParameter(null, instance.fhirType(), instance);
         context.setParameter(null, "%context", instance);
@@ -199,12 +209,36 @@ public class CqlExecutionProvider {
             @OperationParam(name = "terminologyUser") String terminologyUser,
             @OperationParam(name = "terminologyPass") String terminologyPass,
             @OperationParam(name = "context") String contextParam,
-            @OperationParam(name = "parameters") Parameters parameters) {
+            @OperationParam(name = "parameters") Parameters parameters,
+            @OperationParam(name = "_explain") String explain) {
 
         if (patientId == null && contextParam != null && contextParam.equals("Patient") ) {
             throw new IllegalArgumentException("Must specify a patientId when executing in Patient context.");
         }
 
+        if (!Boolean.parseBoolean(explain)) {
+            return evaluate(code, patientId, periodStart, periodEnd, productLine, terminologyServiceUri, terminologyUser,
+                    terminologyPass, parameters, null);
+        }
+
+        // The explanation of where the time went is returned as an additional "Explain" entry
+        EvaluationExplainer explainer = new EvaluationExplainer();
+        explainer.attach();
+        try {
+            Bundle bundle = evaluate(code, patientId, periodStart, periodEnd, productLine, terminologyServiceUri, terminologyUser,
+                    terminologyPass, parameters, explainer);
+            Parameters explanation = ExplainHelper.toParameters(explainer);
+            explanation.setId("Explain");
+            bundle.addEntry().setResource(explanation);
+            return bundle;
+        } finally {
+            explainer.detach();
+        }
+    }
+
+    private Bundle evaluate(String code, String patientId, String periodStart, String periodEnd, String productLine,
+            String terminologyServiceUri, String terminologyUser, String terminologyPass, Parameters parameters,
+            EvaluationExplainer explainer) {
         CqlTranslator translator;
         FhirMeasureBundler bundler = new FhirMeasureBundler();
 
@@ -212,6 +246,7 @@ public class CqlExecutionProvider {
 
         List<Resource> results = new ArrayList<>();
 
+        long start = System.nanoTime();
         try {
             translator = TranslatorHelper.getTranslator(code, libraryLoader.getLibraryManager(),
                     libraryLoader.getModelManager());
@@ -243,6 +278,11 @@ public class CqlExecutionProvider {
         Map<String, List<Integer>> locations = getLocations(translator.getTranslatedLibrary().getLibrary());
 
         org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(translator);
+        if (explainer != null) {
+            explainer.recordPhase(EvaluationExplainer.PHASE_LIBRARY, System.nanoTime() - start);
+            explainer.addRetrievePlan(library, libraryLoader);
+            explainer.setPatient(patientId);
+        }
         Context context = new Context(library);
         context.registerLibraryLoader(libraryLoader);
         
@@ -261,6 +301,9 @@ public class CqlExecutionProvider {
             terminologyProvider = this.providerFactory.createTerminologyProvider(
                     usingDefs.get(0).getLeft(), usingDefs.get(0).getMiddle(),
                         terminologyServiceUri, terminologyUser, terminologyPass);
+            if (explainer != null) {
+                terminologyProvider = explainer.wrap(terminologyProvider);
+            }
             context.registerTerminologyProvider(terminologyProvider);
         }
 
@@ -296,6 +339,7 @@ public class CqlExecutionProvider {
 
 
         context.setExpressionCaching(true);
+        long evaluationStart = System.nanoTime();
         if (library.getStatements() != null) {
             for (org.cqframework.cql.elm.execution.ExpressionDef def : library.getStatements().getDef()) {
                 context.enterContext(def.getContext());
@@ -312,7 +356,11 @@ public class CqlExecutionProvider {
                     String location = String.format("[%d:%d]", locations.get(def.getName()).get(0), locations.get(def.getName()).get(1));
                     result.addParameter().setName("location").setValue(new StringType(location));
 
+                    long definitionStart = System.nanoTime();
                     Object res = def instanceof org.cqframework.cql.elm.execution.FunctionDef ? "Definition successfully validated" : def.getExpression().evaluate(context);
+                    if (explainer != null) {
+                        explainer.recordExpression(def.getName(), false, System.nanoTime() - definitionStart);
+                    }
 
                     if (res == null) {
                         result.addParameter().setName("value").setValue(new StringType("null"));
@@ -346,6 +394,9 @@ public class CqlExecutionProvider {
                 results.add(result);
             }
         }
+        if (explainer != null) {
+            explainer.recordEvaluation(System.nanoTime() - evaluationStart);
+        }
 
         return bundler.bundle(results);
     }
@@ -50,8 +50,10 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.RelatedArtifact;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.Type;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.common.providers.LibrarySourceProvider;
 import org.opencds.cqf.cql.execution.LibraryLoader;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.opencds.cqf.dstu3.providers.TerminologyRef;
@@ -562,6 +564,14 @@ public class DataRequirementsProvider {
         Attachment elm = new Attachment();
         elm.setContentType("application/elm+xml");
         elm.setData(xml.getBytes());
+        // The library loader only uses the ELM while the CQL it was compiled from is unchanged
+        for (Attachment a : library.getContent()) {
+            if ("text/cql".equals(a.getContentType()) && a.getData() != null) {
+                elm.addExtension().setUrl(LibrarySourceProvider.CQL_HASH_EXTENSION)
+                        .setValue(new StringType(CompiledLibraryCache.hash(a.getData())));
+                break;
+            }
+        }
         library.getContent().add(elm);
     }
 
@@ -0,0 +1,38 @@
+package org.opencds.cqf.dstu3.providers;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.dstu3.model.Library;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Compiles the CQL of a Library when it is created or updated and stores the ELM with it, so
+ * that evaluations load the stored ELM instead of translating the CQL.
+ */
+@Interceptor
+public class LibraryCompilationInterceptor {
+
+    private LibraryOperationsProvider libraryProvider;
+
+    public LibraryCompilationInterceptor(LibraryOperationsProvider libraryProvider) {
+        this.libraryProvider = libraryProvider;
+    }
+
+    @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        compile(resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        compile(newResource);
+    }
+
+    private void compile(IBaseResource resource) {
+        if (resource instanceof Library) {
+            this.libraryProvider.compileElm((Library) resource);
+        }
+    }
+}
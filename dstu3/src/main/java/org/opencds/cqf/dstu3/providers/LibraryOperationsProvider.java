@@ -9,7 +9,9 @@ import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.hl7.fhir.dstu3.model.Attachment;
+import org.hl7.fhir.dstu3.model.DecimalType;
 import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.IntegerType;
 import org.hl7.fhir.dstu3.model.Library;
 import org.hl7.fhir.dstu3.model.Narrative;
 import org.hl7.fhir.dstu3.model.Parameters;
@@ -26,6 +28,7 @@ import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.param.StringParam;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -96,6 +99,52 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
                 theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
     }
 
+    /*
+     * Compiles the CQL of the library and stores the ELM with it, unless the stored ELM was already
+     * compiled from the same CQL. A library whose CQL does not compile is left as it is, and is
+     * translated when it is loaded as before.
+     */
+    public void compileElm(Library library) {
+        if (hasCurrentElm(library)) {
+            return;
+        }
+
+        ModelManager modelManager = this.getModelManager();
+        LibraryManager libraryManager = this.getLibraryManager(modelManager);
+
+        CqlTranslator translator;
+        try {
+            translator = this.dataRequirementsProvider.getTranslator(library, libraryManager, modelManager);
+        } catch (Exception e) {
+            return;
+        }
+
+        if (translator == null || translator.getErrors().size() > 0) {
+            return;
+        }
+
+        this.dataRequirementsProvider.ensureElm(library, translator);
+    }
+
+    private boolean hasCurrentElm(Library library) {
+        String cqlHash = null;
+        for (Attachment a : library.getContent()) {
+            if ("text/cql".equals(a.getContentType()) && a.getData() != null) {
+                cqlHash = CompiledLibraryCache.hash(a.getData());
+            }
+        }
+
+        for (Attachment a : library.getContent()) {
+            if ("application/elm+xml".equals(a.getContentType()) && cqlHash != null
+                    && a.hasExtension(LibrarySourceProvider.CQL_HASH_EXTENSION)
+                    && cqlHash.equals(a.getExtensionsByUrl(LibrarySourceProvider.CQL_HASH_EXTENSION).get(0).getValue().primitiveValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Operation(name = "$get-elm", idempotent = true, type = Library.class)
     public Parameters getElm(@IdParam IdType theId, @OptionalParam(name="format") String format) {
         Library theResource = this.libraryResourceProvider.getDao().read(theId);
@@ -129,6 +178,23 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
         return p;
     }
 
+    /*
+     * Reports the hits and misses of the compiled library cache shared by all requests since the
+     * server started, with its current and maximum number of libraries.
+     */
+    @Operation(name = "$library-cache-statistics", idempotent = true, type = Library.class)
+    public Parameters getLibraryCacheStatistics() {
+        long hits = CompiledLibraryCache.getHits();
+        long misses = CompiledLibraryCache.getMisses();
+        Parameters p = new Parameters();
+        p.addParameter().setName("hits").setValue(new DecimalType(hits));
+        p.addParameter().setName("misses").setValue(new DecimalType(misses));
+        p.addParameter().setName("hitRatio").setValue(new DecimalType(hits + misses > 0 ? (double) hits / (hits + misses) : 0));
+        p.addParameter().setName("size").setValue(new IntegerType(CompiledLibraryCache.getSize()));
+        p.addParameter().setName("maxSize").setValue(new IntegerType(CompiledLibraryCache.getMaxSize()));
+        return p;
+    }
+
     // TODO: Figure out if we should throw an exception or something here.
     @Override
     public void update(Library library) {
@@ -16,6 +16,10 @@ import org.hl7.fhir.dstu3.model.ValueSet;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryStore;
+import org.opencds.cqf.common.evaluation.MeasureCheckpointStore;
+import org.opencds.cqf.common.evaluation.MeasureJobExecutor;
+import org.opencds.cqf.common.evaluation.MeasureResultStore;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
 import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
 import org.opencds.cqf.dstu3.evaluation.ProviderFactory;
@@ -28,6 +32,7 @@ import org.opencds.cqf.dstu3.providers.CqfMeasure;
 import org.opencds.cqf.dstu3.providers.CqlExecutionProvider;
 import org.opencds.cqf.dstu3.providers.HQMFProvider;
 import org.opencds.cqf.dstu3.providers.JpaTerminologyProvider;
+import org.opencds.cqf.dstu3.providers.LibraryCompilationInterceptor;
 import org.opencds.cqf.dstu3.providers.LibraryOperationsProvider;
 import org.opencds.cqf.dstu3.providers.MeasureOperationsProvider;
 import org.opencds.cqf.dstu3.providers.NarrativeProvider;
@@ -63,6 +68,9 @@ import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 public class BaseServlet extends RestfulServer {
     DaoRegistry registry;
     FhirContext fhirContext;
+    MeasureResultStore resultStore;
+    MeasureJobExecutor jobExecutor;
+    MeasureCheckpointStore checkpointStore;
 
     @SuppressWarnings("unchecked")
     @Override
@@ -86,6 +94,9 @@ public class BaseServlet extends RestfulServer {
         // System and Resource Daos
         IFhirSystemDao<Bundle, Meta> systemDao = appCtx.getBean("mySystemDaoDstu3", IFhirSystemDao.class);
         this.registry = appCtx.getBean(DaoRegistry.class);
+        this.resultStore = appCtx.getBean(MeasureResultStore.class);
+        this.jobExecutor = appCtx.getBean(MeasureJobExecutor.class);
+        this.checkpointStore = appCtx.getBean(MeasureCheckpointStore.class);
 
         // System and Resource Providers
         Object systemProvider = appCtx.getBean("mySystemProviderDstu3", JpaSystemProviderDstu3.class);
@@ -103,6 +114,9 @@ public class BaseServlet extends RestfulServer {
 
         resolveProviders(providerFactory, localSystemTerminologyProvider, this.registry);
 
+        // Compiled libraries stored by earlier runs
+        LibraryStore.startPreload();
+
         /*
          * ETag Support
          */
@@ -199,6 +213,9 @@ public class BaseServlet extends RestfulServer {
         LibraryOperationsProvider libraryProvider = new LibraryOperationsProvider((LibraryResourceProvider)this.getResourceProvider(Library.class), narrativeProvider);
         this.registerProvider(libraryProvider);
 
+        // Library compilation on write
+        this.registerInterceptor(new LibraryCompilationInterceptor(libraryProvider));
+
         // CQL Execution
         CqlExecutionProvider cql = new CqlExecutionProvider(libraryProvider, providerFactory);
         this.registerProvider(cql);
@@ -209,7 +226,8 @@ public class BaseServlet extends RestfulServer {
 
         // Measure processing
         MeasureOperationsProvider measureProvider = new MeasureOperationsProvider(this.registry, providerFactory, narrativeProvider, hqmfProvider, 
-            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class));
+            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class), this.resultStore, this.jobExecutor,
+            this.checkpointStore);
         this.registerProvider(measureProvider);
 
         // // ActivityDefinition processing
@@ -55,6 +55,8 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4
     public LocalContainerEntityManagerFactoryBean entityManagerFactory() {
         LocalContainerEntityManagerFactoryBean retVal = super.entityManagerFactory();
         retVal.setPersistenceUnitName(HapiProperties.getPersistenceUnitName());
+        // The server's own entities are stored next to the HAPI entities
+        retVal.setPackagesToScan("ca.uhn.fhir.jpa.model.entity", "ca.uhn.fhir.jpa.entity", "org.opencds.cqf.common.entity");
 
         try {
             retVal.setDataSource(myDataSource);
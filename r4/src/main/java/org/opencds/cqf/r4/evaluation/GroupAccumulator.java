@@ -0,0 +1,252 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.common.evaluation.BitSetJournal;
+import org.opencds.cqf.common.evaluation.MemberIndex;
+import org.opencds.cqf.common.evaluation.RunningStatistics;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/*
+ * Holds the population criteria of a single measure group together with the members found for
+ * each population. Members are kept as bits over the ordinals of a shared MemberIndex, so
+ * accumulators built from disjoint sets of patients can be merged by or-ing their bit sets.
+ */
+public class GroupAccumulator {
+
+    private Measure.MeasureGroupComponent group;
+    private MemberIndex index;
+    private Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = new EnumMap<>(MeasurePopulationType.class);
+    private Map<MeasurePopulationType, BitSet> populations = new EnumMap<>(MeasurePopulationType.class);
+    private Map<MeasurePopulationType, BitSet> patients = new EnumMap<>(MeasurePopulationType.class);
+    // The strata of each stratifier by stratum value. Members found while a patient's strata are
+    // entered are marked in those strata, so a stratum count is the population and-ed with the stratum.
+    private List<Map<String, BitSet>> strata = new ArrayList<>();
+    private List<BitSet> currentStrata = Collections.emptyList();
+    private Measure.MeasureGroupPopulationComponent observationCriteria;
+    private RunningStatistics observations = new RunningStatistics();
+    // Records the changes made for the current patient, when its evaluation may be abandoned
+    private BitSetJournal journal;
+
+    public GroupAccumulator(Measure.MeasureGroupComponent group, MemberIndex index, boolean trackPatients) {
+        this.group = group;
+        this.index = index;
+
+        for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
+            MeasurePopulationType populationType = MeasurePopulationType.fromCode(pop.getCode().getCodingFirstRep().getCode());
+            // Measure observations are aggregated as they are evaluated rather than tracked as members
+            if (populationType == MeasurePopulationType.MEASUREOBSERVATION) {
+                this.observationCriteria = pop;
+            }
+            else if (populationType != null) {
+                criteria.put(populationType, pop);
+                populations.put(populationType, new BitSet());
+                if (trackPatients) {
+                    patients.put(populationType, new BitSet());
+                }
+            }
+        }
+
+        for (int i = 0; i < group.getStratifier().size(); i++) {
+            this.strata.add(new TreeMap<>());
+        }
+    }
+
+    public void setJournal(BitSetJournal journal) {
+        this.journal = journal;
+    }
+
+    // Keeps the observations as they are before the patient, to restore them if the patient is rolled back
+    public void startPatient() {
+        if (this.journal != null && this.observationCriteria != null) {
+            RunningStatistics saved = this.observations.copy();
+            this.journal.onRollback(() -> this.observations = saved);
+        }
+    }
+
+    public Measure.MeasureGroupComponent getGroup() {
+        return this.group;
+    }
+
+    public Measure.MeasureGroupPopulationComponent getCriteria(MeasurePopulationType type) {
+        return this.criteria.get(type);
+    }
+
+    public Measure.MeasureGroupPopulationComponent getObservationCriteria() {
+        return this.observationCriteria;
+    }
+
+    public RunningStatistics getObservations() {
+        return this.observations;
+    }
+
+    public void addObservations(RunningStatistics observations) {
+        this.observations.merge(observations);
+    }
+
+    /*
+     * Sets the stratum values of the patient about to be evaluated, one per stratifier. Patients
+     * without a value for a stratifier are not counted in any of its strata.
+     */
+    public void enterStrata(List<String> values) {
+        List<BitSet> current = new ArrayList<>();
+        for (int i = 0; i < values.size() && i < this.strata.size(); i++) {
+            if (values.get(i) != null) {
+                Map<String, BitSet> stratifier = this.strata.get(i);
+                String value = values.get(i);
+                if (this.journal != null && !stratifier.containsKey(value)) {
+                    this.journal.onRollback(() -> stratifier.remove(value));
+                }
+                current.add(stratifier.computeIfAbsent(value, x -> new BitSet()));
+            }
+        }
+        this.currentStrata = current;
+    }
+
+    private void markStrata(int ordinal) {
+        for (BitSet stratum : this.currentStrata) {
+            set(stratum, ordinal);
+        }
+    }
+
+    private void set(BitSet set, int bit) {
+        if (this.journal != null) {
+            this.journal.set(set, bit);
+        }
+        else {
+            set.set(bit);
+        }
+    }
+
+    private void clear(BitSet set, int bit) {
+        if (this.journal != null) {
+            this.journal.clear(set, bit);
+        }
+        else {
+            set.clear(bit);
+        }
+    }
+
+    // Adds a resource (or patient, for boolean criteria) to the population
+    public void add(MeasurePopulationType type, String id) {
+        BitSet population = this.populations.get(type);
+        if (population != null) {
+            int ordinal = this.index.indexOf(id);
+            set(population, ordinal);
+            markStrata(ordinal);
+        }
+    }
+
+    public void remove(MeasurePopulationType type, String id) {
+        BitSet population = this.populations.get(type);
+        int ordinal = this.index.find(id);
+        if (population != null && ordinal >= 0) {
+            clear(population, ordinal);
+        }
+    }
+
+    // Patients are only tracked for patient-list reports
+    public void addPatient(MeasurePopulationType type, String patientId) {
+        BitSet population = this.patients.get(type);
+        if (population != null) {
+            int ordinal = this.index.indexOf(patientId);
+            set(population, ordinal);
+            markStrata(ordinal);
+        }
+    }
+
+    public void removePatient(MeasurePopulationType type, String patientId) {
+        BitSet population = this.patients.get(type);
+        int ordinal = this.index.find(patientId);
+        if (population != null && ordinal >= 0) {
+            clear(population, ordinal);
+        }
+    }
+
+    // The ids of the patients in the population, or null if patients are not tracked
+    public List<String> getPatients(MeasurePopulationType type) {
+        BitSet population = this.patients.get(type);
+        return population != null ? this.index.getIds(population) : null;
+    }
+
+    public BitSet getPatientMembers(MeasurePopulationType type) {
+        BitSet population = this.patients.get(type);
+        return population != null ? population : new BitSet();
+    }
+
+    public Set<MeasurePopulationType> getPopulationTypes() {
+        return this.populations.keySet();
+    }
+
+    // The ids of the resources (or patients, for boolean criteria) in the population
+    public List<String> getMembers(MeasurePopulationType type) {
+        BitSet population = this.populations.get(type);
+        return population != null ? this.index.getIds(population) : Collections.emptyList();
+    }
+
+    public int getCount(MeasurePopulationType type) {
+        BitSet population = this.populations.get(type);
+        return population != null ? population.cardinality() : 0;
+    }
+
+    // The number of members of the population that are also in the stratum
+    public int getCount(MeasurePopulationType type, BitSet stratum) {
+        BitSet population = this.populations.get(type);
+        if (population == null) {
+            return 0;
+        }
+
+        BitSet members = (BitSet) population.clone();
+        members.and(stratum);
+        return members.cardinality();
+    }
+
+    public Map<String, BitSet> getStrata(int stratifier) {
+        return this.strata.get(stratifier);
+    }
+
+    public int getStratifierCount() {
+        return this.strata.size();
+    }
+
+    public List<String> getStratumMembers(int stratifier, String value) {
+        BitSet stratum = this.strata.get(stratifier).get(value);
+        return stratum != null ? this.index.getIds(stratum) : Collections.emptyList();
+    }
+
+    public void addStratumMember(int stratifier, String value, String id) {
+        this.strata.get(stratifier).computeIfAbsent(value, x -> new BitSet()).set(this.index.indexOf(id));
+    }
+
+    public boolean hasPopulation(MeasurePopulationType type) {
+        return this.populations.containsKey(type);
+    }
+
+    public GroupAccumulator merge(GroupAccumulator other) {
+        for (Map.Entry<MeasurePopulationType, BitSet> entry : other.populations.entrySet()) {
+            this.populations.get(entry.getKey()).or(entry.getValue());
+        }
+
+        for (Map.Entry<MeasurePopulationType, BitSet> entry : other.patients.entrySet()) {
+            this.patients.get(entry.getKey()).or(entry.getValue());
+        }
+
+        this.observations.merge(other.observations);
+
+        for (int i = 0; i < this.strata.size(); i++) {
+            for (Map.Entry<String, BitSet> entry : other.strata.get(i).entrySet()) {
+                this.strata.get(i).computeIfAbsent(entry.getKey(), x -> new BitSet()).or(entry.getValue());
+            }
+        }
+
+        return this;
+    }
+}
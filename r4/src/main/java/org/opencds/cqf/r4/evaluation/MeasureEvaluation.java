@@ -2,24 +2,49 @@ package org.opencds.cqf.r4.evaluation;
 
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Quantity;
+import org.apache.commons.lang3.tuple.Triple;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.entity.MeasureResultEntity;
+import org.opencds.cqf.common.evaluation.EvaluatedResourceMode;
+import org.opencds.cqf.common.evaluation.EvaluationBudget;
+import org.opencds.cqf.common.evaluation.EvaluationCheckpointer;
+import org.opencds.cqf.common.evaluation.EvaluationExecutor;
+import org.opencds.cqf.common.evaluation.EvaluationExplainer;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.evaluation.ExpressionCacheScope;
+import org.opencds.cqf.common.evaluation.ExpressionContextClassifier;
+import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.MeasureResultStore;
+import org.opencds.cqf.common.evaluation.PatientChangeDetector;
+import org.opencds.cqf.common.evaluation.RetrieveCache;
+import org.opencds.cqf.common.evaluation.RunningStatistics;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.MemberIndex;
+import org.opencds.cqf.common.evaluation.ShardSpec;
+import org.opencds.cqf.common.evaluation.SubjectIdSource;
+import org.opencds.cqf.common.exceptions.EvaluationBudgetExceededException;
 import org.opencds.cqf.cql.data.DataProvider;
 import org.opencds.cqf.cql.execution.Context;
+import org.opencds.cqf.cql.runtime.Code;
+import org.opencds.cqf.cql.runtime.Concept;
+import org.opencds.cqf.cql.runtime.DateTime;
 import org.opencds.cqf.cql.runtime.Interval;
 import org.opencds.cqf.r4.builders.MeasureReportBuilder;
 import org.opencds.cqf.r4.helpers.FhirMeasureBundler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class MeasureEvaluation {
 
@@ -28,6 +53,32 @@ public class MeasureEvaluation {
     private DataProvider provider;
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private MeasureEvaluationSeed seed;
+    private int parallelism = 1;
+    private EvaluatedResourceMode evaluatedResourceMode;
+    private MeasureResultStore resultStore;
+    private PatientChangeDetector changeDetector;
+    private Date lastReceivedOn;
+    private EvaluationProgress progress;
+    private ShardSpec shard;
+    private EvaluationCheckpointer checkpointer;
+    private EvaluationBudget budget;
+
+    // The order in which populations are reported for each group
+    private static final MeasurePopulationType[] REPORTED_POPULATIONS = {
+            MeasurePopulationType.INITIALPOPULATION, MeasurePopulationType.NUMERATOR,
+            MeasurePopulationType.NUMERATOREXCLUSION, MeasurePopulationType.DENOMINATOR,
+            MeasurePopulationType.DENOMINATOREXCLUSION, MeasurePopulationType.DENOMINATOREXCEPTION,
+            MeasurePopulationType.MEASUREPOPULATION, MeasurePopulationType.MEASUREPOPULATIONEXCLUSION
+    };
+
+    static final String PRODUCT_LINE_EXTENSION = "http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine";
+    static final String AGGREGATE_METHOD_EXTENSION = "http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-aggregateMethod";
+    static final String SUPPLEMENTAL_DATA_EXTENSION = "http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-supplementalData";
+    static final String CRITERIA_REFERENCE_EXTENSION = "http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-criteriaReference";
+
+    // The number of patient ids a worker takes from the shared iterator at a time
+    private static final int PATIENT_BATCH_SIZE = 100;
 
     public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod) {
         this.provider = provider;
@@ -35,6 +86,64 @@ public class MeasureEvaluation {
         this.measurementPeriod = measurementPeriod;
     }
 
+    /*
+     * Creates an evaluation that can split patients across the shared evaluation pool.
+     * Each worker evaluates with its own context built from the seed.
+     */
+    public MeasureEvaluation(MeasureEvaluationSeed seed, DaoRegistry registry) {
+        this(seed, registry, null);
+    }
+
+    /*
+     * When no evaluated resource mode is given, summary reports collect no evaluated resources
+     * and the other report types contain them in full.
+     */
+    public MeasureEvaluation(MeasureEvaluationSeed seed, DaoRegistry registry, EvaluatedResourceMode evaluatedResourceMode) {
+        this(seed.getDataProvider(), registry, seed.getMeasurementPeriod());
+        this.seed = seed;
+        this.parallelism = EvaluationExecutor.getParallelism();
+        this.evaluatedResourceMode = evaluatedResourceMode;
+    }
+
+    // Caps the number of workers, 1 evaluates the patients on the calling thread
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    // Reports the number of patients evaluated, and the total when it is known, while the evaluation runs
+    public void setProgress(EvaluationProgress progress) {
+        this.progress = progress;
+    }
+
+    // Restricts population and patient-list evaluations to the patients of one shard
+    public void setShard(ShardSpec shard) {
+        this.shard = shard;
+    }
+
+    // Saves the progress of population and patient-list evaluations and resumes from the last save
+    public void setCheckpointer(EvaluationCheckpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /*
+     * Bounds the evaluation by time and number of patients. An evaluation that runs out of its
+     * budget stops cleanly and reports the patients evaluated so far, marked as pending.
+     */
+    public void setBudget(EvaluationBudget budget) {
+        this.budget = budget;
+    }
+
+    /*
+     * Enables incremental evaluation of population and patient-list reports. Per-patient results
+     * are stored, and reused by later runs for patients whose data has not changed since their
+     * result was stored or since lastReceivedOn, whichever is earlier.
+     */
+    public void setIncrementalEvaluation(MeasureResultStore resultStore, PatientChangeDetector changeDetector, Date lastReceivedOn) {
+        this.resultStore = resultStore;
+        this.changeDetector = changeDetector;
+        this.lastReceivedOn = lastReceivedOn;
+    }
+
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
         logger.info("Generating individual report");
 
@@ -48,19 +157,64 @@ public class MeasureEvaluation {
             patient = (Patient) patientRetrieve.iterator().next();
         }
 
-        return evaluate(measure, context, patient == null ? Collections.emptyList() : Collections.singletonList(patient), MeasureReport.MeasureReportType.INDIVIDUAL);
+        return evaluate(measure, context, patient == null ? Collections.emptyList() : Collections.singletonList(patient.getIdElement().getIdPart()), MeasureReport.MeasureReportType.INDIVIDUAL);
     }
 
     public MeasureReport evaluateSubjectListMeasure(Measure measure, Context context, String practitionerRef)
     {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        Iterable<String> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.SUBJECTLIST);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
-        SearchParameterMap map = new SearchParameterMap();
+    /*
+     * Evaluates an individual report for each of the patients, spread over the evaluation workers.
+     * The seed is set up once for all of the patients and each worker evaluates with its own
+     * context. Returns the reports by patient id.
+     */
+    public Map<String, MeasureReport> evaluatePatientMeasures(Measure measure, List<String> patientIds) {
+        if (this.seed == null) {
+            throw new IllegalStateException("Evaluating several patients requires an evaluation seed");
+        }
+
+        Iterator<String> patientIterator = patientIds.iterator();
+        List<Callable<Map<String, MeasureReport>>> tasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(this.parallelism, patientIds.size()); i++) {
+            tasks.add(() -> {
+                Map<String, MeasureReport> reports = new HashMap<>();
+                Context workerContext = this.seed.createContext();
+                // Patients are taken one at a time, as the lists are short and each one is a whole evaluation
+                while (true) {
+                    String patientId;
+                    synchronized (patientIterator) {
+                        if (!patientIterator.hasNext()) {
+                            break;
+                        }
+                        patientId = patientIterator.next();
+                    }
+                    reports.put(patientId, evaluate(measure, workerContext, Collections.singletonList(patientId),
+                            MeasureReport.MeasureReportType.INDIVIDUAL));
+                }
+                return reports;
+            });
+        }
+
+        // A single worker runs on the calling thread rather than waiting for a shared worker
+        if (tasks.size() == 1) {
+            return callTask(tasks.get(0));
+        }
+
+        Map<String, MeasureReport> reports = new HashMap<>();
+        for (Map<String, MeasureReport> partial : EvaluationExecutor.invokeAll(tasks)) {
+            reports.putAll(partial);
+        }
+
+        return reports;
+    }
+
+    private Iterable<String> getPractitionerPatients(String practitionerRef) {
+        SearchParameterMap map = createPatientSearch();
         map.add(
                 "general-practitioner",
                 new ReferenceParam(
@@ -70,19 +224,23 @@ public class MeasureEvaluation {
                 )
         );
 
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        Iterable<String> patients = new SubjectIdSource(registry.getResourceDao("Patient").search(map));
+        return this.shard != null ? this.shard.filter(patients) : patients;
+    }
+
+    private Iterable<String> getAllPatients() {
+        Iterable<String> patients = new SubjectIdSource(registry.getResourceDao("Patient").search(createPatientSearch()));
+        return this.shard != null ? this.shard.filter(patients) : patients;
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+    // Checkpointed evaluations are resumed after the last patient saved, so they enumerate the patients in id order
+    private SearchParameterMap createPatientSearch() {
+        SearchParameterMap map = new SearchParameterMap();
+        if (this.checkpointer != null) {
+            map.setSort(new SortSpec("_id"));
+        }
+
+        return map;
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -91,76 +249,75 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY);
     }
 
-    private Iterable<Resource> evaluateCriteria(Context context, Patient patient, Measure.MeasureGroupPopulationComponent pop) {
+    private List<String> evaluateCriteria(ExpressionCacheScope scope, String patientId, Measure.MeasureGroupPopulationComponent pop) {
         if (!pop.hasCriteria()) {
             return Collections.emptyList();
         }
 
-        context.setContextValue("Patient", patient.getIdElement().getIdPart());
-
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>)privateField.get(context);
-            expressions.clear();
-            
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        if (this.budget != null) {
+            this.budget.check();
         }
-        Object result = context.resolveExpressionRef(pop.getCriteria().getExpression()).evaluate(context);
+
+        Context context = scope.enterPatient(patientId);
+        Object result = evaluateDefinition(scope, context, patientId, pop.getCriteria().getExpression());
         if (result == null) {
-            Collections.emptyList();
+            return Collections.emptyList();
         }
-        
+
         if (result instanceof Boolean) {
             if (((Boolean)result)) {
-                return Collections.singletonList(patient);
+                return Collections.singletonList(patientId);
             }
             else {
                 return Collections.emptyList();
             }
         }
 
-        return (Iterable)result;
+        // Only the ids of the members are kept, the resources themselves are reported through the evaluated resources
+        List<String> ids = new ArrayList<>();
+        for (Object resource : (Iterable)result) {
+            ids.add(((Resource)resource).getIdElement().getIdPart());
+        }
+
+        return ids;
     }
 
-    private boolean evaluatePopulationCriteria(Context context, Patient patient,
-                                               Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population, HashMap<String, Patient> populationPatients,
-                                               Measure.MeasureGroupPopulationComponent exclusionCriteria, HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients
+    private boolean evaluatePopulationCriteria(ExpressionCacheScope scope, String patientId, GroupAccumulator group,
+                                               MeasurePopulationType populationType, MeasurePopulationType exclusionType
     ) {
+        Measure.MeasureGroupPopulationComponent criteria = group.getCriteria(populationType);
+        Measure.MeasureGroupPopulationComponent exclusionCriteria = exclusionType != null ? group.getCriteria(exclusionType) : null;
+
         boolean inPopulation = false;
         if (criteria != null) {
-            for (Resource resource : evaluateCriteria(context, patient, criteria)) {
+            for (String id : evaluateCriteria(scope, patientId, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                group.add(populationType, id);
             }
         }
 
         if (inPopulation) {
             // Are they in the exclusion?
             if (exclusionCriteria != null) {
-                for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
+                for (String id : evaluateCriteria(scope, patientId, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
-                    population.remove(resource.getIdElement().getIdPart());
+                    group.add(exclusionType, id);
+                    group.remove(populationType, id);
                 }
             }
         }
 
-        if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (inPopulation) {
+            group.addPatient(populationType, patientId);
         }
-        if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (!inPopulation && exclusionType != null) {
+            group.addPatient(exclusionType, patientId);
         }
 
         return inPopulation;
     }
 
-    private void addPopulationCriteriaReport(MeasureReport report, MeasureReport.MeasureReportGroupComponent reportGroup, Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount, Iterable<Patient> patientPopulation) {
+    private void addPopulationCriteriaReport(MeasureReport report, MeasureReport.MeasureReportGroupComponent reportGroup, Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount, Iterable<String> patientPopulation, Map<String, String> patientNames) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setCode(populationCriteria.getCode());
@@ -168,13 +325,13 @@ public class MeasureEvaluation {
                 ListResource SUBJECTLIST = new ListResource();
                 SUBJECTLIST.setId(UUID.randomUUID().toString());
                 populationReport.setSubjectResults(new Reference().setReference("#" + SUBJECTLIST.getId()));
-                for (Patient patient : patientPopulation) {
+                for (String patientId : patientPopulation) {
                     ListResource.ListEntryComponent entry = new ListResource.ListEntryComponent()
                             .setItem(new Reference().setReference(
-                                    patient.getIdElement().getIdPart().startsWith("Patient/") ?
-                                            patient.getIdElement().getIdPart() :
-                                            String.format("Patient/%s", patient.getIdElement().getIdPart()))
-                                    .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
+                                    patientId.startsWith("Patient/") ?
+                                            patientId :
+                                            String.format("Patient/%s", patientId))
+                                    .setDisplay(patientNames.get(patientId)));
                     SUBJECTLIST.addEntry(entry);
                 }
                 report.addContained(SUBJECTLIST);
@@ -184,273 +341,872 @@ public class MeasureEvaluation {
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients, MeasureReport.MeasureReportType type)
+    /*
+     * Resolves the display names of the listed patients. Only the patients that actually appear
+     * in a subject list are read, in chunks, rather than every patient that was evaluated.
+     */
+    private Map<String, String> resolvePatientNames(List<String> ids) {
+        Map<String, String> names = new HashMap<>();
+        for (int i = 0; i < ids.size(); i += SubjectIdSource.DEFAULT_PAGE_SIZE) {
+            TokenOrListParam idParam = new TokenOrListParam();
+            for (String id : ids.subList(i, Math.min(i + SubjectIdSource.DEFAULT_PAGE_SIZE, ids.size()))) {
+                idParam.add(null, id);
+            }
+
+            SearchParameterMap map = new SearchParameterMap();
+            map.setLoadSynchronous(true);
+            map.add("_id", idParam);
+            IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
+            for (IBaseResource resource : patientProvider.getResources(0, patientProvider.size())) {
+                Patient patient = (Patient) resource;
+                names.put(patient.getIdElement().getIdPart(), patient.getNameFirstRep().getNameAsSingleString());
+            }
+        }
+
+        return names;
+    }
+
+    private MeasureReport evaluate(Measure measure, Context context, Iterable<String> patients, MeasureReport.MeasureReportType type)
+    {
+        MeasureScoring measureScoring = getMeasureScoring(measure);
+        String subject = type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()
+                ? patients.iterator().next() : null;
+
+        EvaluatedResourceMode evaluatedResourceMode = getEvaluatedResourceMode(type);
+        boolean trackPatients = type == MeasureReport.MeasureReportType.SUBJECTLIST;
+        // Shared by the workers so that their populations can be merged as bit sets
+        MemberIndex index = new MemberIndex();
+        // Results of these definitions are kept for the whole run rather than for each patient
+        Set<String> pinned = ExpressionContextClassifier.getPatientIndependentDefinitions(ExpressionCacheScope.getCurrentLibrary(context));
+        if (this.progress != null) {
+            this.progress.setTotal(patients instanceof SubjectIdSource ? ((SubjectIdSource) patients).size()
+                    : patients instanceof Collection ? ((Collection<String>) patients).size() : null);
+        }
+        IncrementalRun incrementalRun = this.resultStore != null && this.seed != null && type != MeasureReport.MeasureReportType.INDIVIDUAL
+                ? startIncrementalRun(measure, evaluatedResourceMode) : null;
+        EvaluationCheckpointer checkpointer = type != MeasureReport.MeasureReportType.INDIVIDUAL ? this.checkpointer : null;
+        // Stored results and checkpoints only hold references to the evaluated resources
+        EvaluatedResourceMode mode = (incrementalRun != null || checkpointer != null) && evaluatedResourceMode == EvaluatedResourceMode.FULL
+                ? EvaluatedResourceMode.REFERENCES : evaluatedResourceMode;
+        MeasureAccumulator accumulator;
+        // Checkpointed evaluations run serially so that a checkpoint always covers a prefix of the patients
+        if (this.seed != null && this.parallelism > 1 && type != MeasureReport.MeasureReportType.INDIVIDUAL && checkpointer == null) {
+            // Workers pull batches of ids from the shared iterator as they finish, so the patients
+            // are never materialized up front. Each worker gets its own context so expression caches
+            // are not shared between threads.
+            Iterator<String> patientIterator = patients.iterator();
+            List<Callable<MeasureAccumulator>> tasks = new ArrayList<>();
+            for (int i = 0; i < this.parallelism; i++) {
+                tasks.add(() -> {
+                    MeasureAccumulator partial = new MeasureAccumulator(measure, index, trackPatients, mode);
+                    // Incremental runs evaluate each patient on its own, so they do not need to roll back
+                    if (this.budget != null && incrementalRun == null) {
+                        partial.enableJournal();
+                    }
+                    Context workerContext = this.seed.createContext();
+                    List<String> batch;
+                    while (!(batch = nextBatch(patientIterator)).isEmpty()) {
+                        if (!evaluatePatients(partial, measureScoring, workerContext, pinned, incrementalRun, batch)) {
+                            break;
+                        }
+                    }
+                    return partial;
+                });
+            }
+
+            accumulator = null;
+            for (MeasureAccumulator partial : EvaluationExecutor.invokeAll(tasks)) {
+                accumulator = accumulator == null ? partial : accumulator.merge(partial);
+            }
+        }
+        else {
+            // Batched the same way as the parallel workers so the ids are read lazily
+            accumulator = new MeasureAccumulator(measure, index, trackPatients, mode);
+            if (this.budget != null && incrementalRun == null) {
+                accumulator.enableJournal();
+            }
+            Iterator<String> patientIterator = patients.iterator();
+            String checkpointState = checkpointer != null ? checkpointer.restore() : null;
+            if (checkpointState != null) {
+                accumulator.addEncoded(checkpointState);
+                patientIterator = checkpointer.skipEvaluated(patientIterator);
+                if (this.progress != null) {
+                    this.progress.addProcessed(checkpointer.getPosition());
+                }
+            }
+
+            List<String> batch;
+            boolean completed = true;
+            while (completed && !(batch = nextBatch(patientIterator)).isEmpty()) {
+                completed = evaluatePatients(accumulator, measureScoring, context, pinned, incrementalRun, batch);
+                // A batch cut short by the budget is not saved, so resuming evaluates it again
+                if (checkpointer != null && completed) {
+                    checkpointer.batchEvaluated(batch, accumulator::encode);
+                }
+            }
+
+            if (checkpointer != null && completed) {
+                checkpointer.complete();
+            }
+        }
+
+        MeasureReport report = buildReport(measure, type, this.measurementPeriod, subject, measureScoring, accumulator, index, mode);
+        if (this.budget != null && this.budget.isStopped()) {
+            addBudgetOutcome(report);
+        }
+
+        return report;
+    }
+
+    // Marks a report that was stopped by its budget as pending, with an OperationOutcome saying why
+    private void addBudgetOutcome(MeasureReport report) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.setId(UUID.randomUUID().toString());
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                .setCode(OperationOutcome.IssueType.INCOMPLETE)
+                .setDiagnostics(String.format("Evaluation stopped after %d patients as %s. The counts only include the patients evaluated.",
+                        this.budget.getEvaluatedPatients(), this.budget.getStopReason()));
+        report.addContained(outcome);
+        report.setStatus(MeasureReport.MeasureReportStatus.PENDING);
+    }
+
+    /*
+     * Evaluates the measure for every combination of the measurement periods and product lines
+     * (null for none) in a single pass over the patients. Each patient is evaluated for all of
+     * the combinations in turn, with the parameters swapped and the patient's retrieves kept, so
+     * the patient's data is read once rather than once per combination. Returns the reports in
+     * period order, then product line order.
+     */
+    public List<MeasureReport> evaluateSweep(Measure measure, MeasureReport.MeasureReportType type, String patientId,
+                                             String practitionerRef, List<Interval> periods, List<String> productLines)
+    {
+        if (this.seed == null) {
+            throw new IllegalStateException("Sweep evaluation requires an evaluation seed");
+        }
+
+        logger.info("Generating sweep of {} reports", periods.size() * productLines.size());
+
+        Iterable<String> patients = type == MeasureReport.MeasureReportType.INDIVIDUAL ? Collections.singletonList(patientId)
+                : type == MeasureReport.MeasureReportType.SUBJECTLIST && practitionerRef != null ? getPractitionerPatients(practitionerRef)
+                : getAllPatients();
+        MeasureScoring measureScoring = getMeasureScoring(measure);
+        EvaluatedResourceMode mode = getEvaluatedResourceMode(type);
+        boolean trackPatients = type == MeasureReport.MeasureReportType.SUBJECTLIST;
+        MemberIndex index = new MemberIndex();
+        if (this.progress != null) {
+            this.progress.setTotal(patients instanceof SubjectIdSource ? ((SubjectIdSource) patients).size()
+                    : patients instanceof Collection ? ((Collection<String>) patients).size() : null);
+        }
+
+        // Workers each keep one accumulator per combination, merged combination by combination
+        Iterator<String> patientIterator = patients.iterator();
+        List<Callable<List<MeasureAccumulator>>> tasks = new ArrayList<>();
+        int workers = type == MeasureReport.MeasureReportType.INDIVIDUAL ? 1 : this.parallelism;
+        for (int i = 0; i < workers; i++) {
+            tasks.add(() -> {
+                List<MeasureAccumulator> partials = new ArrayList<>();
+                for (int j = 0; j < periods.size() * productLines.size(); j++) {
+                    partials.add(new MeasureAccumulator(measure, index, trackPatients, mode));
+                }
+                Context workerContext = createSweepContext();
+                List<String> batch;
+                while (!(batch = nextBatch(patientIterator)).isEmpty()) {
+                    evaluateSweepPatients(partials, measureScoring, workerContext, periods, productLines, batch);
+                }
+                return partials;
+            });
+        }
+
+        List<MeasureAccumulator> accumulators = null;
+        for (List<MeasureAccumulator> partials : workers > 1 ? EvaluationExecutor.invokeAll(tasks) : Collections.singletonList(callTask(tasks.get(0)))) {
+            if (accumulators == null) {
+                accumulators = partials;
+                continue;
+            }
+            for (int j = 0; j < accumulators.size(); j++) {
+                accumulators.get(j).merge(partials.get(j));
+            }
+        }
+
+        String subject = type == MeasureReport.MeasureReportType.INDIVIDUAL ? patientId : null;
+        List<MeasureReport> reports = new ArrayList<>();
+        int j = 0;
+        for (Interval period : periods) {
+            for (String productLine : productLines) {
+                MeasureReport report = buildReport(measure, type, period, subject, measureScoring, accumulators.get(j++), index, mode);
+                if (productLine != null) {
+                    report.addExtension(PRODUCT_LINE_EXTENSION, new StringType(productLine));
+                }
+                reports.add(report);
+            }
+        }
+
+        return reports;
+    }
+
+    private static <T> T callTask(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // A context of its own for a sweep worker, with a retrieve cache that is only used by that worker
+    private Context createSweepContext() {
+        Context context = this.seed.createContext();
+        DataProvider cachedProvider = RetrieveCache.wrap(this.seed.getDataProvider());
+        for (Triple<String, String, String> def : this.seed.getUsingDefs()) {
+            context.registerDataProvider(def.getRight(), cachedProvider);
+        }
+
+        return context;
+    }
+
+    private void evaluateSweepPatients(List<MeasureAccumulator> accumulators, MeasureScoring measureScoring, Context context,
+                                       List<Interval> periods, List<String> productLines, List<String> patients)
+    {
+        // Nothing is pinned as patient-independent results may still depend on the measurement period
+        ExpressionCacheScope scope = new ExpressionCacheScope(context);
+        for (String patient : patients) {
+            int i = 0;
+            for (Interval period : periods) {
+                for (String productLine : productLines) {
+                    context.setParameter(null, "Measurement Period",
+                            new Interval(DateTime.fromJavaDate((Date) period.getStart()), true,
+                                    DateTime.fromJavaDate((Date) period.getEnd()), true));
+                    if (productLine != null || productLines.size() > 1) {
+                        context.setParameter(null, "Product Line", productLine);
+                    }
+                    scope.invalidate();
+                    evaluatePatient(scope, measureScoring, accumulators.get(i++), patient);
+                }
+            }
+        }
+
+        if (this.progress != null) {
+            this.progress.addProcessed(patients.size());
+        }
+    }
+
+    private static MeasureScoring getMeasureScoring(Measure measure) {
+        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
+        if (measureScoring == null) {
+            throw new RuntimeException("Measure scoring is required in order to calculate.");
+        }
+
+        return measureScoring;
+    }
+
+    // When no evaluated resource mode is given, summary reports collect none and the others collect them in full
+    private EvaluatedResourceMode getEvaluatedResourceMode(MeasureReport.MeasureReportType type) {
+        return this.evaluatedResourceMode != null ? this.evaluatedResourceMode
+                : type == MeasureReport.MeasureReportType.SUMMARY ? EvaluatedResourceMode.NONE : EvaluatedResourceMode.FULL;
+    }
+
+    private MeasureReport buildReport(Measure measure, MeasureReport.MeasureReportType type, Interval period, String subject,
+                                      MeasureScoring measureScoring, MeasureAccumulator accumulator, MemberIndex index,
+                                      EvaluatedResourceMode mode)
     {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
         reportBuilder.buildMeasureReference(measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-			IdType patientId = patients.get(0).getIdElement();
-            reportBuilder.buildPatientReference(patientId.getResourceType() + "/" + patientId.getIdPart());
+        if (subject != null) {
+            reportBuilder.buildPatientReference("Patient/" + subject);
         }
-        reportBuilder.buildPeriod(measurementPeriod);
+        reportBuilder.buildPeriod(period);
 
         MeasureReport report = reportBuilder.build();
 
-        HashMap<String,Resource> resources = new HashMap<>();
-        HashMap<String,HashSet<String>> codeToResourceMap = new HashMap<>();
-
-        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
-        if (measureScoring == null) {
-            throw new RuntimeException("Measure scoring is required in order to calculate.");
+        boolean trackPatients = type == MeasureReport.MeasureReportType.SUBJECTLIST;
+        Map<String, String> patientNames = Collections.emptyMap();
+        if (trackPatients) {
+            BitSet listedPatients = new BitSet();
+            for (GroupAccumulator groupAccumulator : accumulator.getGroups()) {
+                for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                    listedPatients.or(groupAccumulator.getPatientMembers(populationType));
+                }
+            }
+            patientNames = resolvePatientNames(index.getIds(listedPatients));
         }
 
-        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+        for (GroupAccumulator groupAccumulator : accumulator.getGroups()) {
 			MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
-			reportGroup.setId(group.getId());
+			reportGroup.setId(groupAccumulator.getGroup().getId());
             report.getGroup().add(reportGroup);
 
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType.fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                initialPopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExceptionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            break;
-                    }
+            if (measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO) {
+                // Calculate actual measure score, Count(numerator) / Count(denominator)
+                int numerator = groupAccumulator.getCount(MeasurePopulationType.NUMERATOR);
+                int denominator = groupAccumulator.getCount(MeasurePopulationType.DENOMINATOR);
+                if (groupAccumulator.hasPopulation(MeasurePopulationType.DENOMINATOR)
+                        && groupAccumulator.hasPopulation(MeasurePopulationType.NUMERATOR) && denominator > 0) {
+                    reportGroup.setMeasureScore(new Quantity(numerator / (double)denominator));
                 }
             }
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, initialPopulationCriteria,
-                                initialPopulation, initialPopulationPatients, null, null, null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources, codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient,
-                                    denominatorCriteria, denominator, denominatorPatients,
-                                    denominatorExclusionCriteria, denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources, codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient,
-                                        numeratorCriteria, numerator, numeratorPatients,
-                                        numeratorExclusionCriteria, numeratorExclusion, numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources, codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient, denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION, resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(), patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
+            // Add population reports for each group
+            for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                addPopulationCriteriaReport(report, reportGroup, groupAccumulator.getCriteria(populationType),
+                        groupAccumulator.getCount(populationType), groupAccumulator.getPatients(populationType), patientNames);
+            }
+            if (groupAccumulator.getObservationCriteria() != null) {
+                addObservationReport(reportGroup, groupAccumulator, measureScoring);
+            }
+            addStratifierReports(reportGroup, groupAccumulator, measureScoring);
+        }
+
+        addSupplementalDataReports(report, accumulator);
+
+        if (mode == EvaluatedResourceMode.FULL) {
+            HashMap<String,Resource> resources = accumulator.getResources();
+            HashMap<String,HashSet<String>> codeToResourceMap = accumulator.getCodeToResourceMap();
+
+            for (String key : codeToResourceMap.keySet()) {
+                org.hl7.fhir.r4.model.ListResource list = new org.hl7.fhir.r4.model.ListResource();
+                for (String element : codeToResourceMap.get(key)) {
+                    org.hl7.fhir.r4.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.r4.model.ListResource.ListEntryComponent();
+                    comp.setItem(new Reference('#' + element));
+                    list.addEntry(comp);
+                }
+
+                if (!list.isEmpty()) {
+                    list.setId(UUID.randomUUID().toString());
+                    list.setTitle(key);
+                    resources.put(list.getId(), list);
+                }
+            }
+
+            if (!resources.isEmpty()) {
+                FhirMeasureBundler bundler = new FhirMeasureBundler();
+                org.hl7.fhir.r4.model.Bundle evaluatedResources = bundler.bundle(resources.values());
+                evaluatedResources.setId(UUID.randomUUID().toString());
+                report.setEvaluatedResource(Collections.singletonList(new Reference('#' + evaluatedResources.getId())));
+                report.addContained(evaluatedResources);
+            }
+        }
+        else if (mode == EvaluatedResourceMode.REFERENCES) {
+            addEvaluatedResourceReferences(report, accumulator.getCodeToResourceMap());
+        }
+
+        return report;
+    }
+
+    /*
+     * Reports the number of measure observations as the measure observation population and, for
+     * continuous variable measures, their aggregate as the group's score.
+     */
+    private void addObservationReport(MeasureReport.MeasureReportGroupComponent reportGroup, GroupAccumulator groupAccumulator,
+                                      MeasureScoring measureScoring)
+    {
+        Measure.MeasureGroupPopulationComponent criteria = groupAccumulator.getObservationCriteria();
+        RunningStatistics observations = groupAccumulator.getObservations();
+        Extension aggregateMethod = criteria.getExtensionByUrl(AGGREGATE_METHOD_EXTENSION);
+        if (aggregateMethod == null) {
+            aggregateMethod = groupAccumulator.getGroup().getExtensionByUrl(AGGREGATE_METHOD_EXTENSION);
+        }
+        String method = aggregateMethod != null && aggregateMethod.hasValue() ? aggregateMethod.getValue().primitiveValue() : null;
+
+        MeasureReport.MeasureReportGroupPopulationComponent populationReport = reportGroup.addPopulation();
+        populationReport.setCode(criteria.getCode());
+        populationReport.setCount((int) observations.getCount());
+        if (method != null) {
+            populationReport.addExtension(AGGREGATE_METHOD_EXTENSION, new CodeType(method));
+        }
+
+        if (measureScoring == MeasureScoring.CONTINUOUSVARIABLE) {
+            Double score = observations.getAggregate(method);
+            if (score != null) {
+                reportGroup.setMeasureScore(new Quantity(score));
+            }
+            else if (observations.getCount() > 0) {
+                logger.warn("Unsupported measure observation aggregate method {}", method);
+            }
+        }
+    }
+
+    // Reports the counts of each population within each stratum of the group's stratifiers
+    private void addStratifierReports(MeasureReport.MeasureReportGroupComponent reportGroup, GroupAccumulator groupAccumulator,
+                                      MeasureScoring measureScoring)
+    {
+        for (int i = 0; i < groupAccumulator.getStratifierCount(); i++) {
+            Measure.MeasureGroupStratifierComponent stratifier = groupAccumulator.getGroup().getStratifier().get(i);
+            MeasureReport.MeasureReportGroupStratifierComponent reportStratifier = reportGroup.addStratifier();
+            if (stratifier.hasCode()) {
+                reportStratifier.addCode(stratifier.getCode());
+            }
+
+            for (Map.Entry<String, BitSet> entry : groupAccumulator.getStrata(i).entrySet()) {
+                MeasureReport.StratifierGroupComponent reportStratum = reportStratifier.addStratum();
+                reportStratum.setValue(new CodeableConcept().setText(entry.getKey()));
+
+                for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                    Measure.MeasureGroupPopulationComponent criteria = groupAccumulator.getCriteria(populationType);
+                    if (criteria != null) {
+                        reportStratum.addPopulation()
+                                .setCode(criteria.getCode())
+                                .setCount(groupAccumulator.getCount(populationType, entry.getValue()));
                     }
+                }
 
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(new Quantity(numerator.size() / (double)denominator.size()));
+                if (measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO) {
+                    int numerator = groupAccumulator.getCount(MeasurePopulationType.NUMERATOR, entry.getValue());
+                    int denominator = groupAccumulator.getCount(MeasurePopulationType.DENOMINATOR, entry.getValue());
+                    if (groupAccumulator.hasPopulation(MeasurePopulationType.DENOMINATOR)
+                            && groupAccumulator.hasPopulation(MeasurePopulationType.NUMERATOR) && denominator > 0) {
+                        reportStratum.setMeasureScore(new Quantity(numerator / (double)denominator));
                     }
+                }
+            }
+        }
+    }
 
-                    break;
+    /*
+     * Reports the number of patients with each value of each supplemental data element as a
+     * contained Observation, referenced from the report the way DEQM does.
+     */
+    private void addSupplementalDataReports(MeasureReport report, MeasureAccumulator accumulator) {
+        List<Measure.MeasureSupplementalDataComponent> elements = accumulator.getMeasure().getSupplementalData();
+        for (int i = 0; i < elements.size(); i++) {
+            Measure.MeasureSupplementalDataComponent element = elements.get(i);
+            String elementName = element.hasCode() && element.getCode().hasText() ? element.getCode().getText()
+                    : element.hasId() ? element.getId() : element.getCriteria().getExpression();
+
+            for (Map.Entry<String, BitSet> entry : accumulator.getSupplementalData(i).entrySet()) {
+                Observation observation = new Observation();
+                observation.setId(UUID.randomUUID().toString());
+                observation.setStatus(Observation.ObservationStatus.FINAL);
+                observation.setCode(new CodeableConcept().setText(entry.getKey()));
+                observation.setValue(new IntegerType(entry.getValue().cardinality()));
+                observation.addExtension(CRITERIA_REFERENCE_EXTENSION, new StringType(elementName));
+                report.addContained(observation);
+                report.addExtension(SUPPLEMENTAL_DATA_EXTENSION, new Reference("#" + observation.getId()));
+            }
+        }
+    }
+
+    // Reports the evaluated resources by reference only, without containing them
+    private void addEvaluatedResourceReferences(MeasureReport report, HashMap<String,HashSet<String>> codeToResourceMap) {
+        Set<String> references = new LinkedHashSet<>();
+        for (HashSet<String> codeResources : codeToResourceMap.values()) {
+            references.addAll(codeResources);
+        }
+
+        for (String reference : references) {
+            report.addEvaluatedResource(new Reference(reference));
+        }
+    }
+
+    // The state of an incremental evaluation that is shared by all of its batches
+    private static class IncrementalRun {
+        private String runKey;
+        private Map<String, Date> changedPatients;
+        private Date started;
+    }
+
+    /*
+     * Returns null, and every patient is evaluated, when the source of the measure's libraries is
+     * not known, as stored results could then outlive a change to the CQL.
+     */
+    private IncrementalRun startIncrementalRun(Measure measure, EvaluatedResourceMode evaluatedResourceMode) {
+        String contentHash = this.seed.getLibraryLoader() instanceof LibraryLoader
+                ? ((LibraryLoader) this.seed.getLibraryLoader()).getContentHash(this.seed.getLibrary().getIdentifier()) : null;
+        if (contentHash == null) {
+            logger.warn("Unable to identify the source of the measure libraries, evaluating every patient");
+            return null;
+        }
+
+        IncrementalRun run = new IncrementalRun();
+        // Changes made while the run is in progress are picked up by the next run
+        run.started = new Date();
+        // Stored results only hold references to the evaluated resources, see evaluate
+        EvaluatedResourceMode storedMode = evaluatedResourceMode == EvaluatedResourceMode.FULL
+                ? EvaluatedResourceMode.REFERENCES : evaluatedResourceMode;
+        run.runKey = MeasureResultStore.createRunKey(
+                measure.getIdElement().getIdPart(), measure.getMeta().getVersionId(), measure.getVersion(),
+                this.seed.getLibrary().getIdentifier().getId(), this.seed.getLibrary().getIdentifier().getVersion(),
+                contentHash, storedMode.toCode(),
+                String.valueOf(((Date) measurementPeriod.getStart()).getTime()),
+                String.valueOf(((Date) measurementPeriod.getEnd()).getTime()),
+                this.seed.getProductLine());
+
+        Date since = this.resultStore.getOldestResult(run.runKey);
+        if (since != null && this.lastReceivedOn != null && this.lastReceivedOn.before(since)) {
+            since = this.lastReceivedOn;
+        }
+
+        // Changes are searched from the oldest stored result and compared with each patient's own result
+        run.changedPatients = since == null ? Collections.emptyMap() : this.changeDetector.getChangedPatients(
+                PatientChangeDetector.getRetrievedDataTypes(this.seed.getLibrary(), this.seed.getLibraryLoader()), since);
+        logger.info("Incremental evaluation found {} changed patients", run.changedPatients.size());
+
+        return run;
+    }
+
+    /*
+     * Reuses the stored results of unchanged patients and evaluates the rest, storing their
+     * results for later runs. Patients without a stored result are always evaluated. Returns the
+     * number of patients counted before the budget, if any, ran out.
+     */
+    private int evaluatePatientsIncrementally(MeasureAccumulator accumulator, MeasureScoring measureScoring,
+                                              ExpressionCacheScope scope, IncrementalRun run, List<String> patients)
+    {
+        Map<String, MeasureResultEntity> stored = this.resultStore.getResults(run.runKey, patients);
+        Map<String, String> results = new HashMap<>();
+        List<String> unchanged = new ArrayList<>();
+
+        int evaluated = 0;
+        for (String patient : patients) {
+            MeasureResultEntity result = stored.get(patient);
+            Date changed = run.changedPatients.get(patient);
+            if (result != null && (changed == null || changed.before(getReusableBefore(result)))) {
+                accumulator.addEncoded(result.getResult());
+                // A result without changes since the oldest stored result is current as of the start of this run
+                if (changed == null) {
+                    unchanged.add(patient);
                 }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, initialPopulationCriteria,
-                                initialPopulation, initialPopulationPatients, null, null, null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources, codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion, measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                // TODO: Evaluate measure observations
-                                for (Resource resource : evaluateCriteria(context, patient, measureObservationCriteria)) {
-                                    measureObservation.put(resource.getIdElement().getIdPart(), resource);
-                                }
-                            }
-                        }
-                    }
+                evaluated++;
+                continue;
+            }
+
+            if (this.budget != null && !this.budget.startPatient()) {
+                break;
+            }
+
+            // Evaluated on its own so the patient's contribution can be stored separately, and
+            // dropped if the patient is stopped part way by the budget
+            MeasureAccumulator patientResult = new MeasureAccumulator(accumulator.getMeasure(), new MemberIndex(), true,
+                    accumulator.getEvaluatedResourceMode());
+            try {
+                evaluatePatient(scope, measureScoring, patientResult, patient);
+            } catch (EvaluationBudgetExceededException e) {
+                break;
+            }
+            if (this.budget != null) {
+                this.budget.patientEvaluated();
+            }
+            evaluated++;
+
+            String encoded = patientResult.encode();
+            accumulator.addEncoded(encoded);
+            results.put(patient, encoded);
+        }
+
+        if (!results.isEmpty()) {
+            this.resultStore.saveResults(run.runKey, results, run.started);
+        }
+        this.resultStore.touchResults(run.runKey, unchanged, run.started);
+
+        return evaluated;
+    }
 
+    // Changes made before this time are reflected in the stored result, or were received before lastReceivedOn
+    private Date getReusableBefore(MeasureResultEntity result) {
+        return this.lastReceivedOn != null && this.lastReceivedOn.before(result.getEvaluated())
+                ? this.lastReceivedOn : result.getEvaluated();
+    }
+
+    // Takes the next batch of patient ids from an iterator shared between workers
+    private static List<String> nextBatch(Iterator<String> patients) {
+        List<String> batch = new ArrayList<>(PATIENT_BATCH_SIZE);
+        synchronized (patients) {
+            while (batch.size() < PATIENT_BATCH_SIZE && patients.hasNext()) {
+                batch.add(patients.next());
+            }
+        }
+
+        return batch;
+    }
+
+    // Returns false when the budget ran out before all of the patients were evaluated
+    private boolean evaluatePatients(MeasureAccumulator accumulator, MeasureScoring measureScoring, Context context, Set<String> pinned,
+                                     IncrementalRun run, List<String> patients)
+    {
+        ExpressionCacheScope scope = new ExpressionCacheScope(context, pinned);
+
+        int evaluated;
+        if (run != null) {
+            evaluated = evaluatePatientsIncrementally(accumulator, measureScoring, scope, run, patients);
+        }
+        else {
+            // Each patient is visited once, all of the groups share the patient's expression cache
+            evaluated = 0;
+            for (String patient : patients) {
+                if (!evaluatePatientWithinBudget(scope, measureScoring, accumulator, patient)) {
                     break;
                 }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, initialPopulationCriteria,
-                                initialPopulation, initialPopulationPatients, null, null, null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources, codeToResourceMap);
-                    }
+                evaluated++;
+            }
+        }
 
-                    break;
+        if (this.progress != null) {
+            this.progress.addProcessed(evaluated);
+        }
+
+        logger.debug("Evaluated {} population criteria with {} expression cache resets",
+                scope.getEvaluationCount(), scope.getPatientCount());
+
+        return evaluated == patients.size();
+    }
+
+    /*
+     * Evaluates the patient if the budget allows it. A patient whose evaluation runs out of the
+     * budget part way is rolled back, so the counts only include fully evaluated patients.
+     */
+    private boolean evaluatePatientWithinBudget(ExpressionCacheScope scope, MeasureScoring measureScoring,
+                                                MeasureAccumulator accumulator, String patient)
+    {
+        if (this.budget == null) {
+            evaluatePatient(scope, measureScoring, accumulator, patient);
+            return true;
+        }
+
+        if (!this.budget.startPatient()) {
+            return false;
+        }
+
+        accumulator.startPatient();
+        try {
+            evaluatePatient(scope, measureScoring, accumulator, patient);
+        } catch (EvaluationBudgetExceededException e) {
+            accumulator.rollbackPatient();
+            return false;
+        }
+
+        this.budget.patientEvaluated();
+        return true;
+    }
+
+    /*
+     * Evaluates every group for the patient, then the supplemental data. The patient's strata are
+     * entered before each group is evaluated so that its members are counted in them, and the
+     * supplemental data is only counted for patients in the initial population of a group.
+     */
+    private void evaluatePatient(ExpressionCacheScope scope, MeasureScoring measureScoring, MeasureAccumulator accumulator, String patient)
+    {
+        boolean inInitialPopulation = false;
+        for (GroupAccumulator groupAccumulator : accumulator.getGroups()) {
+            if (groupAccumulator.getStratifierCount() > 0) {
+                List<String> values = new ArrayList<>();
+                for (Measure.MeasureGroupStratifierComponent stratifier : groupAccumulator.getGroup().getStratifier()) {
+                    values.add(stratifier.hasCriteria() && stratifier.getCriteria().hasExpression() ? getStratumKey(evaluateExpression(scope, patient, stratifier.getCriteria().getExpression())) : null);
                 }
+                groupAccumulator.enterStrata(values);
             }
 
-            // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria, initialPopulation != null ? initialPopulation.size() : 0, initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria, numerator != null ? numerator.size() : 0, numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria, numeratorExclusion != null ? numeratorExclusion.size() : 0, numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria, denominator != null ? denominator.size() : 0, denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria, denominatorExclusion != null ? denominatorExclusion.size() : 0, denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria, denominatorException != null ? denominatorException.size() : 0, denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,  measurePopulation != null ? measurePopulation.size() : 0, measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,  measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0, measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
+            inInitialPopulation |= evaluateGroup(scope, measureScoring, accumulator, groupAccumulator, patient);
+            groupAccumulator.enterStrata(Collections.emptyList());
         }
 
-        for (String key : codeToResourceMap.keySet()) {
-            org.hl7.fhir.r4.model.ListResource list = new org.hl7.fhir.r4.model.ListResource();
-            for (String element : codeToResourceMap.get(key)) {
-                org.hl7.fhir.r4.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.r4.model.ListResource.ListEntryComponent();
-                comp.setItem(new Reference('#' + element));
-                list.addEntry(comp);
+        if (inInitialPopulation) {
+            List<Measure.MeasureSupplementalDataComponent> elements = accumulator.getMeasure().getSupplementalData();
+            for (int i = 0; i < elements.size(); i++) {
+                Measure.MeasureSupplementalDataComponent element = elements.get(i);
+                String value = element.hasCriteria() && element.getCriteria().hasExpression() ? getStratumKey(evaluateExpression(scope, patient, element.getCriteria().getExpression())) : null;
+                if (value != null) {
+                    accumulator.addSupplementalData(i, value, patient);
+                }
             }
+        }
+    }
 
-            if (!list.isEmpty()) {
-                list.setId(UUID.randomUUID().toString());
-                list.setTitle(key);
-                resources.put(list.getId(), list);
+    // Adds the numeric values of a measure observation result, each element of a list is an observation
+    private static void addObservationValues(Object value, RunningStatistics observations) {
+        if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                addObservationValues(element, observations);
+            }
+        }
+        else if (value instanceof Number) {
+            observations.add(((Number) value).doubleValue());
+        }
+        else if (value instanceof org.opencds.cqf.cql.runtime.Quantity) {
+            if (((org.opencds.cqf.cql.runtime.Quantity) value).getValue() != null) {
+                observations.add(((org.opencds.cqf.cql.runtime.Quantity) value).getValue().doubleValue());
+            }
+        }
+        else if (value instanceof Quantity) {
+            if (((Quantity) value).hasValue()) {
+                observations.add(((Quantity) value).getValue().doubleValue());
             }
         }
+        else if (value instanceof IPrimitiveType && ((IPrimitiveType<?>) value).getValue() instanceof Number) {
+            observations.add(((Number) ((IPrimitiveType<?>) value).getValue()).doubleValue());
+        }
+    }
+
+    // Stratifier, supplemental data and measure observation results are not reported as evaluated resources
+    private Object evaluateExpression(ExpressionCacheScope scope, String patientId, String expression) {
+        if (this.budget != null) {
+            this.budget.check();
+        }
+
+        Context context = scope.enterPatient(patientId);
+        Object result = evaluateDefinition(scope, context, patientId, expression);
+        context.clearEvaluatedResources();
+        return result;
+    }
 
-        if (!resources.isEmpty()) {
-            FhirMeasureBundler bundler = new FhirMeasureBundler();
-            org.hl7.fhir.r4.model.Bundle evaluatedResources = bundler.bundle(resources.values());
-            evaluatedResources.setId(UUID.randomUUID().toString());
-            report.setEvaluatedResource(Collections.singletonList(new Reference('#' + evaluatedResources.getId())));
-            report.addContained(evaluatedResources);
+    // Records the time of the definition, and whether it was cached, when the evaluation is explained
+    private static Object evaluateDefinition(ExpressionCacheScope scope, Context context, String patientId, String expression) {
+        EvaluationExplainer explainer = EvaluationExplainer.current();
+        if (explainer == null) {
+            return context.resolveExpressionRef(expression).evaluate(context);
         }
 
-        return report;
+        explainer.setPatient(patientId);
+        boolean cached = scope.isCached(expression);
+        long start = System.nanoTime();
+        Object result = context.resolveExpressionRef(expression).evaluate(context);
+        explainer.recordExpression(expression, cached, System.nanoTime() - start);
+        return result;
     }
 
-    private void populateResourceMap(
-            Context context, MeasurePopulationType type, HashMap<String, Resource> resources,
-            HashMap<String,HashSet<String>> codeToResourceMap)
+    /*
+     * The value a patient is grouped by for a stratifier or supplemental data element. Codes are
+     * grouped by their code, and lists by their first element.
+     */
+    private static String getStratumKey(Object value) {
+        if (value instanceof Iterable) {
+            Iterator<?> iterator = ((Iterable<?>) value).iterator();
+            value = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Code) {
+            return ((Code) value).getCode();
+        }
+        if (value instanceof Concept) {
+            Iterable<Code> codes = ((Concept) value).getCodes();
+            Iterator<Code> first = codes != null ? codes.iterator() : Collections.emptyIterator();
+            return first.hasNext() ? first.next().getCode() : ((Concept) value).getDisplay();
+        }
+        if (value instanceof CodeableConcept) {
+            CodeableConcept concept = (CodeableConcept) value;
+            return concept.hasCoding() ? concept.getCodingFirstRep().getCode() : concept.getText();
+        }
+        if (value instanceof Coding) {
+            return ((Coding) value).getCode();
+        }
+        if (value instanceof IPrimitiveType) {
+            return ((IPrimitiveType<?>) value).getValueAsString();
+        }
+        if (value instanceof Resource) {
+            return ((Resource) value).getIdElement().getIdPart();
+        }
+
+        return value.toString();
+    }
+
+    // Returns whether the patient is in the initial population of the group
+    private boolean evaluateGroup(ExpressionCacheScope scope, MeasureScoring measureScoring, MeasureAccumulator accumulator,
+                                  GroupAccumulator groupAccumulator, String patient)
+    {
+        Context context = scope.getContext();
+        boolean inInitialPopulation = false;
+
+        // TODO: Isn't quite right, there may be multiple initial populations for a ratio measure...
+        switch (measureScoring) {
+            case PROPORTION:
+            case RATIO: {
+
+                // Are they in the initial population?
+                inInitialPopulation = evaluatePopulationCriteria(scope, patient, groupAccumulator,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, accumulator);
+
+                if (inInitialPopulation) {
+                    // Are they in the denominator?
+                    boolean inDenominator = evaluatePopulationCriteria(scope, patient, groupAccumulator,
+                            MeasurePopulationType.DENOMINATOR, MeasurePopulationType.DENOMINATOREXCLUSION);
+                    populateResourceMap(context, MeasurePopulationType.DENOMINATOR, accumulator);
+
+                    if (inDenominator) {
+                        // Are they in the numerator?
+                        boolean inNumerator = evaluatePopulationCriteria(scope, patient, groupAccumulator,
+                                MeasurePopulationType.NUMERATOR, MeasurePopulationType.NUMERATOREXCLUSION);
+                        populateResourceMap(context, MeasurePopulationType.NUMERATOR, accumulator);
+
+                        Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = groupAccumulator.getCriteria(MeasurePopulationType.DENOMINATOREXCEPTION);
+                        if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
+                            // Are they in the denominator exception?
+                            boolean inException = false;
+                            for (String id : evaluateCriteria(scope, patient, denominatorExceptionCriteria)) {
+                                inException = true;
+                                groupAccumulator.add(MeasurePopulationType.DENOMINATOREXCEPTION, id);
+                                groupAccumulator.remove(MeasurePopulationType.DENOMINATOR, id);
+                                populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION, accumulator);
+                            }
+                            if (inException) {
+                                groupAccumulator.addPatient(MeasurePopulationType.DENOMINATOREXCEPTION, patient);
+                                groupAccumulator.removePatient(MeasurePopulationType.DENOMINATOR, patient);
+                            }
+                        }
+                    }
+                }
+
+                break;
+            }
+            case CONTINUOUSVARIABLE: {
+
+                // Are they in the initial population?
+                inInitialPopulation = evaluatePopulationCriteria(scope, patient, groupAccumulator,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, accumulator);
+
+                if (inInitialPopulation) {
+                    // Are they in the measure population?
+                    boolean inMeasurePopulation = evaluatePopulationCriteria(scope, patient, groupAccumulator,
+                            MeasurePopulationType.MEASUREPOPULATION, MeasurePopulationType.MEASUREPOPULATIONEXCLUSION);
+
+                    if (inMeasurePopulation) {
+                        // Only one measure observation per group is evaluated, the last one the group defines.
+                        // Groups with several observations, such as per-encounter and per-patient, are not supported.
+                        Measure.MeasureGroupPopulationComponent measureObservationCriteria = groupAccumulator.getObservationCriteria();
+                        if (measureObservationCriteria != null && measureObservationCriteria.hasCriteria() && measureObservationCriteria.getCriteria().hasExpression()) {
+                            addObservationValues(evaluateExpression(scope, patient, measureObservationCriteria.getCriteria().getExpression()),
+                                    groupAccumulator.getObservations());
+                        }
+                    }
+                }
+
+                break;
+            }
+            case COHORT: {
+
+                // Are they in the initial population?
+                inInitialPopulation = evaluatePopulationCriteria(scope, patient, groupAccumulator,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, accumulator);
+
+                break;
+            }
+        }
+
+        return inInitialPopulation;
+    }
+
+    private void populateResourceMap(Context context, MeasurePopulationType type, MeasureAccumulator accumulator)
     {
         if (context.getEvaluatedResources().isEmpty()) {
             return;
         }
 
+        // The engine records evaluated resources regardless, they are dropped here when not reported
+        if (accumulator.getEvaluatedResourceMode() == EvaluatedResourceMode.NONE) {
+            context.clearEvaluatedResources();
+            return;
+        }
+
+        HashMap<String, Resource> resources = accumulator.getResources();
+        HashMap<String,HashSet<String>> codeToResourceMap = accumulator.getCodeToResourceMap();
+
         if (!codeToResourceMap.containsKey(type.toCode())) {
             codeToResourceMap.put(type.toCode(), new HashSet<>());
         }
@@ -465,7 +1221,8 @@ public class MeasureEvaluation {
                     codeHashSet.add(id);
                 }
 
-                if (!resources.containsKey(id)) {
+                // Only the references are kept unless the resources are contained in the report
+                if (accumulator.getEvaluatedResourceMode() == EvaluatedResourceMode.FULL && !resources.containsKey(id)) {
                     resources.put(id, r);
                 }
             }
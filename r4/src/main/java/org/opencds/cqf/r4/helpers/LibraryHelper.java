@@ -27,14 +27,17 @@ public class LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
         
-        libraryManager.getLibrarySourceLoader().registerProvider(
+        LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment> sourceProvider =
             new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(
                 provider, 
                 x -> x.getContent(),
                 x -> x.getContentType(),
-                x -> x.getData()));
+                x -> x.getData(),
+                x -> x.getExtensionByUrl(LibrarySourceProvider.CQL_HASH_EXTENSION) != null
+                    ? x.getExtensionByUrl(LibrarySourceProvider.CQL_HASH_EXTENSION).getValue().primitiveValue() : null);
+        libraryManager.getLibrarySourceLoader().registerProvider(sourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, sourceProvider);
     }
 
 
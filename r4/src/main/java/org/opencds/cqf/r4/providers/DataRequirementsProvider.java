@@ -54,8 +54,10 @@ import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.ParameterDefinition;
 import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.common.providers.LibrarySourceProvider;
 import org.opencds.cqf.cql.execution.LibraryLoader;
 import org.opencds.cqf.r4.helpers.CanonicalHelper;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
@@ -545,6 +547,14 @@ public class DataRequirementsProvider {
         Attachment elm = new Attachment();
         elm.setContentType("application/elm+xml");
         elm.setData(xml.getBytes());
+        // The library loader only uses the ELM while the CQL it was compiled from is unchanged
+        for (Attachment a : library.getContent()) {
+            if ("text/cql".equals(a.getContentType()) && a.getData() != null) {
+                elm.addExtension().setUrl(LibrarySourceProvider.CQL_HASH_EXTENSION)
+                        .setValue(new StringType(CompiledLibraryCache.hash(a.getData())));
+                break;
+            }
+        }
         library.getContent().add(elm);
     }
 
@@ -8,11 +8,15 @@ import javax.servlet.http.HttpServletRequest;
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.DecimalType;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Narrative;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -99,6 +103,52 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
                 theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
     }
 
+    /*
+     * Compiles the CQL of the library and stores the ELM with it, unless the stored ELM was already
+     * compiled from the same CQL. A library whose CQL does not compile is left as it is, and is
+     * translated when it is loaded as before.
+     */
+    public void compileElm(Library library) {
+        if (hasCurrentElm(library)) {
+            return;
+        }
+
+        ModelManager modelManager = this.getModelManager();
+        LibraryManager libraryManager = this.getLibraryManager(modelManager);
+
+        CqlTranslator translator;
+        try {
+            translator = this.dataRequirementsProvider.getTranslator(library, libraryManager, modelManager);
+        } catch (Exception e) {
+            return;
+        }
+
+        if (translator == null || translator.getErrors().size() > 0) {
+            return;
+        }
+
+        this.dataRequirementsProvider.ensureElm(library, translator);
+    }
+
+    private boolean hasCurrentElm(Library library) {
+        String cqlHash = null;
+        for (Attachment a : library.getContent()) {
+            if ("text/cql".equals(a.getContentType()) && a.getData() != null) {
+                cqlHash = CompiledLibraryCache.hash(a.getData());
+            }
+        }
+
+        for (Attachment a : library.getContent()) {
+            if ("application/elm+xml".equals(a.getContentType()) && cqlHash != null
+                    && a.getExtensionByUrl(LibrarySourceProvider.CQL_HASH_EXTENSION) != null
+                    && cqlHash.equals(a.getExtensionByUrl(LibrarySourceProvider.CQL_HASH_EXTENSION).getValue().primitiveValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Operation(name = "$get-elm", idempotent = true, type = Library.class)
     public Parameters getElm(@IdParam IdType theId, @OptionalParam(name="format") String format) {
         Library theResource = this.libraryResourceProvider.getDao().read(theId);
@@ -132,6 +182,23 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         return p;
     }
 
+    /*
+     * Reports the hits and misses of the compiled library cache shared by all requests since the
+     * server started, with its current and maximum number of libraries.
+     */
+    @Operation(name = "$library-cache-statistics", idempotent = true, type = Library.class)
+    public Parameters getLibraryCacheStatistics() {
+        long hits = CompiledLibraryCache.getHits();
+        long misses = CompiledLibraryCache.getMisses();
+        Parameters p = new Parameters();
+        p.addParameter().setName("hits").setValue(new DecimalType(hits));
+        p.addParameter().setName("misses").setValue(new DecimalType(misses));
+        p.addParameter().setName("hitRatio").setValue(new DecimalType(hits + misses > 0 ? (double) hits / (hits + misses) : 0));
+        p.addParameter().setName("size").setValue(new IntegerType(CompiledLibraryCache.getSize()));
+        p.addParameter().setName("maxSize").setValue(new IntegerType(CompiledLibraryCache.getMaxSize()));
+        return p;
+    }
+
     // TODO: Figure out if we should throw an exception or something here.
     @Override
     public void update(Library library) {
@@ -1,56 +1,108 @@
 package org.opencds.cqf.r4.providers;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
-import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.entity.MeasureJobEntity;
+import org.opencds.cqf.common.evaluation.EvaluatedResourceMode;
+import org.opencds.cqf.common.evaluation.EvaluationBudget;
+import org.opencds.cqf.common.evaluation.EvaluationCheckpointer;
+import org.opencds.cqf.common.evaluation.EvaluationExecutor;
+import org.opencds.cqf.common.evaluation.EvaluationExplainer;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.IngestionExecutor;
+import org.opencds.cqf.common.evaluation.MeasureCheckpointStore;
+import org.opencds.cqf.common.evaluation.MeasureJobExecutor;
+import org.opencds.cqf.common.evaluation.MeasureResultStore;
+import org.opencds.cqf.common.evaluation.PatientChangeDetector;
+import org.opencds.cqf.common.evaluation.ShardCoordinator;
+import org.opencds.cqf.common.evaluation.ShardSpec;
+import org.opencds.cqf.common.evaluation.SubjectIdSource;
+import org.opencds.cqf.common.evaluation.TerminologyCache;
+import org.opencds.cqf.common.exceptions.MeasureJobAcceptedException;
+import org.opencds.cqf.common.helpers.DateHelper;
+import org.opencds.cqf.common.helpers.ParameterHelper;
+import org.opencds.cqf.common.helpers.TransactionChunker;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.execution.LibraryLoader;
+import org.opencds.cqf.cql.runtime.Interval;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluation;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluationSeed;
+import org.opencds.cqf.r4.evaluation.MeasureReportMerger;
+import org.opencds.cqf.r4.helpers.ExplainHelper;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.rp.r4.MeasureResourceProvider;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletSubRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
 
 public class MeasureOperationsProvider {
 
@@ -62,14 +114,27 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private MeasureResultStore resultStore;
+    private MeasureJobExecutor jobExecutor;
+    private MeasureCheckpointStore checkpointStore;
 
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
+    // The number of patients evaluated together for population care gaps
+    private static final int CARE_GAPS_PAGE_SIZE = 100;
+
+    // The number of ids read by each _id search when $collect-data resolves references
+    private static final int REFERENCE_CHUNK_SIZE = 100;
+
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory, NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider, LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResolutionProvider,
-    MeasureResourceProvider measureResourceProvider) {
+    MeasureResourceProvider measureResourceProvider, MeasureResultStore resultStore, MeasureJobExecutor jobExecutor,
+    MeasureCheckpointStore checkpointStore) {
         this.registry = registry;
         this.factory = factory;
+        this.resultStore = resultStore;
+        this.jobExecutor = jobExecutor;
+        this.checkpointStore = checkpointStore;
 
         this.libraryResolutionProvider = libraryResolutionProvider;
         this.narrativeProvider = narrativeProvider;
@@ -144,14 +209,20 @@ public class MeasureOperationsProvider {
      *
      */
     @Operation(name = "$evaluate-measure", idempotent = true, type = Measure.class)
-    public MeasureReport evaluateMeasure(@IdParam IdType theId, @RequiredParam(name = "periodStart") String periodStart,
+    public MeasureReport evaluateMeasure(RequestDetails theRequestDetails, @IdParam IdType theId, @RequiredParam(name = "periodStart") String periodStart,
             @RequiredParam(name = "periodEnd") String periodEnd, @OptionalParam(name = "measure") String measureRef,
             @OptionalParam(name = "reportType") String reportType, @OptionalParam(name = "patient") String patientRef,
             @OptionalParam(name = "productLine") String productLine,
             @OptionalParam(name = "practitioner") String practitionerRef,
             @OptionalParam(name = "lastReceivedOn") String lastReceivedOn,
             @OptionalParam(name = "source") String source, @OptionalParam(name = "user") String user,
-            @OptionalParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
+            @OptionalParam(name = "pass") String pass,
+            @OptionalParam(name = "evaluatedResources") String evaluatedResources,
+            @OptionalParam(name = "shard") String shard,
+            @OptionalParam(name = "checkpoint") String checkpoint,
+            @OptionalParam(name = "_timeout") String timeout,
+            @OptionalParam(name = "_maxPatients") String maxPatients,
+            @OptionalParam(name = "_explain") String explain) throws InternalErrorException, FHIRException {
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
         MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
         Measure measure = this.measureResourceProvider.getDao().read(theId);
@@ -160,10 +231,119 @@ public class MeasureOperationsProvider {
             throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
         }
 
+        if (Boolean.parseBoolean(explain)) {
+            return explainMeasure(seed, measure, periodStart, periodEnd, reportType, patientRef, practitionerRef, productLine,
+                    source, user, pass, evaluatedResources, EvaluationBudget.create(timeout, maxPatients));
+        }
+
+        List<String> shardWorkers = HapiProperties.getEvaluationShardWorkers();
+        if (shard == null && !shardWorkers.isEmpty() && ("population".equals(reportType) || "patient-list".equals(reportType))) {
+            // The workers evaluate the shards through this operation and the partial reports are merged here
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("periodStart", periodStart);
+            parameters.put("periodEnd", periodEnd);
+            parameters.put("reportType", reportType);
+            parameters.put("productLine", productLine);
+            parameters.put("practitioner", practitionerRef);
+            parameters.put("lastReceivedOn", lastReceivedOn);
+            parameters.put("evaluatedResources", evaluatedResources);
+            // Each shard is bounded by the time budget, a patient budget is not split between shards
+            parameters.put("_timeout", timeout);
+            ShardCoordinator<MeasureReport> coordinator = new ShardCoordinator<>(this.measureResourceProvider.getContext(),
+                    MeasureReport.class, MeasureReportMerger::merge, shardWorkers);
+            coordinator.setTerminology(source, user, pass);
+
+            if (this.jobExecutor != null && MeasureJobExecutor.isAsyncRequested(theRequestDetails)) {
+                String jobId = this.jobExecutor.submit("$evaluate-measure", this.measureResourceProvider.getContext().newJsonParser(),
+                        progress -> coordinator.evaluate(theId.getIdPart(), parameters, progress));
+                throw acceptJob(theRequestDetails, jobId);
+            }
+
+            return coordinator.evaluate(theId.getIdPart(), parameters, null);
+        }
+
+        if (shard != null && source == null) {
+            // A coordinator passes its terminology server in headers, see ShardCoordinator.setTerminology
+            source = theRequestDetails.getHeader(ShardCoordinator.TERMINOLOGY_SOURCE_HEADER);
+            user = theRequestDetails.getHeader(ShardCoordinator.TERMINOLOGY_USER_HEADER);
+            pass = theRequestDetails.getHeader(ShardCoordinator.TERMINOLOGY_PASS_HEADER);
+        }
         seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
 
         // resolve report type
-        MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry, seed.getMeasurementPeriod());
+        MeasureEvaluation evaluator = new MeasureEvaluation(seed, this.registry, EvaluatedResourceMode.fromCode(evaluatedResources));
+        if (lastReceivedOn != null && this.resultStore != null) {
+            evaluator.setIncrementalEvaluation(this.resultStore,
+                    new PatientChangeDetector(this.registry, this.measureResourceProvider.getContext()),
+                    DateHelper.resolveRequestDate(lastReceivedOn, true));
+        }
+        if (shard != null) {
+            evaluator.setShard(ShardSpec.parse(shard));
+        }
+        if (checkpoint != null && this.checkpointStore != null
+                && ("population".equals(reportType) || "patient-list".equals(reportType))) {
+            // A checkpoint is only resumed by an evaluation with the same parameters
+            evaluator.setCheckpointer(new EvaluationCheckpointer(this.checkpointStore, checkpoint,
+                    MeasureResultStore.createRunKey(theId.getIdPart(), measure.getMeta().getVersionId(), periodStart, periodEnd,
+                            reportType, practitionerRef, productLine, lastReceivedOn, evaluatedResources, shard)));
+        }
+        EvaluationBudget budget = EvaluationBudget.create(timeout, maxPatients);
+        if (this.jobExecutor != null && MeasureJobExecutor.isAsyncRequested(theRequestDetails)) {
+            // Jobs evaluate on their own thread and leave the shared evaluation workers to interactive requests
+            evaluator.setParallelism(1);
+            evaluator.setBudget(budget);
+            String jobId = this.jobExecutor.submit("$evaluate-measure", this.measureResourceProvider.getContext().newJsonParser(), progress -> {
+                evaluator.setProgress(progress);
+                return evaluateMeasure(evaluator, seed, reportType, patientRef, practitionerRef, productLine);
+            });
+            throw acceptJob(theRequestDetails, jobId);
+        }
+
+        // Interactive evaluations are also stopped when the client disconnects
+        if (theRequestDetails instanceof ServletRequestDetails) {
+            if (budget == null) {
+                budget = new EvaluationBudget(0, 0);
+            }
+            budget.watchClient(((ServletRequestDetails) theRequestDetails).getServletRequest());
+        }
+        evaluator.setBudget(budget);
+
+        return evaluateMeasure(evaluator, seed, reportType, patientRef, practitionerRef, productLine);
+    }
+
+    /*
+     * Evaluates the measure on the request thread while recording the retrieve plan, the executed
+     * queries and the time of each phase and definition, and returns the report with the
+     * explanation contained as a Parameters resource. Explained evaluations are not sharded,
+     * checkpointed, incremental or run as jobs, so the explanation covers the whole evaluation.
+     */
+    private MeasureReport explainMeasure(MeasureEvaluationSeed seed, Measure measure, String periodStart, String periodEnd,
+            String reportType, String patientRef, String practitionerRef, String productLine, String source, String user,
+            String pass, String evaluatedResources, EvaluationBudget budget) {
+        EvaluationExplainer explainer = new EvaluationExplainer();
+        explainer.attach();
+        try {
+            seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
+
+            MeasureEvaluation evaluator = new MeasureEvaluation(seed, this.registry, EvaluatedResourceMode.fromCode(evaluatedResources));
+            evaluator.setParallelism(1);
+            evaluator.setBudget(budget);
+
+            long start = System.nanoTime();
+            MeasureReport report = evaluateMeasure(evaluator, seed, reportType, patientRef, practitionerRef, productLine);
+            explainer.recordEvaluation(System.nanoTime() - start);
+
+            Parameters explanation = ExplainHelper.toParameters(explainer);
+            explanation.setId("explain");
+            report.addContained(explanation);
+            return report;
+        } finally {
+            explainer.detach();
+        }
+    }
+
+    private MeasureReport evaluateMeasure(MeasureEvaluation evaluator, MeasureEvaluationSeed seed, String reportType,
+            String patientRef, String practitionerRef, String productLine) {
         if (reportType != null) {
             switch (reportType) {
             case "patient":
@@ -190,6 +370,158 @@ public class MeasureOperationsProvider {
         return report;
     }
 
+    /*
+     * Evaluates the measure for several measurement periods, given as matching lists of periodStart
+     * and periodEnd, and optionally several product lines, in one evaluation. The libraries are
+     * loaded once and each patient's data is read once for all of the periods. Returns a collection
+     * Bundle with a MeasureReport for each period and product line.
+     */
+    @Operation(name = "$evaluate-measure-sweep", idempotent = true, type = Measure.class)
+    public Bundle evaluateMeasureSweep(RequestDetails theRequestDetails, @IdParam IdType theId,
+            @OperationParam(name = "periodStart", min = 1) List<StringType> periodStarts,
+            @OperationParam(name = "periodEnd", min = 1) List<StringType> periodEnds,
+            @OperationParam(name = "productLine") List<StringType> productLines,
+            @OperationParam(name = "reportType", max = 1) StringType reportType,
+            @OperationParam(name = "patient", max = 1) StringType patientRef,
+            @OperationParam(name = "practitioner", max = 1) StringType practitionerRef,
+            @OperationParam(name = "source", max = 1) StringType source,
+            @OperationParam(name = "user", max = 1) StringType user,
+            @OperationParam(name = "pass", max = 1) StringType pass,
+            @OperationParam(name = "evaluatedResources", max = 1) StringType evaluatedResources) {
+        if (periodStarts.size() != periodEnds.size()) {
+            throw new IllegalArgumentException("Each periodStart must have a matching periodEnd");
+        }
+
+        Measure measure = this.measureResourceProvider.getDao().read(theId);
+        if (measure == null) {
+            throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
+        }
+
+        List<Interval> periods = new ArrayList<>();
+        for (int i = 0; i < periodStarts.size(); i++) {
+            periods.add(new Interval(DateHelper.resolveRequestDate(periodStarts.get(i).getValue(), true), true,
+                    DateHelper.resolveRequestDate(periodEnds.get(i).getValue(), false), true));
+        }
+        List<String> lines = new ArrayList<>();
+        if (productLines != null) {
+            for (StringType productLine : productLines) {
+                lines.add(productLine.getValue());
+            }
+        }
+        if (lines.isEmpty()) {
+            lines.add(null);
+        }
+
+        MeasureReport.MeasureReportType type;
+        String reportTypeCode = reportType != null ? reportType.getValue() : "patient";
+        switch (reportTypeCode) {
+        case "patient":
+            if (patientRef == null) {
+                throw new IllegalArgumentException("A patient is required for patient reports");
+            }
+            type = MeasureReport.MeasureReportType.INDIVIDUAL;
+            break;
+        case "patient-list":
+            type = MeasureReport.MeasureReportType.SUBJECTLIST;
+            break;
+        case "population":
+            type = MeasureReport.MeasureReportType.SUMMARY;
+            break;
+        default:
+            throw new IllegalArgumentException("Invalid report type: " + reportTypeCode);
+        }
+
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+        seed.setup(measure, periodStarts.get(0).getValue(), periodEnds.get(0).getValue(), lines.get(0),
+                getValue(source), getValue(user), getValue(pass));
+
+        MeasureEvaluation evaluator = new MeasureEvaluation(seed, this.registry, EvaluatedResourceMode.fromCode(getValue(evaluatedResources)));
+        String patientId = patientRef != null ? patientRef.getValue().replace("Patient/", "") : null;
+        String practitioner = getValue(practitionerRef);
+        if (this.jobExecutor != null && MeasureJobExecutor.isAsyncRequested(theRequestDetails)) {
+            evaluator.setParallelism(1);
+            String jobId = this.jobExecutor.submit("$evaluate-measure-sweep", this.measureResourceProvider.getContext().newJsonParser(), progress -> {
+                evaluator.setProgress(progress);
+                return evaluateMeasureSweep(evaluator, measure, type, patientId, practitioner, periods, lines);
+            });
+            throw acceptJob(theRequestDetails, jobId);
+        }
+
+        return evaluateMeasureSweep(evaluator, measure, type, patientId, practitioner, periods, lines);
+    }
+
+    private Bundle evaluateMeasureSweep(MeasureEvaluation evaluator, Measure measure, MeasureReport.MeasureReportType type,
+            String patientId, String practitionerRef, List<Interval> periods, List<String> productLines) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (MeasureReport report : evaluator.evaluateSweep(measure, type, patientId, practitionerRef, periods, productLines)) {
+            bundle.addEntry().setResource(report);
+        }
+
+        return bundle;
+    }
+
+    private static String getValue(StringType value) {
+        return value != null ? value.getValue() : null;
+    }
+
+    private MeasureJobAcceptedException acceptJob(RequestDetails theRequestDetails, String jobId) {
+        return new MeasureJobAcceptedException("Accepted measure job " + jobId,
+                theRequestDetails.getFhirServerBase() + "/Measure/$job-status?job=" + jobId);
+    }
+
+    private MeasureJobEntity getJob(String jobId) {
+        MeasureJobEntity job = this.jobExecutor != null ? this.jobExecutor.getJob(jobId) : null;
+        if (job == null) {
+            throw new ResourceNotFoundException("Could not find measure job " + jobId);
+        }
+
+        return job;
+    }
+
+    @Operation(name = "$job-status", idempotent = true, type = Measure.class)
+    public Parameters jobStatus(RequestDetails theRequestDetails, @RequiredParam(name = "job") String jobId) {
+        MeasureJobEntity job = getJob(jobId);
+        Parameters p = new Parameters();
+        p.addParameter().setName("job").setValue(new StringType(job.getId()));
+        p.addParameter().setName("operation").setValue(new StringType(job.getOperation()));
+        p.addParameter().setName("status").setValue(new StringType(job.getStatus().name().toLowerCase()));
+        p.addParameter().setName("processed").setValue(new IntegerType(job.getProcessed() != null ? job.getProcessed() : 0));
+        if (job.getTotal() != null) {
+            p.addParameter().setName("total").setValue(new IntegerType(job.getTotal()));
+        }
+        p.addParameter().setName("created").setValue(new DateTimeType(job.getCreated()));
+        if (job.getStarted() != null) {
+            p.addParameter().setName("started").setValue(new DateTimeType(job.getStarted()));
+        }
+        if (job.getFinished() != null) {
+            p.addParameter().setName("finished").setValue(new DateTimeType(job.getFinished()));
+        }
+        if (job.getError() != null) {
+            p.addParameter().setName("error").setValue(new StringType(job.getError()));
+        }
+        if (job.getStatus() == MeasureJobEntity.Status.COMPLETE) {
+            p.addParameter().setName("result")
+                    .setValue(new UriType(theRequestDetails.getFhirServerBase() + "/Measure/$job-result?job=" + jobId));
+        }
+        return p;
+    }
+
+    @Operation(name = "$job-result", idempotent = true, type = Measure.class)
+    public Resource jobResult(RequestDetails theRequestDetails, @RequiredParam(name = "job") String jobId) {
+        MeasureJobEntity job = getJob(jobId);
+        switch (job.getStatus()) {
+        case COMPLETE:
+            return (Resource) this.measureResourceProvider.getContext().newJsonParser().parseResource(job.getResult());
+        case FAILED:
+            throw new InternalErrorException("Measure job " + jobId + " failed: " + job.getError());
+        default:
+            throw new MeasureJobAcceptedException("Measure job " + jobId + " is " + job.getStatus().name().toLowerCase(),
+                    theRequestDetails.getFhirServerBase() + "/Measure/$job-status?job=" + jobId);
+        }
+    }
+
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
     // public MeasureReport evaluateMeasure(@IdParam IdType theId,
     //         @OperationParam(name = "sourceData", min = 1, max = 1, type = Bundle.class) Bundle sourceData,
@@ -214,12 +546,286 @@ public class MeasureOperationsProvider {
     //     return evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), "");
     // }
 
+    /*
+     * Reports care gaps for a single patient, or for a population when no patient is given. The
+     * population is the members of a Group given as the subject, the patients of a practitioner,
+     * or all patients, and is returned as a searchset of per-patient gap documents paged with
+     * _count and _offset. Each measure is prepared once for all of the patients on a page.
+     */
     @Operation(name = "$care-gaps", idempotent = true)
-    public Bundle careGapsReport(@RequiredParam(name = "periodStart") String periodStart,
+    public Bundle careGapsReport(RequestDetails theRequestDetails, @RequiredParam(name = "periodStart") String periodStart,
+            @RequiredParam(name = "periodEnd") String periodEnd, @RequiredParam(name = "topic") String topic,
+            @OptionalParam(name = "patient") String patientRef,
+            @OptionalParam(name = "subject") String subject,
+            @OptionalParam(name = "practitioner") String practitionerRef,
+            @OptionalParam(name = "_count") String count,
+            @OptionalParam(name = "_offset") String offset) {
+        if (patientRef == null && subject != null && subject.startsWith("Patient/")) {
+            patientRef = subject;
+        }
+
+        boolean async = this.jobExecutor != null && MeasureJobExecutor.isAsyncRequested(theRequestDetails);
+        if (patientRef == null) {
+            int pageOffset = ParameterHelper.parseInteger("_offset", offset, 0, 0);
+            int pageSize = ParameterHelper.parseInteger("_count", count, CARE_GAPS_PAGE_SIZE, 1);
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("periodStart", periodStart);
+            parameters.put("periodEnd", periodEnd);
+            parameters.put("topic", topic);
+            parameters.put("subject", subject);
+            parameters.put("practitioner", practitionerRef);
+            parameters.put("_count", Integer.toString(pageSize));
+            String serverBase = theRequestDetails.getFhirServerBase();
+            if (async) {
+                String jobId = this.jobExecutor.submit("$care-gaps", this.measureResourceProvider.getContext().newJsonParser(),
+                        progress -> careGapsPopulationReport(periodStart, periodEnd, topic, subject, practitionerRef,
+                                pageOffset, pageSize, serverBase, parameters, false, progress));
+                throw acceptJob(theRequestDetails, jobId);
+            }
+
+            return careGapsPopulationReport(periodStart, periodEnd, topic, subject, practitionerRef, pageOffset, pageSize,
+                    serverBase, parameters, true, null);
+        }
+
+        String patient = patientRef;
+        if (async) {
+            String jobId = this.jobExecutor.submit("$care-gaps", this.measureResourceProvider.getContext().newJsonParser(),
+                    progress -> careGapsReport(periodStart, periodEnd, topic, patient, false, progress));
+            throw acceptJob(theRequestDetails, jobId);
+        }
+
+        return careGapsReport(periodStart, periodEnd, topic, patient, true, null);
+    }
+
+    /*
+     * Streams the care gap documents of a population as NDJSON, one document Bundle per line.
+     * The patients are evaluated a page at a time, so the whole population is never held in memory.
+     */
+    @Operation(name = "$care-gaps-export", idempotent = true, manualResponse = true)
+    public void careGapsExport(HttpServletResponse theResponse, @RequiredParam(name = "periodStart") String periodStart,
             @RequiredParam(name = "periodEnd") String periodEnd, @RequiredParam(name = "topic") String topic,
-            @RequiredParam(name = "patient") String patientRef) {
-        List<IBaseResource> measures = this.measureResourceProvider.getDao().search(new SearchParameterMap().add("topic",
-                new TokenParam().setModifier(TokenParamModifier.TEXT).setValue(topic))).getResources(0, 1000);
+            @OptionalParam(name = "subject") String subject,
+            @OptionalParam(name = "practitioner") String practitionerRef) throws IOException {
+        List<Measure> measures = getTopicMeasures(topic);
+        List<MeasureEvaluation> evaluators = prepareCareGapMeasures(measures, periodStart, periodEnd, true);
+        IParser parser = this.measureResourceProvider.getContext().newJsonParser().setPrettyPrint(false);
+
+        theResponse.setStatus(200);
+        theResponse.setContentType("application/fhir+ndjson");
+        theResponse.setCharacterEncoding("UTF-8");
+        Writer writer = theResponse.getWriter();
+        Iterator<String> patients = getCareGapsPatients(subject, practitionerRef, SubjectIdSource.DEFAULT_PAGE_SIZE).iterator();
+        List<String> page;
+        while (!(page = nextPage(patients, CARE_GAPS_PAGE_SIZE)).isEmpty()) {
+            for (Bundle document : createCareGapDocuments(topic, measures, evaluators, page)) {
+                writer.write(parser.encodeResourceToString(document));
+                writer.write('\n');
+            }
+            writer.flush();
+        }
+    }
+
+    private Bundle careGapsPopulationReport(String periodStart, String periodEnd, String topic, String subject,
+            String practitionerRef, int offset, int count, String serverBase, Map<String, String> parameters,
+            boolean parallel, EvaluationProgress progress) {
+        List<Measure> measures = getTopicMeasures(topic);
+        List<MeasureEvaluation> evaluators = prepareCareGapMeasures(measures, periodStart, periodEnd, parallel);
+
+        // The patients of a search are read from the offset a page at a time, the members of a Group are in memory
+        Iterable<String> patients = getCareGapsPatients(subject, practitionerRef, count);
+        Iterator<String> patientIterator;
+        if (patients instanceof SubjectIdSource) {
+            patientIterator = ((SubjectIdSource) patients).iterator(offset);
+        }
+        else {
+            patientIterator = patients.iterator();
+            for (int i = 0; i < offset && patientIterator.hasNext(); i++) {
+                patientIterator.next();
+            }
+        }
+        List<String> page = nextPage(patientIterator, count);
+        if (progress != null) {
+            progress.setTotal(page.size());
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        Integer total = patients instanceof SubjectIdSource ? ((SubjectIdSource) patients).size()
+                : patients instanceof Collection ? ((Collection<String>) patients).size() : null;
+        if (total != null) {
+            bundle.setTotal(total);
+        }
+        bundle.addLink().setRelation("self").setUrl(buildCareGapsUrl(serverBase, parameters, offset));
+        // A known total avoids reading the next page only to find out whether there is one
+        if (total != null ? offset + page.size() < total : patientIterator.hasNext()) {
+            bundle.addLink().setRelation("next").setUrl(buildCareGapsUrl(serverBase, parameters, offset + count));
+        }
+
+        for (Bundle document : createCareGapDocuments(topic, measures, evaluators, page)) {
+            bundle.addEntry().setResource(document);
+        }
+        if (progress != null) {
+            progress.addProcessed(page.size());
+        }
+
+        return bundle;
+    }
+
+    private static String buildCareGapsUrl(String serverBase, Map<String, String> parameters, int offset) {
+        StringBuilder url = new StringBuilder(serverBase).append("/$care-gaps?_offset=").append(offset);
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (parameter.getValue() != null) {
+                url.append('&').append(parameter.getKey()).append('=')
+                        .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+            }
+        }
+
+        return url.toString();
+    }
+
+    private static List<String> nextPage(Iterator<String> patients, int count) {
+        List<String> page = new ArrayList<>();
+        while (page.size() < count && patients.hasNext()) {
+            page.add(patients.next());
+        }
+
+        return page;
+    }
+
+    // The members of a Group subject, the patients of a practitioner, or all patients
+    private Iterable<String> getCareGapsPatients(String subject, String practitionerRef, int pageSize) {
+        if (subject != null && subject.startsWith("Group/")) {
+            Group group = (Group) this.registry.getResourceDao("Group").read(new IdType(subject));
+            List<String> patients = new ArrayList<>();
+            for (Group.GroupMemberComponent member : group.getMember()) {
+                if (member.hasEntity() && "Patient".equals(member.getEntity().getReferenceElement().getResourceType())) {
+                    patients.add(member.getEntity().getReferenceElement().getIdPart());
+                }
+            }
+            return patients;
+        }
+
+        if (practitionerRef == null && subject != null && subject.startsWith("Practitioner/")) {
+            practitionerRef = subject;
+        }
+
+        SearchParameterMap map = new SearchParameterMap();
+        if (practitionerRef != null) {
+            map.add("general-practitioner", new ReferenceParam(
+                    practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
+        }
+        return new SubjectIdSource(this.registry.getResourceDao("Patient").search(map), pageSize);
+    }
+
+    private List<Measure> getTopicMeasures(String topic) {
+        List<Measure> measures = new ArrayList<>();
+        for (IBaseResource resource : this.measureResourceProvider.getDao().search(new SearchParameterMap().add("topic",
+                new TokenParam().setModifier(TokenParamModifier.TEXT).setValue(topic))).getResources(0, 1000)) {
+            measures.add((Measure) resource);
+        }
+
+        return measures;
+    }
+
+    // Sets up each measure once, to be evaluated for any number of patients
+    private List<MeasureEvaluation> prepareCareGapMeasures(List<Measure> measures, String periodStart, String periodEnd,
+            boolean parallel) {
+        // The measures of a topic usually share libraries and value sets, so they share one loader and terminology cache
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        TerminologyCache terminologyCache = new TerminologyCache();
+        List<MeasureEvaluation> evaluators = new ArrayList<>();
+        for (Measure measure : measures) {
+            MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+            seed.setTerminologyCache(terminologyCache);
+            seed.setup(measure, periodStart, periodEnd, null, null, null, null);
+            MeasureEvaluation evaluator = new MeasureEvaluation(seed, this.registry);
+            if (!parallel) {
+                evaluator.setParallelism(1);
+            }
+            evaluators.add(evaluator);
+        }
+
+        return evaluators;
+    }
+
+    // Evaluates every measure for the patients, spread over the evaluation workers, and returns a document per patient
+    private List<Bundle> createCareGapDocuments(String topic, List<Measure> measures, List<MeasureEvaluation> evaluators,
+            List<String> patients) {
+        List<Map<String, MeasureReport>> measureReports = new ArrayList<>();
+        for (int i = 0; i < measures.size(); i++) {
+            measureReports.add(evaluators.get(i).evaluatePatientMeasures(measures.get(i), patients));
+        }
+
+        List<Bundle> documents = new ArrayList<>();
+        for (String patient : patients) {
+            List<MeasureReport> reports = new ArrayList<>();
+            for (Map<String, MeasureReport> byPatient : measureReports) {
+                reports.add(byPatient.get(patient));
+            }
+            documents.add(createCareGapDocument(topic, patient, measures, reports));
+        }
+
+        return documents;
+    }
+
+    /*
+     * Evaluates the measures of the topic for the patient, each measure on its own evaluation
+     * worker when parallel. The measures are set up one after the other with a shared library
+     * loader and terminology cache, so common libraries are only translated and value sets only
+     * expanded once. Progress is counted in measures evaluated.
+     */
+    private Bundle careGapsReport(String periodStart, String periodEnd, String topic, String patientRef, boolean parallel,
+            EvaluationProgress progress) {
+        List<Measure> measures = getTopicMeasures(topic);
+        if (progress != null) {
+            progress.setTotal(measures.size());
+        }
+
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        TerminologyCache terminologyCache = new TerminologyCache();
+        List<Callable<MeasureReport>> tasks = new ArrayList<>();
+        for (Measure measure : measures) {
+            MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+            seed.setTerminologyCache(terminologyCache);
+            seed.setup(measure, periodStart, periodEnd, null, null, null, null);
+            MeasureEvaluation evaluator = new MeasureEvaluation(seed, this.registry);
+            tasks.add(() -> {
+                MeasureReport report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
+                if (progress != null) {
+                    progress.addProcessed(1);
+                }
+                return report;
+            });
+        }
+
+        // Reports are returned in task order, so the document sections stay in measure order. With a
+        // single evaluation worker the measures are evaluated here rather than queued for that worker.
+        List<MeasureReport> reports;
+        if (parallel && tasks.size() > 1 && EvaluationExecutor.getParallelism() > 1) {
+            reports = EvaluationExecutor.invokeAll(tasks);
+        }
+        else {
+            reports = new ArrayList<>();
+            for (Callable<MeasureReport> task : tasks) {
+                reports.add(callCareGapsTask(task));
+            }
+        }
+
+        return createCareGapDocument(topic, patientRef, measures, reports);
+    }
+
+    private static MeasureReport callCareGapsTask(Callable<MeasureReport> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Builds the gap document of a patient from the patient's report for each measure, in measure order
+    private Bundle createCareGapDocument(String topic, String patientRef, List<Measure> measures, List<MeasureReport> measureReports) {
         Bundle careGapReport = new Bundle();
         careGapReport.setType(Bundle.BundleType.DOCUMENT);
 
@@ -233,11 +839,11 @@ public class MeasureOperationsProvider {
                 .setTitle(topic + " Care Gap Report");
 
         List<MeasureReport> reports = new ArrayList<>();
-        MeasureReport report = new MeasureReport();
-        for (IBaseResource resource : measures) {
+        for (int i = 0; i < measures.size(); i++) {
+            Measure measure = measures.get(i);
+            MeasureReport report = measureReports.get(i);
             Composition.SectionComponent section = new Composition.SectionComponent();
 
-            Measure measure = (Measure) resource;
             section.addEntry(
                     new Reference(measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart()));
             if (measure.hasTitle()) {
@@ -250,13 +856,6 @@ public class MeasureOperationsProvider {
                         .setDiv(new XhtmlNode().setValue(improvementNotation.getCodingFirstRep().getCode())));
             }
 
-            LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
-            MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
-            seed.setup(measure, periodStart, periodEnd, null, null, null, null);
-            MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry, seed.getMeasurementPeriod());
-            // TODO - this is configured for patient-level evaluation only
-            report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
-
             if (report.hasGroup() && measure.hasScoring()) {
                 int numerator = 0;
                 int denominator = 0;
@@ -323,11 +922,17 @@ public class MeasureOperationsProvider {
     public Parameters collectData(@IdParam IdType theId, @RequiredParam(name = "periodStart") String periodStart,
             @RequiredParam(name = "periodEnd") String periodEnd, @OptionalParam(name = "patient") String patientRef,
             @OptionalParam(name = "practitioner") String practitionerRef,
-            @OptionalParam(name = "lastReceivedOn") String lastReceivedOn) throws FHIRException {
+            @OptionalParam(name = "lastReceivedOn") String lastReceivedOn,
+            @OptionalParam(name = "referenceDepth") String referenceDepth) throws FHIRException {
+        // Referenced resources are resolved one level deep by default, as before
+        int depth = ParameterHelper.parseInteger("referenceDepth", referenceDepth, 1, 0);
+
         // TODO: Spec says that the periods are not required, but I am not sure what to
         // do when they aren't supplied so I made them required
-        MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, null, null, patientRef, null,
-                practitionerRef, lastReceivedOn, null, null, null);
+        // lastReceivedOn is not passed on, since it would make the evaluation incremental and the stored
+        // per-patient results do not carry the evaluated resources this operation returns
+        MeasureReport report = evaluateMeasure(null, theId, periodStart, periodEnd, null, null, patientRef, null,
+                practitionerRef, null, null, null, null, EvaluatedResourceMode.FULL.toCode(), null, null, null, null, null);
         report.setGroup(null);
 
         Parameters parameters = new Parameters();
@@ -335,65 +940,92 @@ public class MeasureOperationsProvider {
         parameters.addParameter(
                 new Parameters.ParametersParameterComponent().setName("measurereport").setResource(report));
 
+        Map<String, Resource> resourceMap = new HashMap<>();
         if (report.hasContained()) {
             for (Resource contained : report.getContained()) {
                 if (contained instanceof Bundle) {
-                    addEvaluatedResourcesToParameters((Bundle) contained, parameters);
+                    addEvaluatedResourcesToParameters((Bundle) contained, parameters, resourceMap);
                 }
             }
         }
 
-        // TODO: need a way to resolve referenced resources within the evaluated
-        // resources
-        // Should be able to use _include search with * wildcard, but HAPI doesn't
-        // support that
+        resolveReferences(new ArrayList<>(resourceMap.values()), parameters, resourceMap, depth);
 
         return parameters;
     }
 
-    private void addEvaluatedResourcesToParameters(Bundle contained, Parameters parameters) {
-        Map<String, Resource> resourceMap = new HashMap<>();
+    private void addEvaluatedResourcesToParameters(Bundle contained, Parameters parameters, Map<String, Resource> resourceMap) {
         if (contained.hasEntry()) {
             for (Bundle.BundleEntryComponent entry : contained.getEntry()) {
                 if (entry.hasResource() && !(entry.getResource() instanceof ListResource)) {
-                    if (!resourceMap.containsKey(entry.getResource().getIdElement().getValue())) {
+                    String key = getResourceKey(entry.getResource());
+                    if (!resourceMap.containsKey(key)) {
                         parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
                                 .setResource(entry.getResource()));
 
-                        resourceMap.put(entry.getResource().getIdElement().getValue(), entry.getResource());
-
-                        resolveReferences(entry.getResource(), parameters, resourceMap);
+                        resourceMap.put(key, entry.getResource());
                     }
                 }
             }
         }
     }
 
-    private void resolveReferences(Resource resource, Parameters parameters, Map<String, Resource> resourceMap) {
-        List<IBase> values;
-        for (BaseRuntimeChildDefinition child : this.measureResourceProvider.getContext().getResourceDefinition(resource).getChildren()) {
-            values = child.getAccessor().getValues(resource);
-            if (values == null || values.isEmpty()) {
-                continue;
+    /*
+     * Adds the resources referenced by the given resources, then those referenced by the added
+     * resources, up to the given depth. At each level the references are collected per resource
+     * type, the ones already in the map are skipped, and the rest are read with _id searches of
+     * up to REFERENCE_CHUNK_SIZE ids, rather than with a read for each reference.
+     */
+    private void resolveReferences(List<Resource> resources, Parameters parameters, Map<String, Resource> resourceMap,
+            int depth) {
+        FhirTerser terser = this.measureResourceProvider.getContext().newTerser();
+        for (int level = 0; level < depth && !resources.isEmpty(); level++) {
+            Map<String, Set<String>> idsByType = new LinkedHashMap<>();
+            for (Resource resource : resources) {
+                for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                    IIdType id = reference.getReferenceElement();
+                    if (id.hasResourceType() && id.hasIdPart()
+                            && !resourceMap.containsKey(id.getResourceType() + "/" + id.getIdPart())) {
+                        idsByType.computeIfAbsent(id.getResourceType(), x -> new LinkedHashSet<>()).add(id.getIdPart());
+                    }
+                }
             }
 
-            else if (values.get(0) instanceof Reference
-                    && ((Reference) values.get(0)).getReferenceElement().hasResourceType()
-                    && ((Reference) values.get(0)).getReferenceElement().hasIdPart()) {
-                Resource fetchedResource = (Resource) registry
-                        .getResourceDao(((Reference) values.get(0)).getReferenceElement().getResourceType())
-                        .read(new IdType(((Reference) values.get(0)).getReferenceElement().getIdPart()));
+            List<Resource> fetched = new ArrayList<>();
+            for (Map.Entry<String, Set<String>> entry : idsByType.entrySet()) {
+                List<String> ids = new ArrayList<>(entry.getValue());
+                for (int i = 0; i < ids.size(); i += REFERENCE_CHUNK_SIZE) {
+                    TokenOrListParam idParam = new TokenOrListParam();
+                    for (String id : ids.subList(i, Math.min(i + REFERENCE_CHUNK_SIZE, ids.size()))) {
+                        idParam.add(null, id);
+                    }
 
-                if (!resourceMap.containsKey(fetchedResource.getIdElement().getValue())) {
-                    parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
-                            .setResource(fetchedResource));
+                    SearchParameterMap map = new SearchParameterMap();
+                    map.setLoadSynchronous(true);
+                    map.add("_id", idParam);
+                    IBundleProvider bundleProvider = this.registry.getResourceDao(entry.getKey()).search(map);
+                    for (IBaseResource fetchedResource : bundleProvider.getResources(0, bundleProvider.size())) {
+                        String key = getResourceKey((Resource) fetchedResource);
+                        if (!resourceMap.containsKey(key)) {
+                            parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
+                                    .setResource((Resource) fetchedResource));
 
-                    resourceMap.put(fetchedResource.getIdElement().getValue(), fetchedResource);
+                            resourceMap.put(key, (Resource) fetchedResource);
+                            fetched.add((Resource) fetchedResource);
+                        }
+                    }
                 }
             }
+
+            resources = fetched;
         }
     }
 
+    // Resources are keyed by type and id, whichever base and version their ids carry
+    private static String getResourceKey(Resource resource) {
+        return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    }
+
     // TODO - this needs a lot of work
     @Operation(name = "$data-requirements", idempotent = true, type = Measure.class)
     public org.hl7.fhir.r4.model.Library dataRequirements(@IdParam IdType theId,
@@ -404,12 +1036,17 @@ public class MeasureOperationsProvider {
         return this.dataRequirementsProvider.getDataRequirements(measure, this.libraryResolutionProvider);
     }
 
+    /*
+     * Commits the submitted report and resources in transaction chunks rather than in a single
+     * transaction. The entries of a submitted transaction Bundle stay in one chunk, resources that
+     * reference each other are committed in order by the same chain of chunks, and independent
+     * chains are committed concurrently. Returns a batch-response with the outcome of each chunk.
+     */
     @Operation(name = "$submit-data", idempotent = true, type = Measure.class)
     public Resource submitData(RequestDetails details, @IdParam IdType theId,
             @OperationParam(name = "measure-report", min = 1, max = 1, type = MeasureReport.class) MeasureReport report,
-            @OperationParam(name = "resource") List<IAnyResource> resources) {
-        Bundle transactionBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
-
+            @OperationParam(name = "resource") List<IAnyResource> resources,
+            @OperationParam(name = "chunkSize", min = 0, max = 1) IntegerType chunkSize) {
         /*
          * TODO - resource validation using $data-requirements operation (params are the
          * provided id and the measurement period from the MeasureReport)
@@ -418,21 +1055,218 @@ public class MeasureOperationsProvider {
          * StructureDefinition from URL or must it be stored in Ruler?)
          */
 
-        transactionBundle.addEntry(createTransactionEntry(report));
+        List<List<Bundle.BundleEntryComponent>> units = new ArrayList<>();
+        units.add(Collections.singletonList(createTransactionEntry(report)));
+
+        if (resources != null) {
+            for (IAnyResource resource : resources) {
+                addSubmittedResource((Resource) resource, units);
+            }
+        }
 
-        for (IAnyResource resource : resources) {
-            Resource res = (Resource) resource;
-            if (res instanceof Bundle) {
-                for (Bundle.BundleEntryComponent entry : createTransactionBundle((Bundle) res).getEntry()) {
-                    transactionBundle.addEntry(entry);
+        Bundle outcomes = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+        commitChunks(details, units, getChunkSize(chunkSize), outcomes);
+        return outcomes;
+    }
+
+    /*
+     * Accepts the submitted resources as an NDJSON request body, one resource per line. The body
+     * is read a window of chunks at a time, so only the chunks being committed are held in memory.
+     */
+    @Operation(name = "$submit-data-ndjson", idempotent = false, type = Measure.class, manualRequest = true)
+    public Resource submitDataNdjson(HttpServletRequest theServletRequest, RequestDetails details, @IdParam IdType theId,
+            @OperationParam(name = "chunkSize", min = 0, max = 1) IntegerType chunkSize) throws IOException {
+        int size = getChunkSize(chunkSize);
+        int window = size * IngestionExecutor.getParallelism();
+        IParser parser = this.measureResourceProvider.getContext().newJsonParser();
+        Bundle outcomes = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+
+        List<List<Bundle.BundleEntryComponent>> units = new ArrayList<>();
+        int entries = 0;
+        BufferedReader reader = theServletRequest.getReader();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            int added = units.size();
+            addSubmittedResource((Resource) parser.parseResource(line), units);
+            for (List<Bundle.BundleEntryComponent> unit : units.subList(added, units.size())) {
+                entries += unit.size();
+            }
+            if (entries >= window) {
+                commitChunks(details, units, size, outcomes);
+                units = new ArrayList<>();
+                entries = 0;
+            }
+        }
+
+        if (!units.isEmpty()) {
+            commitChunks(details, units, size, outcomes);
+        }
+
+        return outcomes;
+    }
+
+    private static int getChunkSize(IntegerType chunkSize) {
+        int size = chunkSize != null && chunkSize.getValue() != null ? chunkSize.getValue() : HapiProperties.getSubmitDataChunkSize();
+        if (size < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        return size;
+    }
+
+    // A transaction Bundle is kept together as one unit, the entries of other Bundles are units of their own
+    private void addSubmittedResource(Resource resource, List<List<Bundle.BundleEntryComponent>> units) {
+        if (resource instanceof Bundle) {
+            Bundle bundle = (Bundle) resource;
+            if (bundle.hasType() && bundle.getType() == Bundle.BundleType.TRANSACTION) {
+                if (bundle.hasEntry()) {
+                    units.add(bundle.getEntry());
                 }
             } else {
-                // Build transaction bundle
-                transactionBundle.addEntry(createTransactionEntry(res));
+                for (Bundle.BundleEntryComponent entry : createTransactionBundle(bundle).getEntry()) {
+                    units.add(Collections.singletonList(entry));
+                }
             }
+        } else {
+            units.add(Collections.singletonList(createTransactionEntry(resource)));
         }
+    }
 
-        return (Resource) this.registry.getSystemDao().transaction(details, transactionBundle);
+    /*
+     * Plans the chunks of the units and commits them, adding an entry with the transaction response
+     * or the error of each chunk to the outcomes. A chunk whose chain has already failed is not
+     * committed, as it may depend on the data of the failed chunk.
+     */
+    private void commitChunks(RequestDetails details, List<List<Bundle.BundleEntryComponent>> units, int chunkSize,
+            Bundle outcomes) {
+        FhirTerser terser = this.measureResourceProvider.getContext().newTerser();
+        TransactionChunker chunker = new TransactionChunker();
+        for (List<Bundle.BundleEntryComponent> unit : units) {
+            Set<String> defines = new HashSet<>();
+            Set<String> references = new HashSet<>();
+            for (Bundle.BundleEntryComponent entry : unit) {
+                if (entry.hasFullUrl()) {
+                    defines.add(entry.getFullUrl());
+                }
+                if (!entry.hasResource()) {
+                    continue;
+                }
+
+                Resource resource = entry.getResource();
+                if (resource.getIdElement().hasIdPart()) {
+                    defines.add(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+                }
+                for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                    IIdType id = reference.getReferenceElement();
+                    if (id.hasResourceType() && id.hasIdPart()) {
+                        references.add(id.getResourceType() + "/" + id.getIdPart());
+                    } else if (reference.hasReference()) {
+                        references.add(reference.getReference());
+                    }
+                }
+            }
+            chunker.addUnit(unit.size(), defines, references);
+        }
+
+        List<Callable<List<Bundle.BundleEntryComponent>>> tasks = new ArrayList<>();
+        for (List<List<Integer>> chain : chunker.getChains(chunkSize)) {
+            tasks.add(() -> {
+                RequestDetails chainDetails = createSubRequest(details);
+                List<Bundle.BundleEntryComponent> chainOutcomes = new ArrayList<>();
+                boolean failed = false;
+                for (List<Integer> chunk : chain) {
+                    Bundle transactionBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+                    for (Integer unit : chunk) {
+                        for (Bundle.BundleEntryComponent entry : units.get(unit)) {
+                            transactionBundle.addEntry(entry);
+                        }
+                    }
+
+                    if (failed) {
+                        chainOutcomes.add(createChunkOutcome("424 Failed Dependency",
+                                "Not committed as an earlier chunk of related resources failed"));
+                        continue;
+                    }
+
+                    chainOutcomes.add(commitChunk(chainDetails, transactionBundle));
+                    failed = !chainOutcomes.get(chainOutcomes.size() - 1).getResponse().getStatus().startsWith("2");
+                }
+                return chainOutcomes;
+            });
+        }
+
+        // With a single ingestion worker the chains are committed here rather than queued for that worker
+        List<List<Bundle.BundleEntryComponent>> chainOutcomes;
+        if (tasks.size() > 1 && IngestionExecutor.getParallelism() > 1) {
+            chainOutcomes = IngestionExecutor.invokeAll(tasks);
+        }
+        else {
+            chainOutcomes = new ArrayList<>();
+            for (Callable<List<Bundle.BundleEntryComponent>> task : tasks) {
+                chainOutcomes.add(callSubmitTask(task));
+            }
+        }
+
+        for (List<Bundle.BundleEntryComponent> chain : chainOutcomes) {
+            for (Bundle.BundleEntryComponent entry : chain) {
+                outcomes.addEntry(entry);
+            }
+        }
+    }
+
+    /*
+     * The system DAO keeps the state of a transaction on its request details, so each chain is committed
+     * with request details of its own that carry the server and servlet request of the submission.
+     */
+    private static RequestDetails createSubRequest(RequestDetails details) {
+        if (!(details instanceof ServletRequestDetails)) {
+            return details;
+        }
+
+        ServletRequestDetails servletDetails = (ServletRequestDetails) details;
+        ServletSubRequestDetails subRequest = new ServletSubRequestDetails(servletDetails);
+        subRequest.setServer(servletDetails.getServer());
+        subRequest.setServletRequest(servletDetails.getServletRequest());
+        subRequest.setServletResponse(servletDetails.getServletResponse());
+        subRequest.setFhirServerBase(servletDetails.getFhirServerBase());
+        subRequest.setRequestType(RequestTypeEnum.POST);
+        subRequest.setRestOperationType(RestOperationTypeEnum.TRANSACTION);
+        return subRequest;
+    }
+
+    private Bundle.BundleEntryComponent commitChunk(RequestDetails details, Bundle transactionBundle) {
+        try {
+            Resource response = (Resource) this.registry.getSystemDao().transaction(details, transactionBundle);
+            return new Bundle.BundleEntryComponent().setResource(response)
+                    .setResponse(new Bundle.BundleEntryResponseComponent().setStatus("200 OK"));
+        } catch (BaseServerResponseException e) {
+            logger.warn("Unable to commit a chunk of submitted data: {}", e.getMessage());
+            return createChunkOutcome(e.getStatusCode() + " " + e.getClass().getSimpleName(), e.getMessage());
+        } catch (RuntimeException e) {
+            logger.warn("Unable to commit a chunk of submitted data: {}", e.getMessage());
+            return createChunkOutcome("500 Internal Server Error", e.getMessage());
+        }
+    }
+
+    private static Bundle.BundleEntryComponent createChunkOutcome(String status, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.PROCESSING).setDiagnostics(diagnostics);
+        return new Bundle.BundleEntryComponent()
+                .setResponse(new Bundle.BundleEntryResponseComponent().setStatus(status).setOutcome(outcome));
+    }
+
+    private static List<Bundle.BundleEntryComponent> callSubmitTask(Callable<List<Bundle.BundleEntryComponent>> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private Bundle createTransactionBundle(Bundle bundle) {
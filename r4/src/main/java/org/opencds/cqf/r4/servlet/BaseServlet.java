@@ -16,6 +16,10 @@ import org.hl7.fhir.r4.model.PlanDefinition;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryStore;
+import org.opencds.cqf.common.evaluation.MeasureCheckpointStore;
+import org.opencds.cqf.common.evaluation.MeasureJobExecutor;
+import org.opencds.cqf.common.evaluation.MeasureResultStore;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
 import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
 import org.opencds.cqf.r4.evaluation.ProviderFactory;
@@ -28,6 +32,7 @@ import org.opencds.cqf.r4.providers.CqfMeasure;
 import org.opencds.cqf.r4.providers.CqlExecutionProvider;
 import org.opencds.cqf.r4.providers.HQMFProvider;
 import org.opencds.cqf.r4.providers.JpaTerminologyProvider;
+import org.opencds.cqf.r4.providers.LibraryCompilationInterceptor;
 import org.opencds.cqf.r4.providers.LibraryOperationsProvider;
 import org.opencds.cqf.r4.providers.MeasureOperationsProvider;
 import org.opencds.cqf.r4.providers.NarrativeProvider;
@@ -63,6 +68,9 @@ import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 public class BaseServlet extends RestfulServer {
     DaoRegistry registry;
     FhirContext fhirContext;
+    MeasureResultStore resultStore;
+    MeasureJobExecutor jobExecutor;
+    MeasureCheckpointStore checkpointStore;
 
     @SuppressWarnings("unchecked")
     @Override
@@ -86,6 +94,9 @@ public class BaseServlet extends RestfulServer {
         // System and Resource Daos
         IFhirSystemDao<Bundle, Meta> systemDao = appCtx.getBean("mySystemDaoR4", IFhirSystemDao.class);
         this.registry = appCtx.getBean(DaoRegistry.class);
+        this.resultStore = appCtx.getBean(MeasureResultStore.class);
+        this.jobExecutor = appCtx.getBean(MeasureJobExecutor.class);
+        this.checkpointStore = appCtx.getBean(MeasureCheckpointStore.class);
 
         // System and Resource Providers
         Object systemProvider = appCtx.getBean("mySystemProviderR4", JpaSystemProviderR4.class);
@@ -104,6 +115,9 @@ public class BaseServlet extends RestfulServer {
 
         resolveProviders(providerFactory, localSystemTerminologyProvider, this.registry);
 
+        // Compiled libraries stored by earlier runs
+        LibraryStore.startPreload();
+
         // CdsHooksServlet.provider = provider;
 
         /*
@@ -202,6 +216,9 @@ public class BaseServlet extends RestfulServer {
         LibraryOperationsProvider libraryProvider = new LibraryOperationsProvider((LibraryResourceProvider)this.getResourceProvider(Library.class), narrativeProvider);
         this.registerProvider(libraryProvider);
 
+        // Library compilation on write
+        this.registerInterceptor(new LibraryCompilationInterceptor(libraryProvider));
+
         // CQL Execution
         CqlExecutionProvider cql = new CqlExecutionProvider(libraryProvider, providerFactory);
         this.registerProvider(cql);
@@ -212,7 +229,8 @@ public class BaseServlet extends RestfulServer {
 
         // Measure processing
         MeasureOperationsProvider measureProvider = new MeasureOperationsProvider(this.registry, providerFactory, narrativeProvider, hqmfProvider, 
-            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class));
+            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class), this.resultStore, this.jobExecutor,
+            this.checkpointStore);
         this.registerProvider(measureProvider);
 
         // // ActivityDefinition processing
@@ -0,0 +1,146 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.EvaluatedResourceMode;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.MemberIndex;
+import org.opencds.cqf.common.evaluation.RunningStatistics;
+
+public class MeasureAccumulatorTest {
+
+    private static Measure createMeasure() {
+        Measure measure = new Measure();
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        for (MeasurePopulationType type : Arrays.asList(MeasurePopulationType.INITIALPOPULATION,
+                MeasurePopulationType.DENOMINATOR, MeasurePopulationType.NUMERATOR, MeasurePopulationType.MEASUREOBSERVATION)) {
+            group.addPopulation().setCode(new CodeableConcept().addCoding(new Coding().setCode(type.toCode())));
+        }
+        group.addStratifier();
+        measure.addSupplementalData();
+        return measure;
+    }
+
+    // Patients with an even number are in the numerator, strata and supplemental data alternate by thirds
+    private static void evaluate(MeasureAccumulator accumulator, int patient) {
+        String id = "Patient/p" + patient;
+        GroupAccumulator group = accumulator.getGroups().get(0);
+        group.enterStrata(Arrays.asList(patient % 3 == 0 ? "male" : "female"));
+        group.add(MeasurePopulationType.INITIALPOPULATION, id);
+        group.addPatient(MeasurePopulationType.INITIALPOPULATION, id);
+        group.add(MeasurePopulationType.DENOMINATOR, id);
+        group.addPatient(MeasurePopulationType.DENOMINATOR, id);
+        if (patient % 2 == 0) {
+            group.add(MeasurePopulationType.NUMERATOR, id);
+            group.addPatient(MeasurePopulationType.NUMERATOR, id);
+        }
+        group.getObservations().add(patient);
+        accumulator.addSupplementalData(0, patient % 3 == 1 ? "a value, with spaces" : "other", id);
+        accumulator.getCodeToResourceMap().computeIfAbsent("Numerator", x -> new HashSet<>()).add("Encounter/e" + patient);
+    }
+
+    private static MeasureAccumulator createAccumulator(MemberIndex index) {
+        return new MeasureAccumulator(createMeasure(), index, true, EvaluatedResourceMode.REFERENCES);
+    }
+
+    // The contents of an accumulator by member id, independent of the order of the member ordinals
+    private static Map<String, Object> describe(MeasureAccumulator accumulator) {
+        Map<String, Object> description = new TreeMap<>();
+        GroupAccumulator group = accumulator.getGroups().get(0);
+        for (MeasurePopulationType type : group.getPopulationTypes()) {
+            description.put("m " + type.toCode(), new HashSet<>(group.getMembers(type)));
+            description.put("p " + type.toCode(), new HashSet<>(group.getPatients(type)));
+        }
+        for (String value : group.getStrata(0).keySet()) {
+            description.put("s " + value, new HashSet<>(group.getStratumMembers(0, value)));
+        }
+        // The mean and variance are merged in floating point, so only the exact statistics are compared
+        RunningStatistics observations = group.getObservations();
+        description.put("o", Arrays.asList(observations.getCount(), observations.getSum(), observations.getMin(), observations.getMax()));
+        for (String value : accumulator.getSupplementalData(0).keySet()) {
+            description.put("d " + value, accumulator.getSupplementalData(0).get(value).cardinality());
+        }
+        description.put("r", accumulator.getCodeToResourceMap());
+        return description;
+    }
+
+    @Test
+    public void testEncodeRoundTrip() {
+        MeasureAccumulator accumulator = createAccumulator(new MemberIndex());
+        for (int patient = 0; patient < 50; patient++) {
+            evaluate(accumulator, patient);
+        }
+
+        MeasureAccumulator decoded = createAccumulator(new MemberIndex());
+        decoded.addEncoded(accumulator.encode());
+
+        assertEquals(describe(accumulator), describe(decoded));
+        assertEquals(25, decoded.getGroups().get(0).getCount(MeasurePopulationType.NUMERATOR));
+    }
+
+    @Test
+    public void testMergeMatchesSingleAccumulator() {
+        MeasureAccumulator expected = createAccumulator(new MemberIndex());
+        for (int patient = 0; patient < 50; patient++) {
+            evaluate(expected, patient);
+        }
+
+        // Workers share one index and each evaluates a disjoint part of the patients
+        MemberIndex index = new MemberIndex();
+        MeasureAccumulator left = createAccumulator(index);
+        MeasureAccumulator right = createAccumulator(index);
+        for (int patient = 0; patient < 50; patient++) {
+            evaluate(patient % 2 == 0 ? left : right, patient);
+        }
+
+        assertEquals(describe(expected), describe(left.merge(right)));
+    }
+
+    // A checkpoint or stored result decoded into a fresh accumulator merges like the original
+    @Test
+    public void testMergeDecodedPartialResults() {
+        MeasureAccumulator expected = createAccumulator(new MemberIndex());
+        MeasureAccumulator first = createAccumulator(new MemberIndex());
+        MeasureAccumulator second = createAccumulator(new MemberIndex());
+        for (int patient = 0; patient < 50; patient++) {
+            evaluate(expected, patient);
+            evaluate(patient < 20 ? first : second, patient);
+        }
+
+        MeasureAccumulator merged = createAccumulator(new MemberIndex());
+        merged.addEncoded(first.encode());
+        merged.addEncoded(second.encode());
+
+        assertEquals(describe(expected), describe(merged));
+    }
+
+    // A patient stopped part way by the budget leaves no trace, other than its evaluated resources
+    @Test
+    public void testRollbackPatient() {
+        MeasureAccumulator expected = createAccumulator(new MemberIndex());
+        evaluate(expected, 0);
+
+        MeasureAccumulator accumulator = createAccumulator(new MemberIndex());
+        accumulator.enableJournal();
+        accumulator.startPatient();
+        evaluate(accumulator, 0);
+        accumulator.startPatient();
+        evaluate(accumulator, 1);
+        accumulator.rollbackPatient();
+
+        Map<String, Object> description = describe(accumulator);
+        Map<String, Object> expectedDescription = describe(expected);
+        description.remove("r");
+        expectedDescription.remove("r");
+        assertEquals(expectedDescription, description);
+    }
+}
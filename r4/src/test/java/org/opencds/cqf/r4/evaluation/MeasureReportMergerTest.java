@@ -0,0 +1,247 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+public class MeasureReportMergerTest {
+
+    /*
+     * A partial report of a proportion measure over the given patients, of whom the first
+     * numerator patients are in the numerator. Each patient has one evaluated encounter.
+     */
+    private static MeasureReport createReport(String shard, int numerator, String... patients) {
+        MeasureReport report = new MeasureReport();
+        report.setId(shard);
+        report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+        MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+        group.setId("group-1");
+
+        addPopulation(report, group, MeasurePopulationType.INITIALPOPULATION, shard, Arrays.asList(patients));
+        addPopulation(report, group, MeasurePopulationType.DENOMINATOR, shard, Arrays.asList(patients));
+        addPopulation(report, group, MeasurePopulationType.NUMERATOR, shard, Arrays.asList(patients).subList(0, numerator));
+        if (patients.length > 0) {
+            group.setMeasureScore(new Quantity(numerator / (double) patients.length));
+        }
+
+        for (String patient : patients) {
+            report.addEvaluatedResource(new Reference("Encounter/" + patient));
+        }
+
+        return report;
+    }
+
+    /*
+     * A partial report of a continuous variable measure with one observation of each value, scored
+     * with the aggregate method as MeasureEvaluation does.
+     */
+    private static MeasureReport createObservationReport(String shard, String method, double... values) {
+        MeasureReport report = new MeasureReport();
+        report.setId(shard);
+        report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+        MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+        group.setId("group-1");
+
+        String[] patients = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            patients[i] = shard + i;
+        }
+        addPopulation(report, group, MeasurePopulationType.INITIALPOPULATION, shard, Arrays.asList(patients));
+        addPopulation(report, group, MeasurePopulationType.MEASUREPOPULATION, shard, Arrays.asList(patients));
+        MeasureReport.MeasureReportGroupPopulationComponent observations = group.addPopulation()
+                .setCode(new CodeableConcept().addCoding(new Coding().setCode(MeasurePopulationType.MEASUREOBSERVATION.toCode())))
+                .setCount(values.length);
+        observations.addExtension(MeasureEvaluation.AGGREGATE_METHOD_EXTENSION, new CodeType(method));
+
+        if (values.length > 0) {
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            double score = method.equals("median")
+                    ? (sorted[(sorted.length - 1) / 2] + sorted[sorted.length / 2]) / 2
+                    : Arrays.stream(values).average().getAsDouble();
+            group.setMeasureScore(new Quantity(score));
+        }
+
+        return report;
+    }
+
+    private static void addPopulation(MeasureReport report, MeasureReport.MeasureReportGroupComponent group,
+            MeasurePopulationType type, String shard, Iterable<String> patients) {
+        ListResource list = new ListResource();
+        list.setId(shard + "-" + type.toCode());
+        int count = 0;
+        for (String patient : patients) {
+            list.addEntry().setItem(new Reference("Patient/" + patient));
+            count++;
+        }
+        report.addContained(list);
+
+        group.addPopulation()
+                .setCode(new CodeableConcept().addCoding(new Coding().setCode(type.toCode())))
+                .setCount(count)
+                .setSubjectResults(new Reference("#" + list.getId()));
+    }
+
+    // The merged content of a report, independent of the order of its lists and contained resources
+    private static Map<String, Object> describe(MeasureReport report) {
+        Map<String, Object> description = new TreeMap<>();
+        description.put("status", report.getStatus());
+        MeasureReport.MeasureReportGroupComponent group = report.getGroupFirstRep();
+        description.put("score", group.hasMeasureScore() ? group.getMeasureScore().getValue().doubleValue() : null);
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+            String code = population.getCode().getCodingFirstRep().getCode();
+            description.put("count " + code, population.getCount());
+            description.put("subjects " + code, getListItems(report, population.getSubjectResults()));
+        }
+
+        Set<String> evaluated = new HashSet<>();
+        for (Reference reference : report.getEvaluatedResource()) {
+            evaluated.add(reference.getReference());
+        }
+        description.put("evaluated", evaluated);
+        return description;
+    }
+
+    private static Set<String> getListItems(MeasureReport report, Reference list) {
+        Set<String> items = new HashSet<>();
+        for (Resource contained : report.getContained()) {
+            if (contained instanceof ListResource && ("#" + contained.getIdElement().getIdPart()).equals(list.getReference())) {
+                for (ListResource.ListEntryComponent entry : ((ListResource) contained).getEntry()) {
+                    items.add(entry.getItem().getReference());
+                }
+            }
+        }
+        return items;
+    }
+
+    @Test
+    public void testMergeAddsCountsAndRecomputesScore() {
+        MeasureReport merged = MeasureReportMerger.merge(createReport("a", 1, "p1", "p2"), createReport("b", 2, "p3", "p4"));
+
+        Map<String, Object> description = describe(merged);
+        assertEquals(4, description.get("count denominator"));
+        assertEquals(3, description.get("count numerator"));
+        assertEquals(0.75, (Double) description.get("score"), 0.0);
+        assertEquals(new HashSet<>(Arrays.asList("Patient/p1", "Patient/p3", "Patient/p4")), description.get("subjects numerator"));
+        assertEquals(4, ((Set<?>) description.get("evaluated")).size());
+    }
+
+    @Test
+    public void testMergeIsAssociative() {
+        MeasureReport a = createReport("a", 1, "p1", "p2");
+        MeasureReport b = createReport("b", 0, "p3");
+        MeasureReport c = createReport("c", 3, "p4", "p5", "p6");
+
+        MeasureReport left = MeasureReportMerger.merge(MeasureReportMerger.merge(a, b), c);
+        MeasureReport right = MeasureReportMerger.merge(a, MeasureReportMerger.merge(b, c));
+
+        assertEquals(describe(left), describe(right));
+        assertEquals(4.0 / 6.0, (Double) describe(left).get("score"), 1e-9);
+    }
+
+    // A shard without patients has no score, and does not change the score of the others
+    @Test
+    public void testMergeWithEmptyShard() {
+        MeasureReport a = createReport("a", 1, "p1", "p2");
+        MeasureReport empty = createReport("b", 0);
+
+        assertEquals(describe(a).get("score"), describe(MeasureReportMerger.merge(a, empty)).get("score"));
+        assertEquals(describe(MeasureReportMerger.merge(a, empty)), describe(MeasureReportMerger.merge(empty, a)));
+    }
+
+    // Merging the inputs unchanged leaves them usable for another grouping
+    @Test
+    public void testMergeDoesNotChangeItsInputs() {
+        MeasureReport a = createReport("a", 1, "p1", "p2");
+        MeasureReport b = createReport("b", 2, "p3", "p4");
+        Map<String, Object> before = describe(a);
+
+        MeasureReportMerger.merge(a, b);
+        assertEquals(before, describe(a));
+    }
+
+    private static int countOutcomes(MeasureReport report) {
+        int count = 0;
+        for (Resource contained : report.getContained()) {
+            if (contained instanceof OperationOutcome) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // A shard stopped by its budget leaves the merged report pending and keeps its outcome
+    @Test
+    public void testPendingShardKeepsOutcome() {
+        MeasureReport complete = createReport("a", 1, "p1", "p2");
+        MeasureReport pending = createReport("b", 0, "p3");
+        pending.setStatus(MeasureReport.MeasureReportStatus.PENDING);
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.setId("budget-b");
+        outcome.addIssue().setDiagnostics("the patient budget of 1 patients was reached");
+        pending.addContained(outcome);
+
+        MeasureReport merged = MeasureReportMerger.merge(complete, pending);
+        assertEquals(MeasureReport.MeasureReportStatus.PENDING, merged.getStatus());
+        assertEquals(1, countOutcomes(merged));
+        assertEquals(MeasureReport.MeasureReportStatus.PENDING, MeasureReportMerger.merge(pending, complete).getStatus());
+
+        // The same outcome is only kept once, however the reports are grouped
+        assertEquals(1, countOutcomes(MeasureReportMerger.merge(merged, pending)));
+        assertEquals(MeasureReport.MeasureReportStatus.COMPLETE, MeasureReportMerger.merge(complete, complete).getStatus());
+    }
+
+    // Averages are weighted by the observation counts, so any grouping gives the overall average
+    @Test
+    public void testObservationAverageIsAssociative() {
+        MeasureReport a = createObservationReport("a", "average", 1, 2);
+        MeasureReport b = createObservationReport("b", "average", 6);
+        MeasureReport c = createObservationReport("c", "average", 3, 4, 5);
+
+        MeasureReport left = MeasureReportMerger.merge(MeasureReportMerger.merge(a, b), c);
+        MeasureReport right = MeasureReportMerger.merge(a, MeasureReportMerger.merge(b, c));
+
+        assertEquals(3.5, (Double) describe(left).get("score"), 1e-9);
+        assertEquals(3.5, (Double) describe(right).get("score"), 1e-9);
+        assertEquals(6, describe(left).get("count " + MeasurePopulationType.MEASUREOBSERVATION.toCode()));
+    }
+
+    // A median cannot be combined from partial medians, and is not brought back by a later shard
+    @Test
+    public void testObservationMedianIsDropped() {
+        MeasureReport a = createObservationReport("a", "median", 1, 2);
+        MeasureReport b = createObservationReport("b", "median", 6);
+        MeasureReport c = createObservationReport("c", "median", 3, 4, 5);
+
+        assertNull(describe(MeasureReportMerger.merge(MeasureReportMerger.merge(a, b), c)).get("score"));
+        assertNull(describe(MeasureReportMerger.merge(a, MeasureReportMerger.merge(b, c))).get("score"));
+        assertNull(describe(MeasureReportMerger.merge(MeasureReportMerger.merge(a, c), b)).get("score"));
+    }
+
+    // A shard without observations leaves the score of the others, even a median
+    @Test
+    public void testObservationScoreWithEmptyShard() {
+        MeasureReport a = createObservationReport("a", "median", 1, 2, 6);
+        MeasureReport empty = createObservationReport("b", "median");
+
+        assertEquals(2.0, (Double) describe(MeasureReportMerger.merge(a, empty)).get("score"), 0.0);
+        assertEquals(2.0, (Double) describe(MeasureReportMerger.merge(empty, a)).get("score"), 0.0);
+    }
+}